@@ -0,0 +1,124 @@
+package org.tvheadend.tvhclient.service
+
+import timber.log.Timber
+import java.util.concurrent.Executor
+
+/**
+ * Keeps the entities of the connection that the server sends updates for in memory,
+ * so that the updates can be merged into them without reading them from the database
+ * on the thread that receives the messages. If an entity is not cached, it is loaded
+ * on the given executor. The updates that arrive meanwhile are queued and merged in
+ * their order once it was loaded. Each merged entity is passed to the update's
+ * callback, which saves it asynchronously.
+ *
+ * @param name    The name of the entities that is used for logging
+ * @param maxSize The number of entities that are kept, the least recently used ones are dropped
+ * @param loader  The executor on which the entities are loaded that are not cached
+ * @param load    Loads the entity with the given key or returns null if it does not exist
+ */
+class EntityCache<K, T>(private val name: String,
+                        private val maxSize: Int,
+                        private val loader: Executor,
+                        private val load: (K) -> T?) {
+
+    private val lock = Any()
+    private val entities = object : LinkedHashMap<K, T>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, T>?): Boolean {
+            return size > maxSize
+        }
+    }
+    private val pendingUpdates = HashMap<K, MutableList<Update<T>>>()
+
+    @Volatile
+    var hitCount: Long = 0
+        private set
+    @Volatile
+    var loadCount: Long = 0
+        private set
+
+    /**
+     * Adds or replaces the entity. Updates of a previous entity with
+     * this key that are still waiting for it to be loaded are dropped.
+     */
+    fun put(key: K, entity: T) {
+        synchronized(lock) {
+            pendingUpdates.remove(key)
+            entities[key] = entity
+        }
+    }
+
+    fun remove(key: K) {
+        synchronized(lock) {
+            pendingUpdates.remove(key)
+            entities.remove(key)
+        }
+    }
+
+    fun clear() {
+        synchronized(lock) {
+            pendingUpdates.clear()
+            entities.clear()
+        }
+    }
+
+    /**
+     * Merges the update into the entity with the given key and passes the result
+     * to the callback. The callback is called immediately if the entity is cached,
+     * otherwise after it was loaded. It is not called if the entity does not exist.
+     *
+     * @param merge    Merges the update into the given entity and returns the result
+     * @param onMerged Called with the merged entity in the order of the updates
+     */
+    fun update(key: K, merge: (T) -> T, onMerged: (T) -> Unit) {
+        synchronized(lock) {
+            val entity = entities[key]
+            if (entity != null) {
+                hitCount++
+                val merged = merge(entity)
+                entities[key] = merged
+                onMerged(merged)
+                return
+            }
+
+            val updates = pendingUpdates[key]
+            if (updates != null) {
+                updates.add(Update(merge, onMerged))
+                return
+            }
+            pendingUpdates[key] = mutableListOf(Update(merge, onMerged))
+            loadCount++
+        }
+        loader.execute { loadAndMerge(key) }
+    }
+
+    private fun loadAndMerge(key: K) {
+        val entity = try {
+            load(key)
+        } catch (e: Exception) {
+            Timber.e(e, "Could not load $name $key")
+            null
+        }
+
+        synchronized(lock) {
+            // The entity was added or removed while it was loaded
+            val updates = pendingUpdates.remove(key) ?: return
+            if (entity == null) {
+                Timber.d("Could not find $name $key, dropping ${updates.size} updates")
+                return
+            }
+            var merged: T = entity
+            for (update in updates) {
+                merged = update.merge(merged)
+                update.onMerged(merged)
+            }
+            entities[key] = merged
+        }
+    }
+
+    fun getSummary(): String {
+        val size = synchronized(lock) { entities.size }
+        return "Cached $size ${name}s, $hitCount updates were merged into cached ones, $loadCount were loaded"
+    }
+
+    private class Update<T>(val merge: (T) -> T, val onMerged: (T) -> Unit)
+}
@@ -0,0 +1,134 @@
+package org.tvheadend.tvhclient.service
+
+import org.tvheadend.data.entity.Program
+import org.tvheadend.htsp.HtspConnection
+import org.tvheadend.htsp.HtspMessage
+import org.tvheadend.htsp.HtspResponseListener
+import org.tvheadend.tvhclient.repository.AppRepository
+import timber.log.Timber
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Loads the following events of all channels from the server. The last saved event
+ * of each channel is determined with one query for all channels. The getEvents
+ * requests are then sent over the one connection, but only up to the given number
+ * of them wait for their response at the same time. This keeps the server busy
+ * without queueing the requests of hundreds of channels at once. The received
+ * events are saved in batches while the remaining responses are still arriving.
+ * The events are loaded and saved on the calling thread, which must not be the main thread.
+ */
+class EpgEventFetcher(private val htspConnection: HtspConnection,
+                      private val appRepository: AppRepository,
+                      private val connectionId: Int,
+                      private val maxPendingRequests: Int = DEFAULT_MAX_PENDING_REQUESTS,
+                      private val batchSize: Int = DEFAULT_BATCH_SIZE) {
+
+    /**
+     * Loads the given number of events that follow the last saved event of each channel
+     *
+     * @return The number of saved events
+     */
+    fun fetch(numFollowing: Int): Int {
+        val startTime = System.currentTimeMillis()
+        val channels = appRepository.channelData.getItems()
+        val lastEvents = appRepository.programData.getLastItemOfAllChannels().associateBy { it.channelId }
+        Timber.d("Loading $numFollowing events for each of the ${channels.size} channels, " +
+                "found the last event of ${lastEvents.size} channels, sending up to $maxPendingRequests requests at once")
+
+        val requests = channels.map { channel ->
+            val lastEvent = lastEvents[channel.id]
+            val eventId = when {
+                lastEvent != null -> lastEvent.nextEventId
+                channel.nextEventId > 0 -> channel.nextEventId
+                else -> channel.eventId
+            }
+            val request = HtspMessage()
+            request["method"] = "getEvents"
+            request["channelId"] = channel.id
+            request["numFollowing"] = numFollowing
+            if (eventId > 0) {
+                request["eventId"] = eventId
+            }
+            request
+        }
+
+        // The responses are handled here and not on the connection thread the listeners are called on
+        val responses = LinkedBlockingQueue<HtspMessage>()
+        val listener = object : HtspResponseListener {
+            override fun handleResponse(response: HtspMessage) {
+                responses.add(response)
+            }
+        }
+
+        val batch = ArrayList<Program>(batchSize)
+        var sentRequests = 0
+        var receivedResponses = 0
+        var failedResponses = 0
+        var savedEvents = 0
+
+        while (receivedResponses < requests.size) {
+            while (sentRequests < requests.size && sentRequests - receivedResponses < maxPendingRequests) {
+                htspConnection.sendRequest(requests[sentRequests++]).addListener(listener)
+            }
+
+            val response = try {
+                responses.poll(RESPONSE_TIMEOUT, TimeUnit.SECONDS)
+            } catch (e: InterruptedException) {
+                Timber.d("Interrupted while loading events")
+                Thread.currentThread().interrupt()
+                null
+            }
+            if (response == null) {
+                Timber.d("No response received within $RESPONSE_TIMEOUT seconds, stopping")
+                break
+            }
+
+            receivedResponses++
+            if (response.containsKey("error")) {
+                failedResponses++
+                Timber.d("Could not load events, error: ${response.getString("error")}")
+                continue
+            }
+            if (!response.containsKey("events")) {
+                continue
+            }
+            for (obj in response.getList("events")) {
+                val program = convertMessageToProgramModel(Program(), obj as HtspMessage)
+                program.connectionId = connectionId
+                batch.add(program)
+            }
+            if (batch.size >= batchSize) {
+                savedEvents += saveBatch(batch)
+            }
+        }
+        savedEvents += saveBatch(batch)
+
+        Timber.d("Saved $savedEvents events of ${channels.size} channels in ${System.currentTimeMillis() - startTime} ms, " +
+                "$failedResponses of $receivedResponses responses failed")
+        return savedEvents
+    }
+
+    private fun saveBatch(batch: MutableList<Program>): Int {
+        if (batch.isEmpty()) {
+            return 0
+        }
+        val count = batch.size
+        try {
+            appRepository.programData.addAndRemoveItemsSync(batch, emptyList(), connectionId, false)
+        } catch (e: Exception) {
+            Timber.e(e, "Could not save $count events")
+            batch.clear()
+            return 0
+        }
+        batch.clear()
+        return count
+    }
+
+    companion object {
+        const val DEFAULT_MAX_PENDING_REQUESTS = 8
+        const val DEFAULT_BATCH_SIZE = 1000
+        // Longer than the deadline of the requests, after which the connection answers with an error
+        private const val RESPONSE_TIMEOUT = 60L
+    }
+}
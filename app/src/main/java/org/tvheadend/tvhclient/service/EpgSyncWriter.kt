@@ -0,0 +1,215 @@
+package org.tvheadend.tvhclient.service
+
+import org.tvheadend.data.entity.Program
+import org.tvheadend.data.source.ProgramDataSource
+import timber.log.Timber
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Saves the events that are received during the initial sync while the sync is
+ * still running instead of collecting all of them until it has completed.
+ * The events are passed from the connection to a dedicated writer thread through
+ * a bounded queue. The writer thread saves them in batches of a fixed size, each
+ * batch in one transaction. If the database can not keep up, adding an event blocks
+ * until there is room in the queue again. This way the memory that is required
+ * for the sync does not depend on the number of events that the server sends.
+ * <p>
+ * Events that are deleted during the sync are passed through the same queue as
+ * tombstones, so that an event that is still queued is not saved after it was
+ * deleted. During a delta sync the server only sends the events that changed, so
+ * the saved events that overlap with a received one of the same channel were
+ * replaced on the server and are removed.
+ * <p>
+ * If a sync generation is given, the saved events are marked with it, so that the
+ * saved events that the server did not send anymore can be removed in the database
+ * once the sync is done, without keeping the ids of all received events in memory.
+ * <p>
+ * A batch that can not be saved is tried again a few times. If it still fails,
+ * its events are discarded and the writer is marked as failed, so that the caller
+ * can request all events again with the next sync.
+ * <p>
+ * The events are added from the thread of the service's message listener. While
+ * adding blocks, the messages for this listener remain queued in the message
+ * dispatcher, which never drops them. Once they exceed its byte limit, the
+ * connection stops reading from the socket until the queue was drained. So a slow
+ * database slows down the server instead of losing events or using more memory.
+ */
+class EpgSyncWriter(private val programData: ProgramDataSource,
+                    private val connectionId: Int,
+                    private val deltaSync: Boolean,
+                    private val syncGeneration: Long = 0,
+                    queueCapacity: Int = DEFAULT_QUEUE_CAPACITY,
+                    private val batchSize: Int = DEFAULT_BATCH_SIZE) {
+
+    private val queue = ArrayBlockingQueue<Any>(queueCapacity)
+    private val thread = Thread({ writeEvents() }, "EpgSyncWriter")
+
+    @Volatile
+    private var finished = false
+
+    /**
+     * The number of events that were passed to the writer
+     */
+    @Volatile
+    var receivedCount = 0
+        private set
+
+    /**
+     * The number of events that were saved in the database
+     */
+    @Volatile
+    var savedCount = 0
+        private set
+
+    /**
+     * The number of batches that could not be saved and whose events were discarded
+     */
+    @Volatile
+    var failedBatchCount = 0
+        private set
+
+    /**
+     * True if any events could not be saved. The saved events are then
+     * incomplete and all events need to be requested again.
+     */
+    val hasFailed: Boolean
+        get() = failedBatchCount > 0
+
+    fun start() {
+        Timber.d("Starting to save the received events in batches of $batchSize, delta sync is $deltaSync")
+        thread.start()
+    }
+
+    /**
+     * Queues the event to be saved. Blocks while the queue is full, which keeps
+     * the calling listener thread from handling further messages meanwhile.
+     * Events that are added after the writer was finished or cancelled are ignored.
+     */
+    fun add(program: Program) {
+        if (finished) {
+            return
+        }
+        try {
+            queue.put(program)
+            receivedCount++
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+    }
+
+    /**
+     * Queues the deletion of the event with the given id. Blocks while the queue is full.
+     */
+    fun remove(eventId: Int) {
+        if (finished) {
+            return
+        }
+        try {
+            queue.put(Tombstone(eventId))
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+    }
+
+    /**
+     * Saves the remaining events and waits until the writer thread is done
+     */
+    fun finish() {
+        if (finished) {
+            return
+        }
+        finished = true
+        try {
+            queue.put(END_OF_SYNC)
+            thread.join()
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        }
+        Timber.d("Saved $savedCount of $receivedCount received events")
+    }
+
+    /**
+     * Stops the writer thread without saving the events that are still queued
+     */
+    fun cancel() {
+        if (finished) {
+            return
+        }
+        finished = true
+        queue.clear()
+        thread.interrupt()
+        Timber.d("Cancelled saving the received events, saved $savedCount of $receivedCount events")
+    }
+
+    private fun writeEvents() {
+        // Later changes of the same event within a batch replace the earlier ones
+        val programs = LinkedHashMap<Int, Program>()
+        val removedIds = LinkedHashSet<Int>()
+        try {
+            while (true) {
+                // Save the events that were received so far when the server pauses
+                when (val item = queue.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    null -> saveBatch(programs, removedIds)
+                    END_OF_SYNC -> {
+                        saveBatch(programs, removedIds)
+                        return
+                    }
+                    is Tombstone -> {
+                        programs.remove(item.eventId)
+                        removedIds.add(item.eventId)
+                    }
+                    is Program -> {
+                        removedIds.remove(item.eventId)
+                        if (syncGeneration != 0L) {
+                            item.syncGeneration = syncGeneration
+                        }
+                        programs[item.eventId] = item
+                    }
+                }
+                if (programs.size + removedIds.size >= batchSize) {
+                    saveBatch(programs, removedIds)
+                }
+            }
+        } catch (e: InterruptedException) {
+            Timber.d("Writer thread was interrupted, ${programs.size} events were not saved")
+        }
+    }
+
+    @Throws(InterruptedException::class)
+    private fun saveBatch(programs: MutableMap<Int, Program>, removedIds: MutableSet<Int>) {
+        if (programs.isEmpty() && removedIds.isEmpty()) {
+            return
+        }
+        var attempt = 1
+        while (true) {
+            try {
+                programData.addAndRemoveItemsSync(ArrayList(programs.values), ArrayList(removedIds), connectionId, deltaSync)
+                savedCount += programs.size
+                break
+            } catch (e: Exception) {
+                if (attempt >= MAX_SAVE_ATTEMPTS) {
+                    Timber.e(e, "Could not save ${programs.size} events and remove ${removedIds.size} events, discarding them")
+                    failedBatchCount++
+                    break
+                }
+                Timber.w(e, "Could not save ${programs.size} events and remove ${removedIds.size} events, attempt $attempt of $MAX_SAVE_ATTEMPTS")
+                Thread.sleep(RETRY_DELAY * attempt)
+                attempt++
+            }
+        }
+        programs.clear()
+        removedIds.clear()
+    }
+
+    private class Tombstone(val eventId: Int)
+
+    companion object {
+        const val DEFAULT_QUEUE_CAPACITY = 2000
+        const val DEFAULT_BATCH_SIZE = 500
+        private const val FLUSH_INTERVAL = 1000L
+        private const val MAX_SAVE_ATTEMPTS = 3
+        private const val RETRY_DELAY = 500L
+        private val END_OF_SYNC = Any()
+    }
+}
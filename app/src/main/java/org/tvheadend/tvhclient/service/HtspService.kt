@@ -51,10 +51,15 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     private var htspConnection: HtspConnection? = null
     private val execService: ScheduledExecutorService = Executors.newScheduledThreadPool(10)
 
-    private val pendingEventOps = ArrayList<Program>()
     private val pendingChannelOps = ArrayList<Channel>()
     private val pendingChannelTagOps = ArrayList<ChannelTag>()
     private val pendingRecordingOps = ArrayList<Recording>()
+    private var epgSyncWriter: EpgSyncWriter? = null
+    private lateinit var writeBehindBuffer: WriteBehindBuffer
+    private lateinit var programCache: EntityCache<Int, Program>
+    private lateinit var recordingCache: EntityCache<Int, Recording>
+    private lateinit var seriesRecordingCache: EntityCache<String, SeriesRecording>
+    private lateinit var timerRecordingCache: EntityCache<String, TimerRecording>
 
     private lateinit var httpPlaybackProfiles: List<ServerProfile>
     private lateinit var htspPlaybackProfiles: List<ServerProfile>
@@ -62,6 +67,12 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     private var initialSyncWithServerRunning: Boolean = false
     private var syncEventsRequired: Boolean = false
     private var syncRequired: Boolean = false
+    private var deltaSyncRequired: Boolean = false
+    private var completeEpgSyncRequired: Boolean = false
+    private var epgSyncStartTime: Long = 0
+    private var epgSyncEndTime: Long = 0
+    @Volatile
+    private var epgSyncServerTime: Long = 0
     private var firstEventReceived = false
     private var connectionTimeout: Int = 0
 
@@ -72,6 +83,22 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
 
         connection = appRepository.connectionData.activeItem
         Timber.d("Loaded connection ${connection.name}")
+        writeBehindBuffer = WriteBehindBuffer(appRepository, connection.id)
+
+        // The updates from the server are merged into the cached entities. Only those
+        // that are not cached are loaded, which is done in the background.
+        programCache = EntityCache("program", 5000, execService) { id ->
+            writeBehindBuffer.getProgram(id) { appRepository.programData.getItemById(id) }
+        }
+        recordingCache = EntityCache("recording", 5000, execService) { id ->
+            writeBehindBuffer.getRecording(id) { appRepository.recordingData.getItemById(id) }
+        }
+        seriesRecordingCache = EntityCache("series recording", 1000, execService) { id ->
+            appRepository.seriesRecordingData.getItemById(id)
+        }
+        timerRecordingCache = EntityCache("timer recording", 1000, execService) { id ->
+            appRepository.timerRecordingData.getItemById(id)
+        }
 
         httpPlaybackProfiles = appRepository.serverProfileData.httpPlaybackProfiles
         Timber.d("Loaded existing ${httpPlaybackProfiles.size} http playback profiles for connection ${connection.name}")
@@ -153,6 +180,12 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         Timber.d("Stopping service")
         execService.shutdown()
         stopHtspConnection()
+        epgSyncWriter?.cancel()
+        epgSyncWriter = null
+        Timber.d(programCache.getSummary())
+        Timber.d(recordingCache.getSummary())
+        Timber.d("Write behind buffer: ${writeBehindBuffer.getSummary()}")
+        writeBehindBuffer.close()
     }
 
     private fun startHtspConnection() {
@@ -163,6 +196,8 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
                 connection.serverUrl,
                 connectionTimeout,
                 this, this)
+        // The icons are read with fileRead requests whose data is decoded into pooled arrays
+        htspConnection?.setPayloadBufferPool(HtspBufferPool(HtspFileInputStream.DEFAULT_CHUNK_SIZE, 2))
         // Since this is blocking, spawn to a new thread
         execService.execute {
             htspConnection?.openConnection()
@@ -281,7 +316,14 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         pendingChannelOps.clear()
         pendingChannelTagOps.clear()
         pendingRecordingOps.clear()
-        pendingEventOps.clear()
+
+        epgSyncWriter?.cancel()
+        epgSyncWriter = null
+
+        // The server sends all recordings again during the initial sync
+        recordingCache.clear()
+        seriesRecordingCache.clear()
+        timerRecordingCache.clear()
 
         initialSyncWithServerRunning = true
 
@@ -296,6 +338,17 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         Timber.d("Sync from server required: $syncRequired")
         syncEventsRequired = syncRequired || lastUpdateTime + epgMaxTime < currentTimeInSeconds
         Timber.d("Sync events from server required: $syncEventsRequired")
+        // Once the program guide was received, only the changes since then are requested
+        deltaSyncRequired = !syncRequired && !syncEventsRequired && connection.epgWatermark > 0
+        Timber.d("Delta sync of events since ${connection.epgWatermark} required: $deltaSyncRequired")
+        // The syncs above do not report the events that were deleted on the server meanwhile.
+        // Once the time span of the program guide has passed since all of its events were
+        // received, they are requested again and the saved events that were not sent are removed.
+        completeEpgSyncRequired = (syncEventsRequired || deltaSyncRequired) &&
+                connection.epgCompleteSyncTime + epgMaxTime < currentTimeInSeconds
+        epgSyncStartTime = currentTimeInSeconds
+        epgSyncEndTime = currentTimeInSeconds + epgMaxTime
+        Timber.d("Complete sync of events required: $completeEpgSyncRequired")
 
         // Send the first sync message to any broadcast listeners
         if (syncRequired || syncEventsRequired) {
@@ -312,6 +365,25 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
             // Only provide metadata that has changed since 12 hours ago.
             // The events past those 12 hours are not relevant and don't need to be sent by the server
             enableAsyncMetadataRequest["lastUpdate"] = currentTimeInSeconds - 12 * 60 * 60
+        } else if (deltaSyncRequired) {
+            Timber.d("Enabling requesting of epg data changes, epgMaxTime is ${(epgMaxTime + currentTimeInSeconds)}, watermark is ${connection.epgWatermark}")
+
+            enableAsyncMetadataRequest["epg"] = 1
+            enableAsyncMetadataRequest["epgMaxTime"] = epgMaxTime + currentTimeInSeconds
+            // Include the changes that were made in the last minute before the watermark was taken
+            enableAsyncMetadataRequest["lastUpdate"] = connection.epgWatermark - 60
+        }
+        if (completeEpgSyncRequired) {
+            // Without the last update time the server sends all events up to the max time
+            enableAsyncMetadataRequest.remove("lastUpdate")
+        }
+
+        if (syncEventsRequired || deltaSyncRequired) {
+            // Save the events while they are received instead of keeping all of them until the sync is done
+            // The events of a complete sync are marked with its start time to find the ones that were not sent
+            val syncGeneration = if (completeEpgSyncRequired) epgSyncStartTime else 0
+            epgSyncWriter = EpgSyncWriter(appRepository.programData, connection.id, deltaSyncRequired, syncGeneration).apply { start() }
+            getEpgSyncServerTime()
         }
 
         htspConnection?.sendMessage(enableAsyncMetadataRequest, object : HtspResponseListener {
@@ -342,9 +414,23 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         }
 
         // Only save any received events when they shall be loaded
-        if (syncEventsRequired) {
-            Timber.d("Sync of all evens is required, saving events")
+        var epgSyncFailed = false
+        if (syncEventsRequired || deltaSyncRequired) {
+            Timber.d("Sync of all or changed events is required, saving remaining events")
+            val writer = epgSyncWriter
             saveAllReceivedEvents()
+            epgSyncFailed = writer?.hasFailed == true
+            if (epgSyncFailed) {
+                // The discarded events were not marked, removing the events that were
+                // not received would remove them too. Request all events next time instead.
+                Timber.d("Not all received events could be saved, a full sync is required with the next connection")
+            } else if (completeEpgSyncRequired && writer != null) {
+                removeEventsNotReceived(writer)
+            }
+            if (!epgSyncFailed && epgSyncServerTime > 0) {
+                Timber.d("Setting epg watermark to server time $epgSyncServerTime")
+                connection.epgWatermark = epgSyncServerTime
+            }
         } else {
             Timber.d("Sync of all evens is not required")
         }
@@ -358,7 +444,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         startBackgroundWorkers()
 
         Timber.d("Updating connection status with full sync completed and last update time")
-        connection.isSyncRequired = false
+        connection.isSyncRequired = epgSyncFailed
         connection.lastUpdate = System.currentTimeMillis() / 1000L
         appRepository.connectionData.updateItem(connection)
 
@@ -371,6 +457,8 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
 
         syncRequired = false
         syncEventsRequired = false
+        deltaSyncRequired = false
+        completeEpgSyncRequired = false
         initialSyncWithServerRunning = false
 
         Timber.d("Done receiving initial data from server")
@@ -435,6 +523,21 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         })
     }
 
+    /**
+     * Requests the server time before the events are requested. All changes up to this time
+     * are received with the initial sync, so it is the watermark for the next delta sync.
+     */
+    private fun getEpgSyncServerTime() {
+        epgSyncServerTime = 0
+        val request = HtspMessage()
+        request.method = "getSysTime"
+        htspConnection?.sendMessage(request, object : HtspResponseListener {
+            override fun handleResponse(response: HtspMessage) {
+                epgSyncServerTime = response.getLong("time", 0)
+            }
+        })
+    }
+
     private fun getDvrConfigs() {
         val request = HtspMessage()
         request.method = "getDvrConfigs"
@@ -685,9 +788,10 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
             return
         }
 
-        val channel = appRepository.channelData.getItemById(msg.getInteger("channelId")) ?: return
+        val channelId = msg.getInteger("channelId")
+        val channel = writeBehindBuffer.getChannel(channelId) { appRepository.channelData.getItemById(channelId) } ?: return
         val updatedChannel = convertMessageToChannelModel(channel, msg)
-        appRepository.channelData.updateItem(updatedChannel)
+        writeBehindBuffer.putChannel(updatedChannel)
     }
 
     /**
@@ -717,6 +821,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     private fun onDvrEntryAdd(msg: HtspMessage) {
         val recording = convertMessageToRecordingModel(Recording(), msg)
         recording.connectionId = connection.id
+        recordingCache.put(recording.id, recording.copy())
 
         if (initialSyncWithServerRunning) {
             pendingRecordingOps.add(recording)
@@ -728,7 +833,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
                         "Received ${pendingRecordingOps.size} recordings")
             }
         } else {
-            appRepository.recordingData.addItem(recording)
+            writeBehindBuffer.putRecording(recording)
         }
 
         addNotificationScheduledRecordingStarts(this, recording)
@@ -741,15 +846,15 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
      * @param msg The message with the updated recording data
      */
     private fun onDvrEntryUpdate(msg: HtspMessage) {
-        val recording = appRepository.recordingData.getItemById(msg.getInteger("id")) ?: return
-        val updatedRecording = convertMessageToRecordingModel(recording, msg)
-        appRepository.recordingData.updateItem(updatedRecording)
-
-        removeNotificationById(this, recording.id)
-        if (sharedPreferences.getBoolean("notifications_enabled", resources.getBoolean(R.bool.pref_default_notifications_enabled))) {
-            if (!recording.isScheduled && !recording.isRecording) {
-                Timber.d("Removing notification for recording ${recording.title}")
-                (getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager).cancel(recording.id)
+        recordingCache.update(msg.getInteger("id"), { convertMessageToRecordingModel(it, msg) }) { recording ->
+            writeBehindBuffer.putRecording(recording.copy())
+
+            removeNotificationById(this, recording.id)
+            if (sharedPreferences.getBoolean("notifications_enabled", resources.getBoolean(R.bool.pref_default_notifications_enabled))) {
+                if (!recording.isScheduled && !recording.isRecording) {
+                    Timber.d("Removing notification for recording ${recording.title}")
+                    (getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager).cancel(recording.id)
+                }
             }
         }
     }
@@ -762,8 +867,8 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
      */
     private fun onDvrEntryDelete(msg: HtspMessage) {
         if (msg.containsKey("id")) {
-            val recording = appRepository.recordingData.getItemById(msg.getInteger("id")) ?: return
-            appRepository.recordingData.removeItem(recording)
+            recordingCache.remove(msg.getInteger("id"))
+            writeBehindBuffer.removeRecording(msg.getInteger("id"))
         }
     }
 
@@ -776,6 +881,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     private fun onAutorecEntryAdd(msg: HtspMessage) {
         val seriesRecording = convertMessageToSeriesRecordingModel(SeriesRecording(), msg)
         seriesRecording.connectionId = connection.id
+        seriesRecordingCache.put(seriesRecording.id, seriesRecording.copy())
         appRepository.seriesRecordingData.addItem(seriesRecording)
     }
 
@@ -791,9 +897,9 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
             Timber.d("Could not find a series recording with id $id in the database")
             return
         }
-        val recording = appRepository.seriesRecordingData.getItemById(msg.getString("id")) ?: return
-        val updatedRecording = convertMessageToSeriesRecordingModel(recording, msg)
-        appRepository.seriesRecordingData.updateItem(updatedRecording)
+        seriesRecordingCache.update(id, { convertMessageToSeriesRecordingModel(it, msg) }) {
+            appRepository.seriesRecordingData.updateItem(it.copy())
+        }
     }
 
     /**
@@ -805,8 +911,8 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     private fun onAutorecEntryDelete(msg: HtspMessage) {
         val id = msg.getString("id", "")
         if (id.isNotEmpty()) {
-            val seriesRecording = appRepository.seriesRecordingData.getItemById(msg.getString("id")) ?: return
-            appRepository.seriesRecordingData.removeItem(seriesRecording)
+            seriesRecordingCache.remove(id)
+            appRepository.seriesRecordingData.removeItemById(id)
         }
     }
 
@@ -819,6 +925,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     private fun onTimerRecEntryAdd(msg: HtspMessage) {
         val recording = convertMessageToTimerRecordingModel(TimerRecording(), msg)
         recording.connectionId = connection.id
+        timerRecordingCache.put(recording.id, recording.copy())
         appRepository.timerRecordingData.addItem(recording)
     }
 
@@ -834,9 +941,9 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
             Timber.d("Could not find a timer recording with id $id in the database")
             return
         }
-        val recording = appRepository.timerRecordingData.getItemById(id) ?: return
-        val updatedRecording = convertMessageToTimerRecordingModel(recording, msg)
-        appRepository.timerRecordingData.updateItem(updatedRecording)
+        timerRecordingCache.update(id, { convertMessageToTimerRecordingModel(it, msg) }) {
+            appRepository.timerRecordingData.updateItem(it.copy())
+        }
     }
 
     /**
@@ -848,8 +955,8 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     private fun onTimerRecEntryDelete(msg: HtspMessage) {
         val id = msg.getString("id", "")
         if (id.isNotEmpty()) {
-            val timerRecording = appRepository.timerRecordingData.getItemById(id) ?: return
-            appRepository.timerRecordingData.removeItem(timerRecording)
+            timerRecordingCache.remove(id)
+            appRepository.timerRecordingData.removeItemById(id)
         }
     }
 
@@ -873,18 +980,22 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         val program = convertMessageToProgramModel(Program(), msg)
         program.connectionId = connection.id
 
+        // The events of the initial sync are not cached, they would only
+        // replace each other. Later updates load the saved event instead.
         if (initialSyncWithServerRunning) {
-            pendingEventOps.add(program)
+            val writer = epgSyncWriter ?: return
+            writer.add(program)
 
-            if (syncRequired && pendingEventOps.size % 50 == 0) {
-                Timber.d("Sync is running, received ${pendingEventOps.size} program guide events")
+            if (syncRequired && writer.receivedCount % 50 == 0) {
+                Timber.d("Sync is running, received ${writer.receivedCount} program guide events")
                 sendSyncStateMessage(SyncStateReceiver.State.SYNC_IN_PROGRESS,
                         getString(R.string.receiving_data),
-                        "Received ${pendingEventOps.size} program guide events")
+                        "Received ${writer.receivedCount} program guide events")
             }
         } else {
             Timber.d("Adding event ${program.title}")
-            appRepository.programData.addItem(program)
+            programCache.put(program.eventId, program.copy())
+            writeBehindBuffer.putProgram(program)
         }
     }
 
@@ -895,10 +1006,10 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
      * @param msg The message with the updated epg event data
      */
     private fun onEventUpdate(msg: HtspMessage) {
-        val program = appRepository.programData.getItemById(msg.getInteger("eventId")) ?: return
-        val updatedProgram = convertMessageToProgramModel(program, msg)
-        Timber.d("Updating event ${updatedProgram.title}")
-        appRepository.programData.updateItem(updatedProgram)
+        programCache.update(msg.getInteger("eventId"), { convertMessageToProgramModel(it, msg) }) {
+            Timber.d("Updating event ${it.title}")
+            writeBehindBuffer.putProgram(it.copy())
+        }
     }
 
     /**
@@ -909,7 +1020,14 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
      */
     private fun onEventDelete(msg: HtspMessage) {
         if (msg.containsKey("id")) {
-            appRepository.programData.removeItemById(msg.getInteger("id"))
+            programCache.remove(msg.getInteger("id"))
+            val writer = epgSyncWriter
+            if (initialSyncWithServerRunning && writer != null) {
+                // Prevents that the event is saved if it is still queued
+                writer.remove(msg.getInteger("id"))
+            } else {
+                writeBehindBuffer.removeProgram(msg.getInteger("id"))
+            }
         }
     }
 
@@ -920,7 +1038,6 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
      */
     private fun onGetEvents(message: HtspMessage, intent: Intent) {
 
-        val useEventList = intent.getBooleanExtra("useEventList", false)
         val channelName = intent.getStringExtra("channelName")
 
         if (message.containsKey("events")) {
@@ -932,13 +1049,8 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
                 programs.add(program)
             }
 
-            if (useEventList) {
-                Timber.d("Adding ${programs.size} events to the list for channel $channelName")
-                pendingEventOps.addAll(programs)
-            } else {
-                Timber.d("Saving ${programs.size} events for channel $channelName")
-                appRepository.programData.addItems(programs)
-            }
+            Timber.d("Saving ${programs.size} events for channel $channelName")
+            appRepository.programData.addItems(programs)
         }
     }
 
@@ -1253,11 +1365,36 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         appRepository.recordingData.removeAndAddItems(pendingRecordingOps)
     }
 
+    /**
+     * Removes the saved events within the time span of the complete sync that the
+     * server did not send, because they were deleted on the server. The events that
+     * were received were saved by the writer with the start time of the sync.
+     */
+    private fun removeEventsNotReceived(writer: EpgSyncWriter) {
+        // Nothing was received, which rather means that the server did not send the events
+        if (writer.receivedCount == 0) {
+            Timber.d("No events were received during the complete sync, keeping the saved events")
+            return
+        }
+        try {
+            val count = appRepository.programData.removeItemsNotInSync(connection.id, epgSyncStartTime, epgSyncEndTime, epgSyncStartTime)
+            Timber.d("Removed $count saved events that were not received during the complete sync")
+            connection.epgCompleteSyncTime = epgSyncStartTime
+        } catch (e: Exception) {
+            Timber.e(e, "Could not remove the events that were not received")
+        }
+    }
+
+    /**
+     * Saves the events of the initial sync that were not yet saved by the
+     * writer and waits until they are in the database.
+     */
     private fun saveAllReceivedEvents() {
-        Timber.d("Saving ${pendingEventOps.size} new events")
-        if (pendingEventOps.isNotEmpty()) {
-            appRepository.programData.addItems(pendingEventOps)
+        epgSyncWriter?.let {
+            Timber.d("Saving the remaining of ${it.receivedCount} received events")
+            it.finish()
         }
+        epgSyncWriter = null
     }
 
     private fun loadAllChannelIcons(channels: List<Channel> = appRepository.channelData.getItems()) {
@@ -1422,50 +1559,20 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     }
 
     /**
-     * Loads a defined number of events for all channels.
-     * This method is called by a worker after the initial sync is done.
-     * All loaded events are saved in a temporary list and saved in one
-     * batch into the database when all events were loaded for all channels.
+     * Loads a defined number of events for all channels in the background.
+     * A limited number of requests is kept in flight and the received
+     * events are saved in batches while the remaining ones are loaded.
      *
      * @param intent The intent with the parameters e.g. to define how many events shall be loaded
      */
     private fun getMoreEvents(intent: Intent) {
-
+        val currentHtspConnection = htspConnection ?: return
         val numberOfProgramsToLoad = intent.getIntExtra("numFollowing", 0)
-        val channelList = appRepository.channelData.getItems()
-
-        Timber.d("Database currently contains ${appRepository.programData.itemCount} events. ")
-        Timber.d("Loading $numberOfProgramsToLoad events for each of the ${channelList.size} channels")
-
-        for (channel in channelList) {
-            val lastProgram = appRepository.programData.getLastItemByChannelId(channel.id)
-
-            val msgIntent = Intent()
-            msgIntent.putExtra("numFollowing", numberOfProgramsToLoad)
-            msgIntent.putExtra("useEventList", true)
-            msgIntent.putExtra("channelId", channel.id)
-            msgIntent.putExtra("channelName", channel.name)
+        val maxPendingRequests = intent.getIntExtra("maxPendingRequests", EpgEventFetcher.DEFAULT_MAX_PENDING_REQUESTS)
 
-            when {
-                lastProgram != null -> {
-                    Timber.d("Loading more programs for channel ${channel.name} from last program id ${lastProgram.eventId}")
-                    msgIntent.putExtra("eventId", lastProgram.nextEventId)
-                }
-                channel.nextEventId > 0 -> {
-                    Timber.d("Loading more programs for channel ${channel.name} starting from channel next event id ${channel.nextEventId}")
-                    msgIntent.putExtra("eventId", channel.nextEventId)
-                }
-                else -> {
-                    Timber.d("Loading more programs for channel ${channel.name} starting from channel event id ${channel.eventId}")
-                    msgIntent.putExtra("eventId", channel.eventId)
-                }
-            }
-            getEvents(msgIntent)
+        execService.execute {
+            EpgEventFetcher(currentHtspConnection, appRepository, connection.id, maxPendingRequests).fetch(numberOfProgramsToLoad)
         }
-
-        appRepository.programData.addItems(pendingEventOps)
-        Timber.d("Saved ${pendingEventOps.size} events for all channels. Database contains ${appRepository.programData.itemCount} events")
-        pendingEventOps.clear()
     }
 
     private fun getEpgQuery(intent: Intent) {
@@ -1483,7 +1590,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
                 } else if (response.containsKey("eventIds")) {
                     // List of eventIds that match the query
                     for (obj in response.getArrayList("eventIds")) {
-                        eventIdList.add(obj as Int)
+                        eventIdList.add((obj as Number).toInt())
                     }
                 }
             }
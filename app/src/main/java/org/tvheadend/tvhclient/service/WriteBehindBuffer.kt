@@ -0,0 +1,326 @@
+package org.tvheadend.tvhclient.service
+
+import org.tvheadend.data.entity.Channel
+import org.tvheadend.data.entity.Program
+import org.tvheadend.data.entity.Recording
+import org.tvheadend.tvhclient.repository.AppRepository
+import timber.log.Timber
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Collects the changes of the programs, recordings and channels that the server
+ * sends outside of the initial sync and saves them after a short delay. Changes
+ * of the same item within this delay are coalesced so that only its latest state
+ * is written. All changes of a flush are applied in one transaction, which causes
+ * one invalidation of the observed queries instead of one per change.
+ * <p>
+ * Until a change was saved, its pending state is returned instead of the
+ * one from the database, so that following updates are merged into it.
+ * This includes the changes of a flush whose transaction has not yet committed.
+ * Bursts of changes are saved as soon as the given number of items is pending.
+ * If saving fails, the changes are kept and saved again with the next flush,
+ * unless it failed the given number of times in a row.
+ *
+ * @param save Saves the changes of one flush in one transaction
+ */
+class WriteBehindBuffer(private val flushDelay: Long = DEFAULT_FLUSH_DELAY,
+                        private val maxPendingChanges: Int = DEFAULT_MAX_PENDING_CHANGES,
+                        private val maxFailedFlushes: Int = DEFAULT_MAX_FAILED_FLUSHES,
+                        private val save: (Changes) -> Unit) {
+
+    constructor(appRepository: AppRepository, connectionId: Int) : this(save = { changes ->
+        appRepository.miscData.runInTransactionSync {
+            if (changes.programs.isNotEmpty() || changes.removedProgramIds.isNotEmpty()) {
+                appRepository.programData.addAndRemoveItemsSync(changes.programs, changes.removedProgramIds, connectionId, false)
+            }
+            if (changes.recordings.isNotEmpty() || changes.removedRecordingIds.isNotEmpty()) {
+                appRepository.recordingData.addAndRemoveItemsSync(changes.recordings, changes.removedRecordingIds, connectionId)
+            }
+            if (changes.channels.isNotEmpty()) {
+                appRepository.channelData.updateItemsSync(changes.channels)
+            }
+        }
+    })
+
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+    private val lock = Any()
+
+    // Pending changes by id, a null value marks a removed item
+    private var programs = LinkedHashMap<Int, Program?>()
+    private var recordings = LinkedHashMap<Int, Recording?>()
+    private var channels = LinkedHashMap<Int, Channel>()
+
+    // Changes that are being saved, they are returned until the transaction has committed
+    private var inFlightPrograms: Map<Int, Program?> = emptyMap()
+    private var inFlightRecordings: Map<Int, Recording?> = emptyMap()
+    private var inFlightChannels: Map<Int, Channel> = emptyMap()
+
+    private var changeCount = 0
+    private var firstChangeTime: Long = 0
+    private var flushScheduled = false
+    private var flushRequested = false
+    private var failedFlushes = 0
+    private var closed = false
+
+    @Volatile
+    var flushCount: Long = 0
+        private set
+    @Volatile
+    var totalChangeCount: Long = 0
+        private set
+    @Volatile
+    var totalWriteCount: Long = 0
+        private set
+    @Volatile
+    var maxBatchSize = 0
+        private set
+    @Volatile
+    var lastFlushLatency: Long = 0
+        private set
+    @Volatile
+    var maxFlushLatency: Long = 0
+        private set
+    @Volatile
+    var failedFlushCount: Long = 0
+        private set
+    @Volatile
+    var droppedChangeCount: Long = 0
+        private set
+
+    fun putProgram(program: Program) {
+        addChange { programs[program.eventId] = program }
+    }
+
+    fun removeProgram(eventId: Int) {
+        addChange { programs[eventId] = null }
+    }
+
+    /**
+     * Returns a copy of the pending program or the one that is loaded
+     * if there is no pending change. Removed programs return null.
+     */
+    fun getProgram(eventId: Int, load: () -> Program?): Program? {
+        synchronized(lock) {
+            if (programs.containsKey(eventId)) {
+                return programs[eventId]?.copy()
+            }
+            if (inFlightPrograms.containsKey(eventId)) {
+                return inFlightPrograms[eventId]?.copy()
+            }
+        }
+        return load()
+    }
+
+    fun putRecording(recording: Recording) {
+        addChange { recordings[recording.id] = recording }
+    }
+
+    fun removeRecording(id: Int) {
+        addChange { recordings[id] = null }
+    }
+
+    /**
+     * Returns a copy of the pending recording or the one that is loaded
+     * if there is no pending change. Removed recordings return null.
+     */
+    fun getRecording(id: Int, load: () -> Recording?): Recording? {
+        synchronized(lock) {
+            if (recordings.containsKey(id)) {
+                return recordings[id]?.copy()
+            }
+            if (inFlightRecordings.containsKey(id)) {
+                return inFlightRecordings[id]?.copy()
+            }
+        }
+        return load()
+    }
+
+    fun putChannel(channel: Channel) {
+        addChange { channels[channel.id] = channel }
+    }
+
+    /**
+     * Returns a copy of the pending channel or the one that is loaded if there is no pending change
+     */
+    fun getChannel(id: Int, load: () -> Channel?): Channel? {
+        synchronized(lock) {
+            channels[id]?.let { return it.copy() }
+            inFlightChannels[id]?.let { return it.copy() }
+        }
+        return load()
+    }
+
+    private inline fun addChange(change: () -> Unit) {
+        synchronized(lock) {
+            if (closed) {
+                Timber.d("Buffer was closed, ignoring change")
+                return
+            }
+            change()
+            changeCount++
+            if (!flushScheduled) {
+                flushScheduled = true
+                firstChangeTime = System.currentTimeMillis()
+                executor.schedule({ flush() }, flushDelay, TimeUnit.MILLISECONDS)
+            }
+            // Save a burst of changes right away so that a flush does not get too large
+            if (!flushRequested && programs.size + recordings.size + channels.size >= maxPendingChanges) {
+                flushRequested = true
+                executor.execute { flush() }
+            }
+        }
+    }
+
+    /**
+     * Saves the remaining changes in the background and stops accepting new ones
+     */
+    fun close() {
+        synchronized(lock) {
+            if (closed) {
+                return
+            }
+            closed = true
+        }
+        executor.execute { flush() }
+        executor.shutdown()
+    }
+
+    private fun flush() {
+        val pendingPrograms: LinkedHashMap<Int, Program?>
+        val pendingRecordings: LinkedHashMap<Int, Recording?>
+        val pendingChannels: LinkedHashMap<Int, Channel>
+        val changes: Int
+        val changeTime: Long
+        synchronized(lock) {
+            flushScheduled = false
+            flushRequested = false
+            if (programs.isEmpty() && recordings.isEmpty() && channels.isEmpty()) {
+                return
+            }
+            pendingPrograms = programs
+            pendingRecordings = recordings
+            pendingChannels = channels
+            programs = LinkedHashMap()
+            recordings = LinkedHashMap()
+            channels = LinkedHashMap()
+            inFlightPrograms = pendingPrograms
+            inFlightRecordings = pendingRecordings
+            inFlightChannels = pendingChannels
+            changes = changeCount
+            changeCount = 0
+            changeTime = firstChangeTime
+        }
+
+        try {
+            save(Changes(
+                    pendingPrograms.values.filterNotNull(),
+                    pendingPrograms.filterValues { it == null }.keys.toList(),
+                    pendingRecordings.values.filterNotNull(),
+                    pendingRecordings.filterValues { it == null }.keys.toList(),
+                    ArrayList(pendingChannels.values)))
+        } catch (e: Exception) {
+            if (requeue(pendingPrograms, pendingRecordings, pendingChannels, changes, changeTime, e)) {
+                flush()
+            }
+            return
+        }
+
+        val batchSize = pendingPrograms.size + pendingRecordings.size + pendingChannels.size
+        val latency = System.currentTimeMillis() - changeTime
+        synchronized(lock) {
+            failedFlushes = 0
+            clearInFlightChanges()
+        }
+        flushCount++
+        totalChangeCount += changes
+        totalWriteCount += batchSize
+        lastFlushLatency = latency
+        maxBatchSize = maxBatchSize.coerceAtLeast(batchSize)
+        maxFlushLatency = maxFlushLatency.coerceAtLeast(latency)
+
+        Timber.d("Saved $batchSize of $changes changes after $latency ms, " +
+                "${pendingPrograms.size} programs, ${pendingRecordings.size} recordings, ${pendingChannels.size} channels")
+        if (flushCount % 20 == 0L) {
+            Timber.d(getSummary())
+        }
+    }
+
+    /**
+     * Puts the changes that could not be saved back in front of the ones that were
+     * added meanwhile. The newer changes of the same item replace the failed ones.
+     * The changes are dropped if saving failed too often in a row.
+     *
+     * @return True if the changes shall be saved again right away, because the buffer
+     * was closed and no further flush will be scheduled
+     */
+    private fun requeue(failedPrograms: LinkedHashMap<Int, Program?>,
+                        failedRecordings: LinkedHashMap<Int, Recording?>,
+                        failedChannels: LinkedHashMap<Int, Channel>,
+                        changes: Int, changeTime: Long, e: Exception): Boolean {
+        val batchSize = failedPrograms.size + failedRecordings.size + failedChannels.size
+        synchronized(lock) {
+            clearInFlightChanges()
+            failedFlushCount++
+            failedFlushes++
+            if (failedFlushes >= maxFailedFlushes) {
+                Timber.e(e, "Could not save $batchSize buffered changes $failedFlushes times, dropping them")
+                failedFlushes = 0
+                droppedChangeCount += changes
+                return false
+            }
+            Timber.e(e, "Could not save $batchSize buffered changes, trying again with the next flush")
+
+            failedPrograms.putAll(programs)
+            failedRecordings.putAll(recordings)
+            failedChannels.putAll(channels)
+            programs = failedPrograms
+            recordings = failedRecordings
+            channels = failedChannels
+            changeCount += changes
+            firstChangeTime = changeTime
+
+            if (closed) {
+                return true
+            }
+            if (!flushScheduled) {
+                flushScheduled = true
+                executor.schedule({ flush() }, flushDelay, TimeUnit.MILLISECONDS)
+            }
+            return false
+        }
+    }
+
+    private fun clearInFlightChanges() {
+        inFlightPrograms = emptyMap()
+        inFlightRecordings = emptyMap()
+        inFlightChannels = emptyMap()
+    }
+
+    /**
+     * Returns the number of flushes, the batch sizes and the latency
+     * from the first change of a batch until it was saved
+     */
+    fun getSummary(): String {
+        val averageBatchSize = if (flushCount > 0) totalWriteCount / flushCount else 0
+        return "Flushes: $flushCount, changes: $totalChangeCount, written: $totalWriteCount, " +
+                "average batch size: $averageBatchSize, max batch size: $maxBatchSize, " +
+                "last latency: $lastFlushLatency ms, max latency: $maxFlushLatency ms, " +
+                "failed flushes: $failedFlushCount, dropped changes: $droppedChangeCount"
+    }
+
+    /**
+     * The changes of one flush, the latest state of each changed item
+     */
+    class Changes(val programs: List<Program>,
+                  val removedProgramIds: List<Int>,
+                  val recordings: List<Recording>,
+                  val removedRecordingIds: List<Int>,
+                  val channels: List<Channel>)
+
+    companion object {
+        const val DEFAULT_FLUSH_DELAY = 500L
+        const val DEFAULT_MAX_PENDING_CHANGES = 1000
+        const val DEFAULT_MAX_FAILED_FLUSHES = 3
+    }
+}
@@ -0,0 +1,198 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Keeps the blocks of a file that were read from the server, keyed by the id of
+ * the opened file and the offset of the block. The least recently used blocks are
+ * evicted when the memory limit is reached. If a spill directory is given, evicted
+ * blocks are written to it and read back when they are needed again, up to the
+ * given number of bytes on disk. All methods are thread safe.
+ */
+final class HtspFileBlockCache {
+
+    private final int maxMemoryBlocks;
+    private final File spillDirectory;
+    private final long maxSpillBytes;
+
+    private final LinkedHashMap<Key, byte[]> memoryBlocks = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, File> spilledBlocks = new LinkedHashMap<>(16, 0.75f, true);
+    private long spilledBytes;
+
+    private long hitCount;
+    private long missCount;
+
+    private static final class Key {
+        final long fileId;
+        final long offset;
+
+        Key(long fileId, long offset) {
+            this.fileId = fileId;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return fileId == key.fileId && offset == key.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (fileId ^ (fileId >>> 32)) + (int) (offset ^ (offset >>> 32));
+        }
+    }
+
+    /**
+     * @param maxMemoryBlocks The number of blocks that are kept in memory
+     * @param spillDirectory  The directory for the evicted blocks or null to discard them
+     * @param maxSpillBytes   The maximum number of bytes that are kept in the spill directory
+     */
+    HtspFileBlockCache(int maxMemoryBlocks, @Nullable File spillDirectory, long maxSpillBytes) {
+        this.maxMemoryBlocks = maxMemoryBlocks;
+        this.spillDirectory = spillDirectory;
+        this.maxSpillBytes = maxSpillBytes;
+        deleteSpillFiles();
+    }
+
+    /**
+     * Returns the block at the given offset or null if it is not cached
+     */
+    @Nullable
+    synchronized byte[] get(long fileId, long offset) {
+        Key key = new Key(fileId, offset);
+        byte[] data = memoryBlocks.get(key);
+        if (data == null) {
+            File file = spilledBlocks.remove(key);
+            if (file != null) {
+                data = readSpillFile(file);
+                spilledBytes -= file.length();
+                if (!file.delete()) {
+                    Timber.d("Could not delete spilled block %s", file.getName());
+                }
+                if (data != null) {
+                    put(key, data);
+                }
+            }
+        }
+        if (data != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return data;
+    }
+
+    synchronized boolean contains(long fileId, long offset) {
+        Key key = new Key(fileId, offset);
+        return memoryBlocks.containsKey(key) || spilledBlocks.containsKey(key);
+    }
+
+    synchronized void put(long fileId, long offset, byte[] data) {
+        put(new Key(fileId, offset), data);
+    }
+
+    private void put(Key key, byte[] data) {
+        memoryBlocks.put(key, data);
+        Iterator<Map.Entry<Key, byte[]>> it = memoryBlocks.entrySet().iterator();
+        while (memoryBlocks.size() > maxMemoryBlocks && it.hasNext()) {
+            Map.Entry<Key, byte[]> eldest = it.next();
+            it.remove();
+            spill(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private void spill(Key key, byte[] data) {
+        if (spillDirectory == null || data.length > maxSpillBytes) {
+            return;
+        }
+        if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+            Timber.d("Could not create spill directory %s", spillDirectory.getAbsolutePath());
+            return;
+        }
+
+        File file = new File(spillDirectory, key.fileId + "_" + key.offset);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        } catch (IOException e) {
+            Timber.d(e, "Could not spill block to %s", file.getName());
+            return;
+        }
+        spilledBlocks.put(key, file);
+        spilledBytes += data.length;
+
+        // Remove the least recently used blocks from the disk
+        Iterator<File> it = spilledBlocks.values().iterator();
+        while (spilledBytes > maxSpillBytes && it.hasNext()) {
+            File eldest = it.next();
+            it.remove();
+            spilledBytes -= eldest.length();
+            if (!eldest.delete()) {
+                Timber.d("Could not delete spilled block %s", eldest.getName());
+            }
+        }
+    }
+
+    @Nullable
+    private static byte[] readSpillFile(File file) {
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int count = in.read(data, offset, data.length - offset);
+                if (count < 0) {
+                    return null;
+                }
+                offset += count;
+            }
+            return data;
+        } catch (IOException e) {
+            Timber.d(e, "Could not read spilled block %s", file.getName());
+            return null;
+        }
+    }
+
+    /**
+     * Removes all blocks from the memory and the spill directory
+     */
+    synchronized void clear() {
+        Timber.d("Clearing block cache, " + hitCount + " hits, " + missCount + " misses");
+        memoryBlocks.clear();
+        spilledBlocks.clear();
+        spilledBytes = 0;
+        deleteSpillFiles();
+    }
+
+    private void deleteSpillFiles() {
+        if (spillDirectory == null) {
+            return;
+        }
+        File[] files = spillDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                Timber.d("Could not delete spilled block %s", file.getName());
+            }
+        }
+    }
+}
@@ -2,51 +2,102 @@ package org.tvheadend.tvhclient.ui.features.playback.internal;
 
 import android.net.Uri;
 
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
 
-import org.jetbrains.annotations.NotNull;
 import org.tvheadend.htsp.HtspConnection;
 import org.tvheadend.htsp.HtspMessage;
-import org.tvheadend.htsp.HtspMessageListener;
-import org.tvheadend.htsp.HtspResponseListener;
+import org.tvheadend.htsp.HtspPayload;
+import org.tvheadend.htsp.HtspResponseFuture;
 
 import java.io.Closeable;
-import java.nio.ByteBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import timber.log.Timber;
 
-public class HtspFileInputStreamDataSource implements DataSource, Closeable, HtspMessageListener, HtspDataSourceInterface {
+/**
+ * Reads a recording from the server with fileRead requests. The file is read in
+ * blocks of a fixed size that are kept in a block cache, which is shared by all
+ * data sources of a factory. The player creates a new data source for every seek,
+ * so seeking back to a position that was already played is served from the cache.
+ * While a block is read, the following blocks are requested ahead of the playhead.
+ * The server answers the requests of the connection in order, so the number of
+ * requests in flight is limited and the deadline of a request grows with the
+ * number of requests that are answered before it.
+ */
+public class HtspFileInputStreamDataSource implements DataSource, Closeable, HtspDataSourceInterface {
 
     private static final AtomicInteger dataSourceCount = new AtomicInteger();
-    private static final AtomicInteger subscriptionCount = new AtomicInteger();
 
-    private final HtspConnection htspConnection;
+    // Time in milliseconds to wait for a response from the server,
+    // for each fileRead request that is answered before the awaited one
+    private static final long TIMEOUT = 5000;
+
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int READ_AHEAD_BLOCKS = 4;
+    private static final int MEMORY_CACHE_BLOCKS = 16;
+    private static final long DISK_CACHE_SIZE = 256 * 1024 * 1024;
+
+    private final Factory factory;
     private DataSpec dataSpec;
     private final int dataSourceNumber;
 
-    private ByteBuffer byteBuffer;
-
-    private String fileName;
-    private int fileId = -1;
-    private long fileSize = -1;
-    private long filePosition = 0;
+    private long position;
+    private long bytesRemaining;
 
     public static class Factory implements DataSource.Factory {
 
         private final HtspConnection htspConnection;
+        @Nullable
+        private final File spillDirectory;
+        private HtspFileBlockCache blockCache;
+        private final Map<Long, HtspResponseFuture> pendingReads = new HashMap<>();
         private HtspFileInputStreamDataSource dataSource;
 
+        private String fileName;
+        private int fileId = -1;
+        private long fileSize = -1;
+
         Factory(HtspConnection htspConnection) {
-            Timber.d("Initializing subscription data source factory");
+            this(htspConnection, null);
+        }
+
+        /**
+         * @param htspConnection The connection to the server
+         * @param spillDirectory The directory for blocks that are evicted
+         *                       from the memory or null to discard them
+         */
+        Factory(HtspConnection htspConnection, @Nullable File spillDirectory) {
+            Timber.d("Initializing file input data source factory");
             this.htspConnection = htspConnection;
+            this.spillDirectory = spillDirectory;
+        }
+
+        /**
+         * Returns the block cache. It is created when the first file is opened,
+         * because it cleans up the spill directory, which must not be done on
+         * the main thread where the factory is created.
+         */
+        private synchronized HtspFileBlockCache getBlockCache() {
+            if (blockCache == null) {
+                blockCache = new HtspFileBlockCache(MEMORY_CACHE_BLOCKS, spillDirectory, DISK_CACHE_SIZE);
+            }
+            return blockCache;
         }
 
         @Override
         public DataSource createDataSource() {
             Timber.d("Created new data source from factory");
-            dataSource = new HtspFileInputStreamDataSource(htspConnection);
+            dataSource = new HtspFileInputStreamDataSource(this);
             return dataSource;
         }
 
@@ -55,18 +106,207 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
             return dataSource;
         }
 
+        /**
+         * Closes the file on the server and removes the cached blocks
+         */
         void releaseCurrentDataSource() {
             Timber.d("Releasing data source");
-            if (dataSource != null) {
-                dataSource.release();
+            HtspFileBlockCache cache;
+            synchronized (this) {
+                for (HtspResponseFuture future : pendingReads.values()) {
+                    cancelRead(future);
+                }
+                pendingReads.clear();
+
+                if (fileId != -1) {
+                    HtspMessage request = new HtspMessage();
+                    request.put("method", "fileClose");
+                    request.put("id", fileId);
+                    htspConnection.sendMessage(request, null);
+                }
+                fileName = null;
+                fileId = -1;
+                fileSize = -1;
+                cache = blockCache;
+            }
+            if (cache != null) {
+                cache.clear();
+            }
+        }
+
+        /**
+         * Opens the file on the server unless it is open already. All data sources
+         * of the factory share the opened file so that they can share its blocks.
+         *
+         * @return The size of the file or -1 if it is not known
+         */
+        synchronized long openFile(String name) throws IOException {
+            getBlockCache();
+            if (fileId != -1 && name.equals(fileName)) {
+                return fileSize;
+            }
+
+            HtspMessage fileOpenRequest = new HtspMessage();
+            fileOpenRequest.put("method", "fileOpen");
+            fileOpenRequest.put("file", name);
+
+            HtspMessage response = waitForResponse(htspConnection.sendRequest(fileOpenRequest, TIMEOUT));
+            if (response.containsKey("error")) {
+                throw new IOException("Error opening file " + name + ": " + response.getString("error"));
+            }
+            fileName = name;
+            fileId = response.getInteger("id");
+            fileSize = response.getLong("size", -1);
+            Timber.d("Opened file " + fileName + ", id " + fileId + " with size " + fileSize);
+            return fileSize;
+        }
+
+        /**
+         * Returns the block that starts at the given offset, either from the cache or
+         * from the server. Requests the following blocks if they are not cached yet.
+         */
+        byte[] getBlock(long blockOffset) throws IOException {
+            HtspResponseFuture future;
+            HtspFileBlockCache cache;
+            long id;
+            synchronized (this) {
+                id = fileId;
+                cache = getBlockCache();
+                collectCompletedReads();
+                byte[] block = cache.get(id, blockOffset);
+                if (block != null) {
+                    readAhead(blockOffset);
+                    return block;
+                }
+                future = pendingReads.remove(blockOffset);
+                if (future == null) {
+                    future = sendFileRead(blockOffset);
+                }
+                readAhead(blockOffset);
+            }
+
+            byte[] block = getData(waitForResponse(future), blockOffset);
+            cache.put(id, blockOffset, block);
+            return block;
+        }
+
+        /**
+         * Makes sure that the blocks behind the given one are cached or requested.
+         * Requests for blocks outside of the read ahead range, which remain after
+         * a seek, are not cancelled, because the server answers them anyway. They
+         * are cached when they arrive and count towards the requests in flight, so
+         * that the requests after a seek are not queued behind too many of them.
+         */
+        private void readAhead(long blockOffset) {
+            long end = blockOffset + (READ_AHEAD_BLOCKS + 1) * (long) BLOCK_SIZE;
+            for (long offset = blockOffset + BLOCK_SIZE; offset < end; offset += BLOCK_SIZE) {
+                if (pendingReads.size() >= READ_AHEAD_BLOCKS || (fileSize != -1 && offset >= fileSize)) {
+                    break;
+                }
+                if (!pendingReads.containsKey(offset) && !getBlockCache().contains(fileId, offset)) {
+                    pendingReads.put(offset, sendFileRead(offset));
+                }
+            }
+        }
+
+        /**
+         * Moves the responses of the read ahead requests that arrived into the cache
+         */
+        private void collectCompletedReads() {
+            Iterator<Map.Entry<Long, HtspResponseFuture>> it = pendingReads.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, HtspResponseFuture> entry = it.next();
+                HtspResponseFuture future = entry.getValue();
+                if (!future.isDone()) {
+                    continue;
+                }
+                it.remove();
+                try {
+                    HtspMessage response = future.get();
+                    if (!response.containsKey("error")) {
+                        getBlockCache().put(fileId, entry.getKey(), getData(response, entry.getKey()));
+                    }
+                } catch (Exception e) {
+                    Timber.d(e, "Discarding read ahead block at offset %s", entry.getKey());
+                }
+            }
+        }
+
+        /**
+         * Sends the request for the block at the given offset. The read ahead
+         * requests that are in flight are answered first, so each of them
+         * extends the deadline of this request.
+         */
+        private HtspResponseFuture sendFileRead(long offset) {
+            long size = BLOCK_SIZE;
+            if (fileSize != -1) {
+                // Make sure we don't overrun the file
+                size = Math.min(size, fileSize - offset);
+            }
+
+            HtspMessage request = new HtspMessage();
+            request.put("method", "fileRead");
+            request.put("id", fileId);
+            request.put("size", size);
+            request.put("offset", offset);
+
+            Timber.d("Fetching " + size + " bytes of file at offset " + offset);
+            return htspConnection.sendRequest(request, TIMEOUT * (1 + pendingReads.size()));
+        }
+
+        /**
+         * Cancels the request or, if its response was already received, releases its data
+         */
+        private static void cancelRead(HtspResponseFuture future) {
+            if (future.cancel(false) || future.isCancelled()) {
+                return;
+            }
+            try {
+                HtspPayload data = future.get().getPayload("data");
+                if (data != null) {
+                    data.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Copies the data of the response into a block of its exact size for the cache
+         * and hands the array it was decoded into back to the pool of the connection
+         */
+        private static byte[] getData(HtspMessage response, long offset) throws IOException {
+            if (response.containsKey("error")) {
+                throw new IOException("Error reading file at " + offset + ": " + response.getString("error"));
+            }
+            HtspPayload data = response.getPayload("data");
+            if (data == null) {
+                return new byte[0];
+            }
+            byte[] block = new byte[data.getLength()];
+            System.arraycopy(data.getData(), 0, block, 0, block.length);
+            data.release();
+            return block;
+        }
+
+        /**
+         * Waits for the response. The deadline of the request limits the waiting
+         * time, after it passed the response contains an error.
+         */
+        private static HtspMessage waitForResponse(HtspResponseFuture future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                future.cancel(false);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Waiting for the response was interrupted");
             }
         }
     }
 
-    private HtspFileInputStreamDataSource(HtspConnection htspConnection) {
+    private HtspFileInputStreamDataSource(Factory factory) {
         Timber.d("Initializing file input data source");
-        this.htspConnection = htspConnection;
-        this.htspConnection.addMessageListener(this);
+        this.factory = factory;
         this.dataSourceNumber = dataSourceCount.incrementAndGet();
     }
 
@@ -101,100 +341,47 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
     }
 
     @Override
-    protected void finalize() throws Throwable {
-        Timber.d("Finalizing file input data source");
-        release();
-        super.finalize();
-    }
-
-    @Override
-    public long open(DataSpec dataSpec) {
-        Timber.d("Opening file input data source " + dataSourceNumber + ")");
+    public long open(DataSpec dataSpec) throws IOException {
+        Timber.d("Opening file input data source " + dataSourceNumber + " at position " + dataSpec.position);
         this.dataSpec = dataSpec;
 
-        fileName = "dvrfile" + dataSpec.uri.getPath();
-
-        HtspMessage fileReadRequest = new HtspMessage();
-        fileReadRequest.put("method", "fileRead");
-        fileReadRequest.put("size", 1024000);
-
-        final HtspResponseListener fileReadHandler = response -> {
-            if (response.containsKey("error")) {
-                String error = response.getString("error");
-                Timber.d("Error reading file at offset 0: %s", error);
-
-            } else {
-                final byte[] data = response.getByteArray("data");
-                Timber.d("Fetched " + data.length + " bytes of file at offset 0");
-                filePosition += data.length;
-                byteBuffer = ByteBuffer.wrap(data);
-            }
-            synchronized (fileReadRequest) {
-                Timber.d("Notifying fileReadRequest");
-                fileReadRequest.notify();
-            }
-        };
-
-        HtspMessage fileOpenRequest = new HtspMessage();
-        fileOpenRequest.put("method", "fileOpen");
-        fileOpenRequest.put("file", fileName);
-        htspConnection.sendMessage(fileOpenRequest, response -> {
-            if (response.containsKey("error")) {
-                String error = response.getString("error");
-                Timber.d("Error opening file: %s", error);
-
-            } else {
-                Timber.d("Opening file: %s", fileName);
-                fileId = response.getInteger("id");
-                if (response.containsKey("size")) {
-                    fileSize = response.getLong("size");
-                    Timber.v("Opened file " + fileName + " of size " + fileSize + " successfully");
-                } else {
-                    Timber.v("Opened file " + fileName + " successfully");
-                }
-                Timber.d("Sending file read request for file id %s", fileId);
-                fileReadRequest.put("id", fileId);
-                htspConnection.sendMessage(fileReadRequest, fileReadHandler);
-            }
-        });
-
-        Timber.d("Waiting for fileReadRequest");
-        synchronized (fileReadRequest) {
-            try {
-                fileReadRequest.wait(5000);
-            } catch (InterruptedException e) {
-                Timber.d(e, "Waiting for fileReadRequest message was interrupted");
-            }
+        long fileSize = factory.openFile("dvrfile" + dataSpec.uri.getPath());
+        position = dataSpec.position;
+        if (dataSpec.length != C.LENGTH_UNSET) {
+            bytesRemaining = dataSpec.length;
+        } else if (fileSize != -1) {
+            bytesRemaining = Math.max(0, fileSize - position);
+        } else {
+            bytesRemaining = C.LENGTH_UNSET;
         }
-
-        Timber.d("Opened file " + fileName + ", id " + fileId + " with size " + fileSize);
-        return fileSize;
+        return bytesRemaining;
     }
 
     @Override
-    public int read(byte[] bytes, int offset, int readLength) {
-
-        // If we've reached the end of the file, we're done :)
-        if (fileSize == filePosition && !byteBuffer.hasRemaining()) {
-            return -1;
+    public int read(byte[] bytes, int offset, int readLength) throws IOException {
+        if (readLength == 0) {
+            return 0;
         }
-
-        sendFileRead(filePosition);
-
-        if (!byteBuffer.hasRemaining() && fileSize == -1) {
-            // If we still don't have any data, and we
-            // don't have a known size, then we're done.
-            return -1;
-
-        } else if (!byteBuffer.hasRemaining()) {
-            // If we don't have data here, something went wrong
-            Timber.d("Failed to read data for %s", fileName);
+        if (bytesRemaining == 0) {
+            return C.RESULT_END_OF_INPUT;
         }
 
-        int startPos = byteBuffer.position();
+        long blockOffset = position - position % BLOCK_SIZE;
+        byte[] block = factory.getBlock(blockOffset);
+        int blockPosition = (int) (position - blockOffset);
+        if (blockPosition >= block.length) {
+            // The server returned less than a full block, so the end of the file was reached
+            return C.RESULT_END_OF_INPUT;
+        }
 
-        byteBuffer.get(bytes, offset, Math.min(readLength, byteBuffer.remaining()));
-        return byteBuffer.position() - startPos;
+        int count = Math.min(readLength, block.length - blockPosition);
+        if (bytesRemaining != C.LENGTH_UNSET) {
+            count = (int) Math.min(count, bytesRemaining);
+            bytesRemaining -= count;
+        }
+        System.arraycopy(block, blockPosition, bytes, offset, count);
+        position += count;
+        return count;
     }
 
     @Override
@@ -210,68 +397,4 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
     public void close() {
         Timber.d("Closing file input data source " + dataSourceNumber + ")");
     }
-
-    @Override
-    public void onMessage(@NotNull HtspMessage response) {
-
-    }
-
-    // HtspDataSource Methods
-    private void release() {
-        Timber.d("Releasing file input data source " + dataSourceNumber + ")");
-
-        HtspMessage request = new HtspMessage();
-        request.put("method", "fileClose");
-        request.put("id", fileId);
-        htspConnection.sendMessage(request, null);
-        htspConnection.removeMessageListener(this);
-    }
-
-    private void sendFileRead(long offset) {
-        Timber.d("Sending message to read file from offset %s", offset);
-        if (byteBuffer != null && byteBuffer.hasRemaining()) {
-            Timber.d("Buffer is not null and has elements remaining");
-            return;
-        }
-
-        long size = 1024000;
-        if (fileSize != -1) {
-            // Make sure we don't overrun the file
-            if (offset + size > fileSize) {
-                size = fileSize - offset;
-            }
-        }
-
-        HtspMessage request = new HtspMessage();
-        request.put("method", "fileRead");
-        request.put("id", fileId);
-        request.put("size", size);
-        request.put("offset", offset);
-
-        Timber.d("Fetching " + size + " bytes of file at offset " + offset);
-        htspConnection.sendMessage(request, response -> {
-            if (response.containsKey("error")) {
-                String error = response.getString("error");
-                Timber.d("Error reading file at " + offset + ": " + error);
-
-            } else {
-                final byte[] data = response.getByteArray("data");
-                Timber.d("Fetched " + data.length + " bytes of file at offset " + offset);
-                filePosition += data.length;
-                byteBuffer = ByteBuffer.wrap(data);
-            }
-            synchronized (request) {
-                request.notify();
-            }
-        });
-
-        Timber.d("Waiting for file read request");
-        synchronized (request) {
-            try {
-                request.wait(5000);
-            } catch (InterruptedException e) {
-                Timber.d(e, "Waiting for fileReadRequest message was interrupted.");
-            }
-        }
-    }
 }
@@ -0,0 +1,165 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A ring buffer that passes the frames of a subscription from the thread that
+ * receives the messages to the thread of the player that reads them. It supports
+ * exactly one writing and one reading thread. The data is copied in and out without
+ * locking and without moving the unread data. The positions of both sides are only
+ * ever increased, the index in the array is the position modulo the capacity.
+ * <p>
+ * A frame is only written when it fits completely into the free space, otherwise
+ * it is dropped and counted, so the reader never sees a partial frame. The reader
+ * can wait for new data, a waiting reader is woken up as soon as a frame was written.
+ */
+final class HtspPacketRingBuffer {
+
+    private final byte[] data;
+    private final int capacity;
+
+    // Written by the producer only, read by both
+    private volatile long writePosition;
+    // Written by the consumer only, read by both
+    private volatile long readPosition;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition();
+    private volatile boolean readerWaiting;
+
+    private volatile long droppedFrames;
+    private volatile long droppedBytes;
+
+    HtspPacketRingBuffer(int capacity) {
+        this.capacity = capacity;
+        this.data = new byte[capacity];
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of bytes that were written but not yet read
+     */
+    int size() {
+        return (int) (writePosition - readPosition);
+    }
+
+    boolean isEmpty() {
+        return writePosition == readPosition;
+    }
+
+    /**
+     * Returns the number of frames that were dropped because the buffer was full
+     */
+    long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * Writes the frame that consists of the given header and payload.
+     * Must only be called from the producing thread.
+     *
+     * @return False if the frame did not fit into the free space and was dropped
+     */
+    boolean write(byte[] header, int headerLength, byte[] payload, int payloadLength) {
+        int length = headerLength + payloadLength;
+        if (capacity - size() < length) {
+            droppedFrames++;
+            droppedBytes += length;
+            return false;
+        }
+
+        long position = writePosition;
+        copyIn(position, header, headerLength);
+        copyIn(position + headerLength, payload, payloadLength);
+        // Publish the complete frame at once
+        writePosition = position + length;
+
+        if (readerWaiting) {
+            lock.lock();
+            try {
+                dataAvailable.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    boolean write(byte[] frame, int length) {
+        return write(frame, length, frame, 0);
+    }
+
+    private void copyIn(long position, byte[] src, int length) {
+        int index = (int) (position % capacity);
+        int count = Math.min(length, capacity - index);
+        System.arraycopy(src, 0, data, index, count);
+        if (count < length) {
+            System.arraycopy(src, count, data, 0, length - count);
+        }
+    }
+
+    /**
+     * Reads up to the given number of bytes without waiting.
+     * Must only be called from the consuming thread.
+     *
+     * @return The number of bytes that were read, 0 if the buffer is empty
+     */
+    int read(byte[] dst, int offset, int length) {
+        long position = readPosition;
+        int count = (int) Math.min(length, writePosition - position);
+        int index = (int) (position % capacity);
+        int first = Math.min(count, capacity - index);
+        System.arraycopy(data, index, dst, offset, first);
+        if (first < count) {
+            System.arraycopy(data, 0, dst, offset + first, count - first);
+        }
+        readPosition = position + count;
+        return count;
+    }
+
+    /**
+     * Discards all data that was written so far.
+     * Must only be called from the consuming thread.
+     */
+    void clear() {
+        readPosition = writePosition;
+    }
+
+    /**
+     * Waits until data is available, the timeout has passed or {@link #wakeUp()} was called.
+     * Must only be called from the consuming thread.
+     */
+    void awaitData(long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lock();
+        try {
+            readerWaiting = true;
+            if (isEmpty()) {
+                dataAvailable.await(timeout, unit);
+            }
+        } finally {
+            readerWaiting = false;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up the reader if it is waiting, for example when the subscription was stopped
+     */
+    void wakeUp() {
+        lock.lock();
+        try {
+            dataAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
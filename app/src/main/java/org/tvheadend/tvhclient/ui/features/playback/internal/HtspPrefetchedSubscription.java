@@ -0,0 +1,243 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.jetbrains.annotations.NotNull;
+import org.tvheadend.htsp.HtspConnection;
+import org.tvheadend.htsp.HtspMessage;
+import org.tvheadend.htsp.HtspMessageListener;
+import org.tvheadend.htsp.HtspPayload;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * A subscription to a channel that is not played yet, but probably will be soon,
+ * like the channels next to the one that is played. It is subscribed with a low
+ * weight, so the server can take its tuner away for any other subscription or
+ * recording. The subscriptionStart message and the packets since the last video
+ * key frame are kept, so a data source that takes over the subscription can start
+ * decoding immediately instead of waiting for the tuner and the next key frame.
+ * The payloads of the packets that are not kept or not handed over are released.
+ */
+final class HtspPrefetchedSubscription implements HtspMessageListener {
+
+    // The weight of the prefetched subscriptions and the weight
+    // the server uses for HTSP subscriptions that do not have one
+    private static final int PREFETCH_WEIGHT = 10;
+    private static final int DEFAULT_WEIGHT = 150;
+
+    // The maximum number of payload bytes that are kept while waiting for the next key frame
+    private static final int MAX_CACHED_BYTES = 4 * 1024 * 1024;
+
+    private static final Set<String> VIDEO_STREAM_TYPES = new HashSet<>();
+
+    static {
+        VIDEO_STREAM_TYPES.add("H264");
+        VIDEO_STREAM_TYPES.add("HEVC");
+        VIDEO_STREAM_TYPES.add("MPEG2VIDEO");
+    }
+
+    private final HtspConnection htspConnection;
+    private final int subscriptionId;
+    private final int channelId;
+
+    private HtspMessage subscriptionStart;
+    private String streamLayout;
+    private final Set<Integer> videoStreams = new HashSet<>();
+    private final List<HtspMessage> cachedPackets = new ArrayList<>();
+    private int cachedBytes;
+    private boolean waitingForKeyFrame = true;
+    private boolean stopped;
+
+    private HtspMessageListener target;
+
+    HtspPrefetchedSubscription(@NonNull HtspConnection htspConnection, int subscriptionId, int channelId,
+                               @Nullable String streamProfile) {
+        this.htspConnection = htspConnection;
+        this.subscriptionId = subscriptionId;
+        this.channelId = channelId;
+
+        Timber.d("Prefetching channel " + channelId + " with subscription id " + subscriptionId);
+        htspConnection.addSubscriptionListener(subscriptionId, this);
+
+        HtspMessage request = new HtspMessage();
+        request.setMethod("subscribe");
+        request.put("subscriptionId", subscriptionId);
+        request.put("channelId", channelId);
+        request.put("weight", PREFETCH_WEIGHT);
+        if (!TextUtils.isEmpty(streamProfile)) {
+            request.put("profile", streamProfile);
+        }
+        htspConnection.sendMessage(request, null);
+    }
+
+    int getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    int getChannelId() {
+        return channelId;
+    }
+
+    /**
+     * Returns true if the server started the subscription and did not stop it again
+     */
+    synchronized boolean isStarted() {
+        return subscriptionStart != null && !stopped;
+    }
+
+    /**
+     * Returns true if the server stopped the subscription, for example because
+     * the tuner was needed for a subscription or recording with a higher weight
+     */
+    synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Returns the types of the streams of the subscription or null if it was not started yet
+     */
+    @Nullable
+    synchronized String getStreamLayout() {
+        return streamLayout;
+    }
+
+    static boolean isVideoStreamType(@Nullable String type) {
+        return VIDEO_STREAM_TYPES.contains(type);
+    }
+
+    /**
+     * Returns the index and the type of all streams of the subscriptionStart
+     * message. Two subscriptions with the same layout can share the tracks
+     * and the decoders of the player.
+     */
+    @NonNull
+    static String getStreamLayout(@NonNull HtspMessage subscriptionStart) {
+        StringBuilder sb = new StringBuilder();
+        for (Object obj : subscriptionStart.getList("streams")) {
+            HtspMessage stream = (HtspMessage) obj;
+            sb.append(stream.getInteger("index")).append(':').append(stream.getString("type")).append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Passes the subscription on to the given listener. The subscriptionStart message
+     * and the cached packets are delivered immediately, all following messages as
+     * they arrive. The weight of the subscription is raised to the normal weight.
+     */
+    synchronized void handOver(@NonNull HtspMessageListener listener) {
+        Timber.d("Handing over prefetched subscription " + subscriptionId + " of channel " + channelId
+                + " with " + cachedPackets.size() + " cached packets");
+        target = listener;
+        if (subscriptionStart != null) {
+            listener.onMessage(subscriptionStart);
+        }
+        for (HtspMessage packet : cachedPackets) {
+            listener.onMessage(packet);
+        }
+        cachedPackets.clear();
+        cachedBytes = 0;
+
+        HtspMessage request = new HtspMessage();
+        request.setMethod("subscriptionChangeWeight");
+        request.put("subscriptionId", subscriptionId);
+        request.put("weight", DEFAULT_WEIGHT);
+        htspConnection.sendMessage(request, null);
+    }
+
+    @Override
+    public synchronized void onMessage(@NotNull HtspMessage message) {
+        if (target != null) {
+            target.onMessage(message);
+            return;
+        }
+
+        String method = message.getMethod();
+        if ("muxpkt".equals(method)) {
+            cachePacket(message);
+        } else if ("subscriptionStart".equals(method)) {
+            subscriptionStart = message;
+            streamLayout = getStreamLayout(message);
+            videoStreams.clear();
+            for (Object obj : message.getList("streams")) {
+                HtspMessage stream = (HtspMessage) obj;
+                if (isVideoStreamType(stream.getString("type"))) {
+                    videoStreams.add(stream.getInteger("index"));
+                }
+            }
+        } else if ("subscriptionStop".equals(method)) {
+            Timber.d("Prefetched subscription " + subscriptionId + " of channel " + channelId + " was stopped");
+            stopped = true;
+            clearCachedPackets();
+        }
+    }
+
+    /**
+     * Keeps the packets since the last key frame of the video stream. Without
+     * a video stream, only the last audio packets are needed to start playing.
+     */
+    private void cachePacket(HtspMessage message) {
+        boolean isVideo = videoStreams.contains(message.getInteger("stream", -1));
+        if (isVideo || videoStreams.isEmpty()) {
+            int frameType = message.getInteger("frametype", -1);
+            if (frameType == -1 || frameType == 'I') {
+                clearCachedPackets();
+                waitingForKeyFrame = false;
+            }
+        }
+
+        HtspPayload payload = message.getPayload("payload");
+        if (waitingForKeyFrame) {
+            releasePayload(payload);
+            return;
+        }
+
+        cachedBytes += payload != null ? payload.getLength() : 0;
+        if (cachedBytes > MAX_CACHED_BYTES) {
+            // The key frames are too far apart, start again with the next one
+            releasePayload(payload);
+            clearCachedPackets();
+            waitingForKeyFrame = true;
+            return;
+        }
+        cachedPackets.add(message);
+    }
+
+    private void clearCachedPackets() {
+        for (HtspMessage packet : cachedPackets) {
+            releasePayload(packet.getPayload("payload"));
+        }
+        cachedPackets.clear();
+        cachedBytes = 0;
+    }
+
+    private static void releasePayload(@Nullable HtspPayload payload) {
+        if (payload != null) {
+            payload.release();
+        }
+    }
+
+    /**
+     * Stops the subscription on the server
+     */
+    synchronized void release() {
+        Timber.d("Releasing prefetched subscription " + subscriptionId + " of channel " + channelId);
+        target = null;
+        clearCachedPackets();
+
+        HtspMessage request = new HtspMessage();
+        request.setMethod("unsubscribe");
+        request.put("subscriptionId", subscriptionId);
+        htspConnection.sendMessage(request, null);
+        htspConnection.removeMessageListener(this);
+    }
+}
@@ -0,0 +1,171 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import androidx.annotation.NonNull;
+
+import org.tvheadend.htsp.HtspMessage;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * Decides which packets of a subscription are dropped when the player does not
+ * read them as fast as they arrive. Dropping arbitrary packets once the buffer is
+ * full corrupts the picture until the next key frame, so video frames are dropped
+ * by their frame type before that happens.
+ * <p>
+ * When the buffer is filled above the first level, B frames are dropped, which no
+ * other frame depends on. Above the second level, the P frames and therefore the
+ * rest of the group of pictures are dropped as well until the next I frame. I frames
+ * and the packets of other streams are only lost if they do not fit anymore. Both
+ * levels are left again when the buffer was drained below the recovery level.
+ * <p>
+ * The queueStatus messages of the server show how long the packets wait on the
+ * server before they are sent. The subscription is considered congested if either
+ * this delay or the buffer grow too much, so that it can be slowed down.
+ */
+final class HtspSubscriptionBackpressure {
+
+    // Levels of the buffer in percent of its capacity
+    private static final int DROP_B_FRAMES_LEVEL = 60;
+    private static final int DROP_P_FRAMES_LEVEL = 85;
+    private static final int RECOVERY_LEVEL = 40;
+
+    // Time span in microseconds of the packets queued on the server above which the subscription is congested
+    private static final long MAX_QUEUE_DELAY = 2000000;
+
+    private static final int FRAME_TYPE_I = 'I';
+    private static final int FRAME_TYPE_P = 'P';
+    private static final int FRAME_TYPE_B = 'B';
+
+    private final int capacity;
+    private final Set<Integer> videoStreams = new HashSet<>();
+
+    private boolean droppingBFrames;
+    private boolean waitingForKeyFrame;
+    private boolean congested;
+
+    private long droppedBFrames;
+    private long droppedPFrames;
+
+    private volatile long queueDelay;
+    private long serverDrops;
+
+    /**
+     * @param capacity The size of the buffer in bytes
+     */
+    HtspSubscriptionBackpressure(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Takes the video streams from the subscriptionStart message
+     */
+    void setStreams(@NonNull HtspMessage subscriptionStart) {
+        videoStreams.clear();
+        for (Object obj : subscriptionStart.getList("streams")) {
+            HtspMessage stream = (HtspMessage) obj;
+            if (HtspPrefetchedSubscription.isVideoStreamType(stream.getString("type"))) {
+                videoStreams.add(stream.getInteger("index"));
+            }
+        }
+        droppingBFrames = false;
+        waitingForKeyFrame = false;
+    }
+
+    /**
+     * Returns false if the packet shall be dropped to keep room for the following key frames
+     *
+     * @param streamIndex   The index of the stream of the packet
+     * @param frameType     The frame type of the packet or -1 if it is not known
+     * @param bufferedBytes The number of bytes that are currently in the buffer
+     */
+    boolean accept(int streamIndex, int frameType, int bufferedBytes) {
+        if (!videoStreams.contains(streamIndex)) {
+            return true;
+        }
+
+        int level = getLevel(bufferedBytes);
+        if (droppingBFrames && level < RECOVERY_LEVEL) {
+            Timber.d("Buffer level dropped to " + level + "%, not dropping frames anymore");
+            droppingBFrames = false;
+        } else if (!droppingBFrames && level >= DROP_B_FRAMES_LEVEL) {
+            Timber.d("Buffer level reached " + level + "%, dropping B frames");
+            droppingBFrames = true;
+        }
+
+        if (frameType == FRAME_TYPE_I || frameType == -1) {
+            waitingForKeyFrame = false;
+            return true;
+        }
+        if (waitingForKeyFrame) {
+            countDroppedFrame(frameType);
+            return false;
+        }
+        if (frameType == FRAME_TYPE_P && level >= DROP_P_FRAMES_LEVEL) {
+            Timber.d("Buffer level reached " + level + "%, dropping the frames until the next I frame");
+            waitingForKeyFrame = true;
+            countDroppedFrame(frameType);
+            return false;
+        }
+        if (frameType == FRAME_TYPE_B && droppingBFrames) {
+            countDroppedFrame(frameType);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called when a packet that was accepted did not fit into the buffer
+     */
+    void onOverflow(int streamIndex, int frameType) {
+        if (videoStreams.contains(streamIndex) && frameType != FRAME_TYPE_B) {
+            // The following frames depend on the lost one
+            waitingForKeyFrame = true;
+        }
+    }
+
+    private void countDroppedFrame(int frameType) {
+        if (frameType == FRAME_TYPE_B) {
+            droppedBFrames++;
+        } else {
+            droppedPFrames++;
+        }
+        long dropped = droppedBFrames + droppedPFrames;
+        if (dropped == 1 || dropped % 100 == 0) {
+            Timber.d("Dropped " + droppedBFrames + " B frames and " + droppedPFrames + " P frames so far");
+        }
+    }
+
+    /**
+     * Takes the delay and the number of dropped packets on the server from the queueStatus message
+     */
+    void onQueueStatus(@NonNull HtspMessage message) {
+        queueDelay = message.getLong("delay", 0);
+        long drops = message.getLong("Bdrops", 0) + message.getLong("Pdrops", 0) + message.getLong("Idrops", 0);
+        if (drops > serverDrops) {
+            Timber.d("Server dropped " + (drops - serverDrops) + " packets, queue delay is " + queueDelay + " us");
+        }
+        serverDrops = drops;
+    }
+
+    /**
+     * Returns true while the subscription should be slowed down, which is the case
+     * from the level at which P frames are dropped or when the packets wait too long
+     * on the server, until both have recovered
+     */
+    boolean isCongested(int bufferedBytes) {
+        int level = getLevel(bufferedBytes);
+        if (congested && level < RECOVERY_LEVEL && queueDelay < MAX_QUEUE_DELAY / 2) {
+            congested = false;
+        } else if (!congested && (level >= DROP_P_FRAMES_LEVEL || queueDelay > MAX_QUEUE_DELAY)) {
+            congested = true;
+        }
+        return congested;
+    }
+
+    private int getLevel(int bufferedBytes) {
+        return (int) (bufferedBytes * 100L / capacity);
+    }
+}
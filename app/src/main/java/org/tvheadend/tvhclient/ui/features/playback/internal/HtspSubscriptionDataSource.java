@@ -21,8 +21,10 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.text.TextUtils;
+import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.preference.PreferenceManager;
 
 import com.google.android.exoplayer2.C;
@@ -33,17 +35,16 @@ import org.jetbrains.annotations.NotNull;
 import org.tvheadend.htsp.HtspConnection;
 import org.tvheadend.htsp.HtspMessage;
 import org.tvheadend.htsp.HtspMessageListener;
+import org.tvheadend.htsp.HtspPayload;
 import org.tvheadend.tvhclient.R;
 import org.tvheadend.tvhclient.service.HtspService;
+import org.tvheadend.tvhclient.ui.features.playback.internal.ZapLatencyTracker.Milestone;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
 
 import timber.log.Timber;
 
@@ -53,38 +54,60 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
     private static final AtomicInteger subscriptionCount = new AtomicInteger();
 
     private static final int BUFFER_SIZE = 10 * 1024 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    // Time in milliseconds after which a waiting read checks if the subscription was stopped
+    private static final long READ_WAIT_TIMEOUT = 1000;
+    // Speed in percent at which a congested subscription is delivered from the timeshift buffer
+    private static final int THROTTLED_SPEED = 50;
     static final byte[] HEADER = new byte[]{0, 1, 0, 1, 0, 1, 0, 1};
 
     private final Context context;
     private final HtspConnection htspConnection;
     private final String streamProfile;
+    private final Factory factory;
+    private final ZapLatencyTracker zapLatencyTracker;
     private DataSpec dataSpec;
     private final int dataSourceNumber;
-    private final int subscriptionId;
-    private ByteBuffer byteBuffer;
+    private volatile int subscriptionId;
+    private HtspPacketRingBuffer ringBuffer;
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(HtspSubscriptionFrame.HEADER_SIZE);
+    private final HtspSubscriptionBackpressure backpressure = new HtspSubscriptionBackpressure(BUFFER_SIZE);
     private int timeshiftPeriod = 0;
-    private final ReentrantLock lock = new ReentrantLock();
-    private boolean subscriptionStarted = false;
+    private volatile int availableTimeshiftPeriod = 0;
+    private volatile boolean throttled = false;
+    private volatile boolean paused = false;
+    private volatile boolean subscriptionStarted = false;
     private boolean isSubscribed = false;
 
+    // The types of the streams of the current subscription
+    private volatile String streamLayout;
+    // The prefetched subscription that was taken over and the one that will be taken over on the next open
+    private volatile HtspPrefetchedSubscription prefetchedSubscription;
+    private volatile HtspPrefetchedSubscription pendingSubscription;
+
     public static class Factory implements DataSource.Factory {
 
         private final Context context;
         private final HtspConnection htspConnection;
         private final String streamProfile;
+        private final ZapLatencyTracker zapLatencyTracker;
+        // The prefetched subscriptions by their channel id
+        private final SparseArray<HtspPrefetchedSubscription> prefetchedSubscriptions = new SparseArray<>();
         private HtspSubscriptionDataSource dataSource;
 
-        Factory(Context context, HtspConnection htspConnection, String streamProfile) {
+        Factory(Context context, HtspConnection htspConnection, String streamProfile, ZapLatencyTracker zapLatencyTracker) {
             Timber.d("Initializing subscription data source factory");
             this.context = context;
             this.htspConnection = htspConnection;
             this.streamProfile = streamProfile;
+            this.zapLatencyTracker = zapLatencyTracker;
         }
 
         @Override
         public DataSource createDataSource() {
             Timber.d("Created new data source from factory");
-            dataSource = new HtspSubscriptionDataSource(context, htspConnection, streamProfile);
+            dataSource = new HtspSubscriptionDataSource(context, htspConnection, streamProfile, this);
             return dataSource;
         }
 
@@ -99,14 +122,96 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
                 dataSource.release();
             }
         }
+
+        /**
+         * Subscribes to the given channels with a low weight, so that switching to
+         * one of them does not have to wait for the tuner and the next key frame.
+         * The prefetched subscriptions of all other channels are stopped.
+         */
+        synchronized void prefetchChannels(int... channelIds) {
+            SparseArray<HtspPrefetchedSubscription> subscriptions = new SparseArray<>();
+            for (int channelId : channelIds) {
+                if (subscriptions.get(channelId) != null) {
+                    continue;
+                }
+                HtspPrefetchedSubscription subscription = prefetchedSubscriptions.get(channelId);
+                prefetchedSubscriptions.remove(channelId);
+                if (subscription == null || subscription.isStopped()) {
+                    if (subscription != null) {
+                        subscription.release();
+                    }
+                    subscription = new HtspPrefetchedSubscription(htspConnection,
+                            subscriptionCount.incrementAndGet(), channelId, streamProfile);
+                }
+                subscriptions.put(channelId, subscription);
+            }
+            releasePrefetchedSubscriptions();
+            prefetchedSubscriptions.clear();
+            for (int i = 0; i < subscriptions.size(); i++) {
+                prefetchedSubscriptions.put(subscriptions.keyAt(i), subscriptions.valueAt(i));
+            }
+        }
+
+        /**
+         * Returns the prefetched subscription of the channel and removes it
+         * from the factory, or null if the channel was not prefetched
+         */
+        @Nullable
+        synchronized HtspPrefetchedSubscription takePrefetchedSubscription(int channelId) {
+            HtspPrefetchedSubscription subscription = prefetchedSubscriptions.get(channelId);
+            if (subscription == null) {
+                return null;
+            }
+            prefetchedSubscriptions.remove(channelId);
+            if (subscription.isStopped()) {
+                subscription.release();
+                return null;
+            }
+            return subscription;
+        }
+
+        /**
+         * Switches the current data source to the prefetched subscription of the channel.
+         * This is only possible if both subscriptions have the same streams, so that the
+         * player can keep its tracks and decoders. The player has to seek afterwards to
+         * drop the buffered data of the previous channel.
+         *
+         * @return False if the player needs a new media source for the channel
+         */
+        synchronized boolean switchChannel(int channelId) {
+            HtspPrefetchedSubscription subscription = prefetchedSubscriptions.get(channelId);
+            if (dataSource == null || subscription == null || !subscription.isStarted()
+                    || !dataSource.canSwitchTo(subscription)) {
+                return false;
+            }
+            prefetchedSubscriptions.remove(channelId);
+            dataSource.switchSubscription(subscription);
+            return true;
+        }
+
+        /**
+         * Stops all prefetched subscriptions
+         */
+        synchronized void release() {
+            Timber.d("Releasing prefetched subscriptions");
+            releasePrefetchedSubscriptions();
+            prefetchedSubscriptions.clear();
+        }
+
+        private void releasePrefetchedSubscriptions() {
+            for (int i = 0; i < prefetchedSubscriptions.size(); i++) {
+                prefetchedSubscriptions.valueAt(i).release();
+            }
+        }
     }
 
-    private HtspSubscriptionDataSource(Context context, HtspConnection htspConnection, String streamProfile) {
+    private HtspSubscriptionDataSource(Context context, HtspConnection htspConnection, String streamProfile, Factory factory) {
         Timber.d("Initializing subscription data source");
         this.context = context;
         this.htspConnection = htspConnection;
-        this.htspConnection.addMessageListener(this);
         this.streamProfile = streamProfile;
+        this.factory = factory;
+        this.zapLatencyTracker = factory.zapLatencyTracker;
 
         SharedPreferences mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         boolean timeshiftEnabled = mSharedPreferences.getBoolean("timeshift_enabled", context.getResources().getBoolean(R.bool.pref_default_timeshift_enabled));
@@ -116,15 +221,15 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
 
         dataSourceNumber = dataSourceCount.incrementAndGet();
         subscriptionId = subscriptionCount.incrementAndGet();
+        // Only the messages of this subscription are delivered to this data source
+        this.htspConnection.addSubscriptionListener(subscriptionId, this);
 
         Timber.d("New subscription data source instantiated (" + dataSourceNumber + ")");
 
         try {
             // Create the buffer, and place the HtspSubscriptionDataSource header in place.
-            byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-            byteBuffer.limit(HEADER.length);
-            byteBuffer.put(HEADER);
-            byteBuffer.position(0);
+            ringBuffer = new HtspPacketRingBuffer(BUFFER_SIZE);
+            ringBuffer.write(HEADER, HEADER.length);
 
         } catch (OutOfMemoryError e) {
             // Since we're allocating a large buffer here, it's fairly safe to assume we'll have
@@ -153,27 +258,54 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
             if (path != null && path.length() > 0) {
 
                 int channelId = Integer.parseInt(path.substring(1));
-                Timber.d("Sending subscription start to service with id " + subscriptionId + " for channel id " + channelId);
-
-                HtspMessage request = new HtspMessage();
-                request.setMethod("subscribe");
-                request.put("subscriptionId", subscriptionId);
-                request.put("channelId", channelId);
-                request.put("timeshiftPeriod", timeshiftPeriod);
-
-                if (!TextUtils.isEmpty(streamProfile)) {
-                    request.put("profile", streamProfile);
+                // The prefetched subscriptions are not subscribed with a timeshift period
+                HtspPrefetchedSubscription subscription = timeshiftPeriod == 0 ? factory.takePrefetchedSubscription(channelId) : null;
+                if (subscription != null) {
+                    takeOverSubscription(subscription);
+                } else {
+                    subscribe(channelId);
                 }
-
-                htspConnection.sendMessage(request, response -> {
-                    Timber.d("Received subscribe response");
-                    int availableTimeshiftPeriod = response.getInteger("timeshiftPeriod", 0);
-                    Timber.d("Available timeshift period in seconds: %s", availableTimeshiftPeriod);
-                });
                 isSubscribed = true;
             }
         }
 
+        HtspPrefetchedSubscription subscription = pendingSubscription;
+        if (subscription != null) {
+            // The player was flushed for the channel switch, drop what is left of the previous channel
+            pendingSubscription = null;
+            ringBuffer.clear();
+            takeOverSubscription(subscription);
+        } else {
+            seek();
+        }
+
+        subscriptionStarted = true;
+
+        return C.LENGTH_UNSET;
+    }
+
+    private void subscribe(int channelId) {
+        Timber.d("Sending subscription start to service with id " + subscriptionId + " for channel id " + channelId);
+
+        HtspMessage request = new HtspMessage();
+        request.setMethod("subscribe");
+        request.put("subscriptionId", subscriptionId);
+        request.put("channelId", channelId);
+        request.put("timeshiftPeriod", timeshiftPeriod);
+
+        if (!TextUtils.isEmpty(streamProfile)) {
+            request.put("profile", streamProfile);
+        }
+
+        htspConnection.sendMessage(request, response -> {
+            Timber.d("Received subscribe response");
+            availableTimeshiftPeriod = response.getInteger("timeshiftPeriod", 0);
+            Timber.d("Available timeshift period in seconds: %s", availableTimeshiftPeriod);
+        });
+        zapLatencyTracker.mark(Milestone.SUBSCRIBE_SENT);
+    }
+
+    private void seek() {
         Timber.d("Getting seek position");
         long seekPosition = this.dataSpec.position;
         if (seekPosition > 0 && timeshiftPeriod > 0) {
@@ -187,13 +319,43 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
 
             htspConnection.sendMessage(request, null);
 
-            byteBuffer.clear();
-            byteBuffer.limit(0);
+            ringBuffer.clear();
         }
+    }
 
-        subscriptionStarted = true;
+    /**
+     * Continues with the prefetched subscription. Its messages are written
+     * into the buffer from now on, starting with the subscriptionStart
+     * message and the cached packets since the last key frame.
+     */
+    private void takeOverSubscription(@NonNull HtspPrefetchedSubscription subscription) {
+        Timber.d("Taking over prefetched subscription " + subscription.getSubscriptionId()
+                + " for channel id " + subscription.getChannelId() + " (" + dataSourceNumber + ")");
+        prefetchedSubscription = subscription;
+        subscriptionId = subscription.getSubscriptionId();
+        zapLatencyTracker.mark(Milestone.SUBSCRIBE_SENT);
+        subscription.handOver(this);
+    }
 
-        return C.LENGTH_UNSET;
+    /**
+     * Returns true if the prefetched subscription has the same streams as the
+     * current one, so the extractor can pass its packets to the same tracks
+     */
+    private boolean canSwitchTo(@NonNull HtspPrefetchedSubscription subscription) {
+        String layout = streamLayout;
+        return isSubscribed && timeshiftPeriod == 0 && layout != null && layout.equals(subscription.getStreamLayout());
+    }
+
+    /**
+     * Stops the current subscription and continues with the prefetched one
+     * when the data source is opened again after the player seeked.
+     */
+    private void switchSubscription(@NonNull HtspPrefetchedSubscription subscription) {
+        Timber.d("Switching from subscription " + subscriptionId + " to prefetched subscription "
+                + subscription.getSubscriptionId() + " (" + dataSourceNumber + ")");
+        stopSubscription();
+        streamLayout = null;
+        pendingSubscription = subscription;
     }
 
     @Override
@@ -202,11 +364,12 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
             return 0;
         }
 
-        // If the buffer is empty, block until we have at least 1 byte
-        while (subscriptionStarted && byteBuffer.remaining() == 0) {
+        // If the buffer is empty, block until we have at least 1 byte.
+        // The reader is woken up as soon as the next frame was written.
+        while (subscriptionStarted && ringBuffer.isEmpty()) {
             try {
                 Timber.v("Blocking for more data (" + dataSourceNumber + ")");
-                Thread.sleep(250);
+                ringBuffer.awaitData(READ_WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
             } catch (InterruptedException e) {
                 // Ignore.
                 Timber.w("Caught InterruptedException (" + dataSourceNumber + ")");
@@ -214,26 +377,12 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
             }
         }
 
-        if (!subscriptionStarted && byteBuffer.remaining() == 0) {
+        if (!subscriptionStarted && ringBuffer.isEmpty()) {
             Timber.d("End of input buffer");
             return C.RESULT_END_OF_INPUT;
         }
 
-        int length;
-
-        lock.lock();
-        try {
-            int remaining = byteBuffer.remaining();
-            length = remaining >= readLength ? readLength : remaining;
-
-            byteBuffer.get(buffer, offset, length);
-            byteBuffer.compact();
-            byteBuffer.flip();
-        } finally {
-            lock.unlock();
-        }
-
-        return length;
+        return ringBuffer.read(buffer, offset, readLength);
     }
 
     @Override
@@ -249,6 +398,7 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
     public void close() {
         Timber.d("Closing subscription data source " + dataSourceNumber + ")");
         subscriptionStarted = false;
+        ringBuffer.wakeUp();
     }
 
     @Override
@@ -256,18 +406,28 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
         String method = message.getMethod();
         switch (method) {
             case "subscriptionStart":
+                streamLayout = HtspPrefetchedSubscription.getStreamLayout(message);
+                zapLatencyTracker.mark(Milestone.SUBSCRIPTION_START);
+                serializeMessageToBuffer(message);
+                break;
+
             case "muxpkt":
+                zapLatencyTracker.mark(Milestone.FIRST_PACKET);
                 serializeMessageToBuffer(message);
                 break;
 
             case "subscriptionStop":
                 subscriptionStarted = false;
+                ringBuffer.wakeUp();
+                break;
+
+            case "queueStatus":
+                backpressure.onQueueStatus(message);
                 break;
 
             case "subscriptionStatus":
             case "subscriptionSkip":
             case "subscriptionSpeed":
-            case "queueStatus":
             case "signalStatus":
             case "timeshiftStatus":
                 break;
@@ -277,15 +437,31 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
     private void release() {
         Timber.d("Releasing subscription data source " + dataSourceNumber + ")");
 
-        HtspMessage request = new HtspMessage();
-        request.put("method", "unsubscribe");
-        request.put("subscriptionId", subscriptionId);
-        htspConnection.sendMessage(request, null);
+        HtspPrefetchedSubscription subscription = pendingSubscription;
+        if (subscription != null) {
+            pendingSubscription = null;
+            subscription.release();
+        }
+        stopSubscription();
+    }
+
+    private void stopSubscription() {
+        HtspPrefetchedSubscription subscription = prefetchedSubscription;
+        if (subscription != null) {
+            prefetchedSubscription = null;
+            subscription.release();
+        } else {
+            HtspMessage request = new HtspMessage();
+            request.put("method", "unsubscribe");
+            request.put("subscriptionId", subscriptionId);
+            htspConnection.sendMessage(request, null);
+        }
         htspConnection.removeMessageListener(this);
     }
 
     public void pause() {
         Timber.d("Pausing subscription data source " + dataSourceNumber + ")");
+        paused = true;
 
         HtspMessage request = new HtspMessage();
         request.put("method", "subscriptionSpeed");
@@ -320,6 +496,8 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
 
     public void resume() {
         Timber.d("Resuming subscription data source " + dataSourceNumber + ")");
+        paused = false;
+        throttled = false;
         Intent intent = new Intent(context, HtspService.class);
         intent.putExtra("method", "subscriptionSpeed");
         intent.putExtra("subscriptionId", subscriptionId);
@@ -329,27 +507,77 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
 
     // Misc Internal Methods
     private void serializeMessageToBuffer(@NonNull HtspMessage message) {
-        lock.lock();
-        try {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            ObjectOutputStream objectOutput = new ObjectOutputStream(outputStream);
-            objectOutput.writeUnshared(message);
-            objectOutput.flush();
-
-            byteBuffer.position(byteBuffer.limit());
-            byteBuffer.limit(byteBuffer.capacity());
-
-            byteBuffer.put(outputStream.toByteArray());
-
-            byteBuffer.flip();
-        } catch (IOException e) {
-            // Ignore?
-            Timber.w(e, "Caught IOException, ignoring (" + dataSourceNumber + ")");
-        } catch (BufferOverflowException e) {
-            Timber.w(e, "Caught BufferOverflowException, ignoring (" + dataSourceNumber + ")");
-        } finally {
-            lock.unlock();
-            // Ignore
+        // During a channel switch the last messages of the previous subscription
+        // and the first ones of the next subscription can arrive on different threads
+        synchronized (ringBuffer) {
+            writeMessageToBuffer(message);
+        }
+    }
+
+    private void writeMessageToBuffer(@NonNull HtspMessage message) {
+        // A frame is either written completely or not at all, so the extractor stays in sync
+        boolean written;
+        if ("muxpkt".equals(message.getMethod())) {
+            // The payload is copied into the buffer or dropped, either way its array can be reused
+            HtspPayload payload = message.getPayload("payload");
+            try {
+                int streamIndex = message.getInteger("stream", -1);
+                int frameType = message.getInteger("frametype", -1);
+                if (!backpressure.accept(streamIndex, frameType, ringBuffer.size())) {
+                    updateThrottling();
+                    return;
+                }
+
+                byte[] data = payload != null ? payload.getData() : EMPTY;
+                int length = payload != null ? payload.getLength() : 0;
+                HtspSubscriptionFrame.writePacketHeader(message, length, headerBuffer);
+                written = ringBuffer.write(headerBuffer.array(), headerBuffer.limit(), data, length);
+                if (!written) {
+                    backpressure.onOverflow(streamIndex, frameType);
+                }
+                updateThrottling();
+            } finally {
+                if (payload != null) {
+                    payload.release();
+                }
+            }
+        } else {
+            backpressure.setStreams(message);
+            try {
+                ByteBuffer frame = HtspSubscriptionFrame.encodeSubscriptionStart(message);
+                written = ringBuffer.write(frame.array(), frame.limit());
+            } catch (IOException e) {
+                // Ignore?
+                Timber.w(e, "Caught IOException, ignoring (" + dataSourceNumber + ")");
+                return;
+            }
+        }
+
+        if (!written) {
+            long droppedFrames = ringBuffer.getDroppedFrames();
+            if (droppedFrames == 1 || droppedFrames % 100 == 0) {
+                Timber.w("Buffer is full, dropped " + droppedFrames + " frames with "
+                        + ringBuffer.getDroppedBytes() + " bytes so far (" + dataSourceNumber + ")");
+            }
+        }
+    }
+
+    /**
+     * Slows down the subscription while it is congested and restores the normal speed
+     * afterwards. This is only possible when the server keeps a timeshift buffer for
+     * the subscription, otherwise the packets can only be dropped.
+     */
+    private void updateThrottling() {
+        if (availableTimeshiftPeriod == 0 || paused) {
+            return;
+        }
+        boolean congested = backpressure.isCongested(ringBuffer.size());
+        if (congested != throttled) {
+            throttled = congested;
+            int speed = congested ? THROTTLED_SPEED : 100;
+            Timber.d("Subscription is " + (congested ? "congested" : "no longer congested")
+                    + ", changing speed to " + speed + " (" + dataSourceNumber + ")");
+            setSpeed(speed);
         }
     }
 }
@@ -24,16 +24,23 @@ import org.tvheadend.htsp.HtspMessage
 import org.tvheadend.tvhclient.ui.features.playback.internal.reader.StreamReader
 import org.tvheadend.tvhclient.ui.features.playback.internal.reader.StreamReadersFactory
 import timber.log.Timber
-import java.io.ByteArrayInputStream
 import java.io.IOException
-import java.io.ObjectInputStream
 import java.util.*
 
-internal class HtspSubscriptionExtractor : Extractor {
+internal class HtspSubscriptionExtractor(private val mZapLatencyTracker: ZapLatencyTracker?) : Extractor {
 
     private lateinit var mOutput: ExtractorOutput
     private val mStreamReaders = SparseArray<StreamReader>()
-    private val mRawBytes = ByteArray(1024 * 1024)
+    private val mStreamTypes = SparseArray<String>()
+    private var mVideoStreamIndex = -1
+    private var mTracksEnded = false
+    private val mFrame = HtspSubscriptionFrame()
+    private val mScratch = ByteArray(1)
+
+    // The position the player seeked to. The packets of a subscription
+    // that follows after a channel switch are moved to start there.
+    private var mSeekTimeUs = C.TIME_UNSET
+    private var mRebasePending = false
 
     private inner class HtspSeekMap : SeekMap {
         override fun isSeekable(): Boolean {
@@ -44,8 +51,9 @@ internal class HtspSubscriptionExtractor : Extractor {
             return C.TIME_UNSET
         }
 
-        override fun getSeekPoints(timeUs: Long): SeekMap.SeekPoints? {
-            return null
+        override fun getSeekPoints(timeUs: Long): SeekMap.SeekPoints {
+            // The data source takes the position as the time to skip to
+            return SeekMap.SeekPoints(SeekPoint(timeUs, timeUs))
         }
     }
 
@@ -66,59 +74,47 @@ internal class HtspSubscriptionExtractor : Extractor {
 
     @Throws(IOException::class, InterruptedException::class)
     override fun read(input: ExtractorInput, seekPosition: PositionHolder): Int {
-        val bytesRead = input.read(mRawBytes, 0, mRawBytes.size)
-        Timber.d("Read $bytesRead bytes")
-
-        var objectInput: ObjectInputStream? = null
-        try {
-            ByteArrayInputStream(mRawBytes, 0, bytesRead).use { inputStream ->
-                while (inputStream.available() > 0) {
-                    objectInput = ObjectInputStream(inputStream)
-                    handleMessage(objectInput!!.readUnshared() as HtspMessage)
-                }
-            }
-        } catch (e: IOException) {
-            // TODO: This is a problem, and returning RESULT_CONTINUE is a hack... I think?
-            Timber.w("Caught IOException, returning RESULT_CONTINUE")
-            return Extractor.RESULT_CONTINUE
-        } catch (e: ClassNotFoundException) {
-            Timber.w("Class Not Found")
-        } finally {
-            try {
-                if (objectInput != null) {
-                    objectInput!!.close()
-                }
-            } catch (ex: IOException) {
-                // Ignore
-            }
+        // A new data source starts with the header, frames never start with a zero byte
+        if (!input.peekFully(mScratch, 0, 1, true)) {
+            return Extractor.RESULT_END_OF_INPUT
+        }
+        input.resetPeekPosition()
+        if (mScratch[0].toInt() == 0) {
+            input.skipFully(HtspSubscriptionDataSource.HEADER.size)
+        }
 
-        }// N.B. Don't add the objectInput to this bit, it breaks stuff
+        if (!mFrame.read(input)) {
+            return Extractor.RESULT_END_OF_INPUT
+        }
+        when (mFrame.type) {
+            HtspSubscriptionFrame.TYPE_SUBSCRIPTION_START -> handleSubscriptionStart(mFrame.subscriptionStart)
+            HtspSubscriptionFrame.TYPE_PACKET -> handlePacket(mFrame)
+        }
         return Extractor.RESULT_CONTINUE
     }
 
     override fun seek(position: Long, timeUs: Long) {
         Timber.d("Seeking HTSP Extractor to position:$position and timeUs:$timeUs")
+        mSeekTimeUs = timeUs
     }
 
     override fun release() {
         Timber.i("Releasing HTSP Extractor")
         mStreamReaders.clear()
+        mStreamTypes.clear()
     }
 
     // Internal Methods
-    private fun handleMessage(message: HtspMessage) {
-        val method = message.getString("method")
-
-        if (method == "subscriptionStart") {
-            handleSubscriptionStart(message)
-        } else if (method == "muxpkt") {
-            handleMuxpkt(message)
-        }
-    }
-
     private fun handleSubscriptionStart(message: HtspMessage) {
         Timber.d("Handling Subscription Start")
 
+        if (mTracksEnded) {
+            // No tracks can be added anymore, so the subscription of the channel
+            // that was switched to has to use the tracks of the previous one
+            handleFollowingSubscriptionStart(message)
+            return
+        }
+
         val streamReadersFactory = StreamReadersFactory()
 
         for (obj in message.getList("streams")) {
@@ -130,6 +126,10 @@ internal class HtspSubscriptionExtractor : Extractor {
                 Timber.d("Creating StreamReader for $streamType stream at index $streamIndex")
                 streamReader.createTracks(stream, mOutput)
                 mStreamReaders.put(streamIndex, streamReader)
+                mStreamTypes.put(streamIndex, streamType)
+                if (mVideoStreamIndex == -1 && HtspPrefetchedSubscription.isVideoStreamType(streamType)) {
+                    mVideoStreamIndex = streamIndex
+                }
             } else {
                 Timber.d("Discarding stream at index $streamIndex, no suitable StreamReader")
             }
@@ -137,19 +137,42 @@ internal class HtspSubscriptionExtractor : Extractor {
 
         Timber.d("All streams have now been handled")
         mOutput.endTracks()
+        mTracksEnded = true
+    }
+
+    private fun handleFollowingSubscriptionStart(message: HtspMessage) {
+        for (obj in message.getList("streams")) {
+            val stream = obj as HtspMessage
+            val streamIndex = stream.getInteger("index")
+            val streamType = stream.getString("type")
+            val streamReader = mStreamReaders.get(streamIndex)
+            if (streamReader != null && streamType == mStreamTypes.get(streamIndex)) {
+                // The track keeps its decoder, only the format is updated
+                Timber.d("Reusing StreamReader for $streamType stream at index $streamIndex")
+                streamReader.createTracks(stream, mOutput)
+            } else if (streamReader != null) {
+                Timber.d("Discarding stream at index $streamIndex, the type changed from ${mStreamTypes.get(streamIndex)} to $streamType")
+                mStreamReaders.remove(streamIndex)
+            }
+        }
+        mRebasePending = mSeekTimeUs != C.TIME_UNSET
     }
 
-    private fun handleMuxpkt(message: HtspMessage) {
-        //        subscriptionId     u32   required   Subscription ID.
-        //        frametype          u32   required   Type of frame as ASCII value: 'I', 'P', 'B'
-        //        stream             u32   required   Stream index. Corresponds to the streams reported in the subscriptionStart message.
-        //        dts                s64   optional   Decode Time Stamp in µs.
-        //        pts                s64   optional   Presentation Time Stamp in µs.
-        //        duration           u32   required   Duration of frame in µs.
-        //        payload            bin   required   Actual frame data.
+    private fun handlePacket(frame: HtspSubscriptionFrame) {
+        if (mRebasePending && frame.flags and HtspSubscriptionFrame.FLAG_PTS != 0) {
+            // Let the first packet of the following subscription start at the seek position
+            frame.timestampOffset = mSeekTimeUs - (frame.pts - frame.timestampOffset)
+            mRebasePending = false
+        }
 
         // If the stream reader list contains null, then its not a stream we care about, so move on.
-        val streamReader = mStreamReaders.get(message.getInteger("stream")) ?: return
-        streamReader.consume(message)
+        val streamReader = mStreamReaders.get(frame.streamIndex) ?: return
+        streamReader.consume(frame)
+
+        // Type -1 = TVHeadend has not provided us a frame type, Type 73 = I frame
+        if (mZapLatencyTracker != null && frame.streamIndex == mVideoStreamIndex
+                && (frame.frameType == -1 || frame.frameType == 73)) {
+            mZapLatencyTracker.mark(ZapLatencyTracker.Milestone.FIRST_KEYFRAME)
+        }
     }
 }
@@ -0,0 +1,203 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+
+import org.tvheadend.htsp.HtspMessage;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The format in which the subscription data source passes the received messages
+ * to the extractor. Every frame starts with a header of a fixed size that contains
+ * the type, the stream index, the frame type, the flags, the pts, the dts, the
+ * duration and the length of the payload. The payload of a packet frame is the
+ * payload of the muxpkt message, the payload of a subscription start frame is the
+ * message in the HTSP wire format. All values are in big endian byte order.
+ * <p>
+ * The extractor reads the frames into a single instance, so only the header and
+ * the payload of the frame that was read last are available. An offset can be
+ * added to the timestamps of the frames, so that the packets of a subscription
+ * continue at the position of the player after switching the channel.
+ */
+public final class HtspSubscriptionFrame {
+
+    static final int HEADER_SIZE = 31;
+
+    static final byte TYPE_SUBSCRIPTION_START = 1;
+    static final byte TYPE_PACKET = 2;
+
+    public static final int FLAG_PTS = 1;
+    public static final int FLAG_DTS = 2;
+
+    private final byte[] header = new byte[HEADER_SIZE];
+    private final ParsableByteArray payload = new ParsableByteArray();
+
+    private byte type;
+    private int streamIndex;
+    private int frameType;
+    private int flags;
+    private long pts;
+    private long dts;
+    private int duration;
+    private int payloadSize;
+    private long timestampOffset;
+
+    /**
+     * Returns the subscriptionStart message as a complete frame. The frame
+     * starts at the beginning of the returned buffer and ends at its limit.
+     */
+    @NonNull
+    static ByteBuffer encodeSubscriptionStart(@NonNull HtspMessage message) throws IOException {
+        int capacity = 16 * 1024;
+        while (true) {
+            ByteBuffer buffer = ByteBuffer.allocate(capacity);
+            try {
+                writeHeader(buffer, TYPE_SUBSCRIPTION_START, 0, 0, 0, 0, 0, 0, 0);
+                message.writeTo(buffer);
+                buffer.putInt(HEADER_SIZE - 4, buffer.position() - HEADER_SIZE);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException e) {
+                // The stream descriptions did not fit, which is very unlikely
+                capacity *= 2;
+            }
+        }
+    }
+
+    /**
+     * Writes the header of a packet frame for the muxpkt message into the given buffer.
+     * The payload of the message follows the header, it is not copied by this method.
+     *
+     * @param message     The muxpkt message
+     * @param payloadSize The number of bytes of the payload
+     * @param header      The buffer for the header, its content is replaced
+     */
+    static void writePacketHeader(@NonNull HtspMessage message, int payloadSize, @NonNull ByteBuffer header) {
+        int flags = 0;
+        long pts = 0;
+        long dts = 0;
+        if (message.containsKey("pts")) {
+            flags |= FLAG_PTS;
+            pts = message.getLong("pts");
+        }
+        if (message.containsKey("dts")) {
+            flags |= FLAG_DTS;
+            dts = message.getLong("dts");
+        }
+        header.clear();
+        writeHeader(header, TYPE_PACKET, message.getInteger("stream", -1), message.getInteger("frametype", -1),
+                flags, pts, dts, message.getInteger("duration", 0), payloadSize);
+        header.flip();
+    }
+
+    private static void writeHeader(ByteBuffer buffer, byte type, int streamIndex, int frameType, int flags,
+                                    long pts, long dts, int duration, int payloadSize) {
+        buffer.put(type);
+        buffer.putInt(streamIndex);
+        buffer.put((byte) frameType);
+        buffer.put((byte) flags);
+        buffer.putLong(pts);
+        buffer.putLong(dts);
+        buffer.putInt(duration);
+        buffer.putInt(payloadSize);
+    }
+
+    /**
+     * Reads the next frame including its payload from the input
+     *
+     * @return False if the end of the input was reached before the frame started
+     */
+    boolean read(@NonNull ExtractorInput input) throws IOException, InterruptedException {
+        if (!input.readFully(header, 0, HEADER_SIZE, true)) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        type = buffer.get();
+        streamIndex = buffer.getInt();
+        frameType = buffer.get();
+        flags = buffer.get() & 0xFF;
+        pts = buffer.getLong() + timestampOffset;
+        dts = buffer.getLong() + timestampOffset;
+        duration = buffer.getInt();
+        payloadSize = buffer.getInt();
+
+        payload.reset(payloadSize);
+        input.readFully(payload.data, 0, payloadSize);
+        return true;
+    }
+
+    /**
+     * Returns the subscriptionStart message of a subscription start frame
+     */
+    @NonNull
+    HtspMessage getSubscriptionStart() throws IOException {
+        HtspMessage message = HtspMessage.readFrom(ByteBuffer.wrap(payload.data, 0, payloadSize));
+        if (message == null) {
+            throw new IOException("Subscription start frame is truncated");
+        }
+        return message;
+    }
+
+    /**
+     * Sets the offset that is added to the pts and dts of the frames.
+     * It is applied to the current frame as well as to all following ones.
+     */
+    void setTimestampOffset(long offset) {
+        pts += offset - timestampOffset;
+        dts += offset - timestampOffset;
+        timestampOffset = offset;
+    }
+
+    long getTimestampOffset() {
+        return timestampOffset;
+    }
+
+    byte getType() {
+        return type;
+    }
+
+    public int getStreamIndex() {
+        return streamIndex;
+    }
+
+    /**
+     * Returns the frame type as ASCII value 'I', 'P' or 'B', or -1 if the server did not provide it
+     */
+    public int getFrameType() {
+        return frameType;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public long getPts() {
+        return pts;
+    }
+
+    public long getDts() {
+        return dts;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the payload of the frame, positioned at its first byte. The array is
+     * reused for the next frame and may be larger than the size of the payload.
+     */
+    @NonNull
+    public ParsableByteArray getPayload() {
+        return payload;
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+}
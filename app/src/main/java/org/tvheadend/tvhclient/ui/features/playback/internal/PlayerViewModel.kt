@@ -15,12 +15,14 @@ import com.google.android.exoplayer2.upstream.DefaultAllocator
 import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter
 import com.google.android.exoplayer2.video.VideoListener
 import org.tvheadend.data.entity.Channel
+import org.tvheadend.htsp.HtspBufferPool
 import org.tvheadend.htsp.HtspConnection
 import org.tvheadend.htsp.HtspConnectionStateListener
 import org.tvheadend.tvhclient.R
 import org.tvheadend.tvhclient.ui.base.BaseViewModel
 import org.tvheadend.tvhclient.ui.features.playback.internal.utils.Rational
 import timber.log.Timber
+import java.io.File
 import java.util.*
 import java.util.concurrent.Executors
 import java.util.concurrent.ScheduledExecutorService
@@ -38,6 +40,11 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
     private var htspFileInputStreamDataSourceFactory: HtspFileInputStreamDataSource.Factory? = null
     private var dataSource: HtspDataSourceInterface? = null
 
+    // Fast channel switching, the prefetched subscriptions are not subscribed with a timeshift period
+    private val zapLatencyTracker = ZapLatencyTracker()
+    private val fastZapEnabled = sharedPreferences.getBoolean("fast_zap_enabled", appContext.resources.getBoolean(R.bool.pref_default_fast_zap_enabled))
+            && !sharedPreferences.getBoolean("timeshift_enabled", appContext.resources.getBoolean(R.bool.pref_default_timeshift_enabled))
+
     // Player and helpers
     val player: SimpleExoPlayer
     val trackSelector: DefaultTrackSelector
@@ -85,6 +92,9 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
                 connection.serverUrl ?: "",
                 connectionTimeout,
                 this, null)
+        // The payloads of the packets and the data of the file reads are only handled
+        // by the subscription and file data sources, which release them
+        htspConnection.setPayloadBufferPool(HtspBufferPool(512 * 1024, 16))
 
         execService.execute {
             htspConnection.openConnection()
@@ -124,16 +134,23 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
     fun loadMediaSource(bundle: Bundle?) {
         Timber.d("Loading new media source")
 
-        releaseMediaSource()
-        channelId = bundle?.getInt("channelId", 0) ?: 0
-        dvrId = bundle?.getInt("dvrId", 0) ?: 0
-
-        if (channelId > 0) {
-            liveTvIsPlaying.value = true
-            loadMediaSourceForChannel(channelId)
-        } else if (dvrId > 0) {
-            liveTvIsPlaying.value = false
-            loadMediaSourceForRecording(dvrId)
+        val newChannelId = bundle?.getInt("channelId", 0) ?: 0
+        if (newChannelId > 0 && channelId > 0 && switchChannel(newChannelId)) {
+            channelId = newChannelId
+        } else {
+            releaseMediaSource()
+            channelId = newChannelId
+            dvrId = bundle?.getInt("dvrId", 0) ?: 0
+
+            if (channelId > 0) {
+                liveTvIsPlaying.value = true
+                zapLatencyTracker.start(channelId, false)
+                loadMediaSourceForChannel(channelId)
+            } else if (dvrId > 0) {
+                liveTvIsPlaying.value = false
+                htspSubscriptionDataSourceFactory?.release()
+                loadMediaSourceForRecording(dvrId)
+            }
         }
 
         Timber.d("Showing playback information")
@@ -153,12 +170,15 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
             Timber.d("Creating data source")
             val serverStatus = appRepository.serverStatusData.activeItem
             val serverProfile = appRepository.serverProfileData.getItemById(serverStatus.htspPlaybackServerProfileId)
-            htspSubscriptionDataSourceFactory = HtspSubscriptionDataSource.Factory(appContext, htspConnection, serverProfile?.name)
+            // The factory is kept for all channels, it holds the prefetched subscriptions
+            if (htspSubscriptionDataSourceFactory == null) {
+                htspSubscriptionDataSourceFactory = HtspSubscriptionDataSource.Factory(appContext, htspConnection, serverProfile?.name, zapLatencyTracker)
+            }
             dataSource = htspSubscriptionDataSourceFactory?.currentDataSource
 
             Timber.d("Preparing player with media source")
             player.prepare(ExtractorMediaSource.Factory(htspSubscriptionDataSourceFactory)
-                    .setExtractorsFactory(TvheadendExtractorsFactory())
+                    .setExtractorsFactory(TvheadendExtractorsFactory(zapLatencyTracker))
                     .createMediaSource(Uri.parse("htsp://channel/$channelId")))
             player.playWhenReady = true
         }
@@ -171,7 +191,7 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
             playbackInformation = PlaybackInformation(appRepository.recordingData.getItemById(recordingId))
 
             Timber.d("Creating data source")
-            htspFileInputStreamDataSourceFactory = HtspFileInputStreamDataSource.Factory(htspConnection)
+            htspFileInputStreamDataSourceFactory = HtspFileInputStreamDataSource.Factory(htspConnection, File(appContext.cacheDir, "recording_blocks"))
             dataSource = htspFileInputStreamDataSourceFactory?.currentDataSource
 
             Timber.d("Preparing player with media source")
@@ -182,6 +202,45 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
         }
     }
 
+    /**
+     * Switches to the prefetched subscription of the channel while the player keeps its
+     * tracks and decoders. Seeking behind the buffered data drops the samples of the
+     * previous channel, the extractor lets the packets of the new channel start there.
+     *
+     * @return False if the channel needs to be loaded with a new media source
+     */
+    private fun switchChannel(newChannelId: Int): Boolean {
+        if (!fastZapEnabled || liveTvIsPlaying.value != true) {
+            return false
+        }
+        zapLatencyTracker.start(newChannelId, true)
+        if (htspSubscriptionDataSourceFactory?.switchChannel(newChannelId) != true) {
+            return false
+        }
+        Timber.d("Switched to prefetched channel id $newChannelId")
+        playbackInformation = PlaybackInformation(appRepository.channelData.getItemByIdWithPrograms(newChannelId, Date().time))
+        player.seekTo(player.bufferedPosition + 1000)
+        return true
+    }
+
+    /**
+     * Subscribes to the channels before and after the given one, so that
+     * switching to them does not have to wait for the tuner and a key frame
+     */
+    private fun prefetchAdjacentChannels(currentChannelId: Int) {
+        val factory = htspSubscriptionDataSourceFactory ?: return
+        execService.execute {
+            val channels = getChannelList()
+            val index = channels.indexOfFirst { it.id == currentChannelId }
+            if (index >= 0 && channels.size > 1) {
+                val previousChannelId = channels[(index - 1 + channels.size) % channels.size].id
+                val nextChannelId = channels[(index + 1) % channels.size].id
+                Timber.d("Prefetching channel ids $previousChannelId and $nextChannelId")
+                factory.prefetchChannels(previousChannelId, nextChannelId)
+            }
+        }
+    }
+
     private fun releaseMediaSource() {
         Timber.d("Releasing previous media source")
         player.stop()
@@ -239,6 +298,7 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
     fun stopPlaybackAndReleaseMediaSource() {
         Timber.d("Stopping playback, releasing media source ")
         releaseMediaSource()
+        htspSubscriptionDataSourceFactory?.release()
         player.release()
 
         Timber.d("Closing connection")
@@ -252,7 +312,10 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
     }
 
     override fun onRenderedFirstFrame() {
-        // NOP
+        zapLatencyTracker.mark(ZapLatencyTracker.Milestone.FIRST_FRAME_RENDERED)
+        if (fastZapEnabled && liveTvIsPlaying.value == true && channelId > 0) {
+            prefetchAdjacentChannels(channelId)
+        }
     }
 
     override fun onPlaybackParametersChanged(playbackParameters: PlaybackParameters?) {
@@ -387,7 +450,7 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
         var newChannelId = channelId
         channels.forEachIndexed { index, channel ->
             if (channel.id == channelId) {
-                newChannelId = if (index - 1 > 0) {
+                newChannelId = if (index - 1 >= 0) {
                     channels[index - 1].id
                 } else {
                     channels.last().id
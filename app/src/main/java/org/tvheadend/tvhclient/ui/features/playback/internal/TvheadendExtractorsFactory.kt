@@ -30,11 +30,11 @@ import com.google.android.exoplayer2.extractor.ts.PsExtractor
 import com.google.android.exoplayer2.extractor.ts.TsExtractor
 import com.google.android.exoplayer2.extractor.wav.WavExtractor
 
-internal class TvheadendExtractorsFactory : ExtractorsFactory {
+internal class TvheadendExtractorsFactory(private val zapLatencyTracker: ZapLatencyTracker? = null) : ExtractorsFactory {
 
     override fun createExtractors(): Array<Extractor> {
         return arrayOf(
-                HtspSubscriptionExtractor(),
+                HtspSubscriptionExtractor(zapLatencyTracker),
                 MatroskaExtractor(0),
                 FragmentedMp4Extractor(0),
                 Mp4Extractor(),
@@ -0,0 +1,175 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import timber.log.Timber;
+
+/**
+ * Measures how long it takes from selecting a channel until its first video frame
+ * is shown. The time of each step of a zap is taken relative to its start and
+ * collected in a histogram per step, so that the distribution of the zap times
+ * can be compared between different settings and servers.
+ * <p>
+ * The steps are reported from the threads that handle them. A step is only taken
+ * into account once the step before was reported, so late reports that belong to
+ * the previous channel are ignored. A zap is complete when the first frame was
+ * rendered, zaps to channels without video are replaced by the next one.
+ */
+public final class ZapLatencyTracker {
+
+    public enum Milestone {
+        SUBSCRIBE_SENT,
+        SUBSCRIPTION_START,
+        FIRST_PACKET,
+        FIRST_KEYFRAME,
+        FIRST_FRAME_RENDERED
+    }
+
+    // The upper bounds in milliseconds of the buckets, the last bucket contains the longer times
+    private static final long[] BUCKET_BOUNDS = {50, 100, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000};
+
+    private static final Milestone[] MILESTONES = Milestone.values();
+
+    private final AtomicLongArray marks = new AtomicLongArray(MILESTONES.length);
+    private final long[][] histograms = new long[MILESTONES.length][BUCKET_BOUNDS.length + 1];
+    private volatile long zapStartTime;
+    private int channelId;
+    private boolean fastZap;
+    private long completedZaps;
+
+    public ZapLatencyTracker() {
+        reset();
+    }
+
+    private void reset() {
+        for (int i = 0; i < MILESTONES.length; i++) {
+            marks.set(i, -1);
+        }
+    }
+
+    /**
+     * Starts measuring a new zap. An incomplete previous zap is discarded.
+     *
+     * @param channelId The id of the channel that is switched to
+     * @param fastZap   True if the channel is switched without a new media source for the player
+     */
+    public synchronized void start(int channelId, boolean fastZap) {
+        reset();
+        this.channelId = channelId;
+        this.fastZap = fastZap;
+        this.zapStartTime = System.nanoTime();
+    }
+
+    /**
+     * Returns true if the given step of the current zap was already reported
+     */
+    public boolean isMarked(@NonNull Milestone milestone) {
+        return marks.get(milestone.ordinal()) >= 0;
+    }
+
+    /**
+     * Reports that the given step of the current zap was reached. Only the first
+     * report of a step is used and only if the step before was already reported.
+     */
+    public void mark(@NonNull Milestone milestone) {
+        long start = zapStartTime;
+        int index = milestone.ordinal();
+        if (start == 0 || marks.get(index) >= 0 || (index > 0 && marks.get(index - 1) < 0)) {
+            return;
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        if (marks.compareAndSet(index, -1, elapsed) && milestone == Milestone.FIRST_FRAME_RENDERED) {
+            complete(start);
+        }
+    }
+
+    private synchronized void complete(long start) {
+        if (start != zapStartTime) {
+            // Another zap was started in the meantime
+            return;
+        }
+        zapStartTime = 0;
+        completedZaps++;
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < MILESTONES.length; i++) {
+            long elapsed = marks.get(i);
+            histograms[i][getBucket(elapsed)]++;
+            sb.append(i > 0 ? ", " : "").append(MILESTONES[i].name().toLowerCase(Locale.US))
+                    .append(' ').append(elapsed).append(" ms");
+        }
+        Timber.d("Zap to channel " + channelId + (fastZap ? " (fast)" : "") + " took " + sb);
+        Timber.d("Zap times after " + completedZaps + " zaps: " + getSummary());
+    }
+
+    private static int getBucket(long elapsed) {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            if (elapsed <= BUCKET_BOUNDS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS.length;
+    }
+
+    /**
+     * Returns the upper bounds in milliseconds of the histogram buckets.
+     * The histogram has one more bucket for all times above the last bound.
+     */
+    @NonNull
+    public static long[] getBucketBounds() {
+        return BUCKET_BOUNDS.clone();
+    }
+
+    /**
+     * Returns the number of completed zaps per bucket for the given step
+     */
+    @NonNull
+    public synchronized long[] getHistogram(@NonNull Milestone milestone) {
+        return histograms[milestone.ordinal()].clone();
+    }
+
+    /**
+     * Returns the upper bound of the bucket that contains the given percentile
+     * of the times of a step, or -1 if no zap was completed yet. Times above the
+     * last bucket bound are returned as {@link Long#MAX_VALUE}.
+     */
+    public synchronized long getPercentile(@NonNull Milestone milestone, int percentile) {
+        if (completedZaps == 0) {
+            return -1;
+        }
+        long[] histogram = histograms[milestone.ordinal()];
+        long count = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            count += histogram[i];
+            if (count * 100 >= completedZaps * percentile) {
+                return i < BUCKET_BOUNDS.length ? BUCKET_BOUNDS[i] : Long.MAX_VALUE;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public synchronized long getCompletedZaps() {
+        return completedZaps;
+    }
+
+    /**
+     * Returns the median and the 90th percentile of every step
+     */
+    @NonNull
+    public synchronized String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Milestone milestone : MILESTONES) {
+            sb.append(milestone.ordinal() > 0 ? ", " : "").append(milestone.name().toLowerCase(Locale.US))
+                    .append(" p50 <= ").append(formatBound(getPercentile(milestone, 50)))
+                    .append(" p90 <= ").append(formatBound(getPercentile(milestone, 90)));
+        }
+        return sb.toString();
+    }
+
+    private static String formatBound(long bound) {
+        return bound == Long.MAX_VALUE ? "inf" : bound + " ms";
+    }
+}
@@ -22,8 +22,8 @@ import com.google.android.exoplayer2.extractor.ExtractorOutput
 import com.google.android.exoplayer2.extractor.TrackOutput
 import com.google.android.exoplayer2.util.CodecSpecificDataUtil
 import com.google.android.exoplayer2.util.MimeTypes
-import com.google.android.exoplayer2.util.ParsableByteArray
 import org.tvheadend.htsp.HtspMessage
+import org.tvheadend.tvhclient.ui.features.playback.internal.HtspSubscriptionFrame
 import org.tvheadend.tvhclient.ui.features.playback.internal.utils.TvhMappings
 
 // See https://wiki.multimedia.cx/index.php?title=ADTS
@@ -38,13 +38,12 @@ internal class AacStreamReader : StreamReader {
         mTrackOutput!!.format(buildFormat(streamIndex, stream))
     }
 
-    override fun consume(message: HtspMessage) {
-        val pts = message.getLong("pts")
-        val payload = message.getByteArray("payload")
-        val pba = ParsableByteArray(payload)
+    override fun consume(frame: HtspSubscriptionFrame) {
+        val pts = frame.pts
+        val pba = frame.payload
         val skipLength: Int
 
-        skipLength = if (hasCrc(payload[1])) {
+        skipLength = if (hasCrc(pba.data[1])) {
             // Have a CRC
             ADTS_HEADER_SIZE + ADTS_CRC_SIZE
         } else {
@@ -54,7 +53,7 @@ internal class AacStreamReader : StreamReader {
 
         pba.skipBytes(skipLength)
 
-        val aacFrameLength = payload.size - skipLength
+        val aacFrameLength = frame.payloadSize - skipLength
 
         // TODO: Set Buffer Flag key frame based on frametype
         // frametype   u32   required   Type of frame as ASCII value: 'I', 'P', 'B'
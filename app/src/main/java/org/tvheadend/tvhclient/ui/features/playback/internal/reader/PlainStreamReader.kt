@@ -20,8 +20,8 @@ import com.google.android.exoplayer2.C
 import com.google.android.exoplayer2.Format
 import com.google.android.exoplayer2.extractor.ExtractorOutput
 import com.google.android.exoplayer2.extractor.TrackOutput
-import com.google.android.exoplayer2.util.ParsableByteArray
 import org.tvheadend.htsp.HtspMessage
+import org.tvheadend.tvhclient.ui.features.playback.internal.HtspSubscriptionFrame
 
 /**
  * A PlainStreamReader simply copies the raw bytes from muxpkt's over onto the track output
@@ -37,11 +37,10 @@ abstract class PlainStreamReader(private val mTrackType: Int) : StreamReader {
         mTrackOutput!!.format(buildFormat(streamIndex, stream))
     }
 
-    override fun consume(message: HtspMessage) {
-        val pts = message.getLong("pts")
-        val frameType = message.getInteger("frametype", -1)
-        val payload = message.getByteArray("payload")
-        val pba = ParsableByteArray(payload)
+    override fun consume(frame: HtspSubscriptionFrame) {
+        val pts = frame.pts
+        val frameType = frame.frameType
+        val payloadSize = frame.payloadSize
 
         var bufferFlags = 0
 
@@ -60,8 +59,8 @@ abstract class PlainStreamReader(private val mTrackType: Int) : StreamReader {
             bufferFlags = bufferFlags or C.BUFFER_FLAG_KEY_FRAME
         }
 
-        mTrackOutput!!.sampleData(pba, payload.size)
-        mTrackOutput!!.sampleMetadata(pts, bufferFlags, payload.size, 0, null)
+        mTrackOutput!!.sampleData(frame.payload, payloadSize)
+        mTrackOutput!!.sampleMetadata(pts, bufferFlags, payloadSize, 0, null)
     }
 
     protected abstract fun buildFormat(streamIndex: Int, stream: HtspMessage): Format
@@ -19,9 +19,10 @@ package org.tvheadend.tvhclient.ui.features.playback.internal.reader
 import com.google.android.exoplayer2.extractor.ExtractorOutput
 
 import org.tvheadend.htsp.HtspMessage
+import org.tvheadend.tvhclient.ui.features.playback.internal.HtspSubscriptionFrame
 
 interface StreamReader {
     fun createTracks(stream: HtspMessage, output: ExtractorOutput)
 
-    fun consume(message: HtspMessage)
+    fun consume(frame: HtspSubscriptionFrame)
 }
\ No newline at end of file
@@ -25,6 +25,7 @@ import com.google.android.exoplayer2.util.MimeTypes
 import com.google.android.exoplayer2.util.ParsableByteArray
 import com.google.android.exoplayer2.util.Util
 import org.tvheadend.htsp.HtspMessage
+import org.tvheadend.tvhclient.ui.features.playback.internal.HtspSubscriptionFrame
 import java.nio.charset.Charset
 import java.util.*
 
@@ -38,12 +39,12 @@ internal class TextsubStreamReader : StreamReader {
         mTrackOutput!!.format(buildFormat(streamIndex, stream))
     }
 
-    override fun consume(message: HtspMessage) {
+    override fun consume(frame: HtspSubscriptionFrame) {
 
-        val pts = message.getLong("pts")
-        val duration = message.getInteger("duration").toLong()
+        val pts = frame.pts
+        val duration = frame.duration.toLong()
         val payload = Util.getUtf8Bytes(
-                String(message.getByteArray("payload"), UTF_8).trim { it <= ' ' })
+                String(frame.payload.data, 0, frame.payloadSize, UTF_8).trim { it <= ' ' })
 
         val lengthWithPrefix = SUBRIP_PREFIX.size + payload.size
         val subsipSample = SUBRIP_PREFIX.copyOf(lengthWithPrefix)
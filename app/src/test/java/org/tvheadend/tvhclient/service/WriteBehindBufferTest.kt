@@ -0,0 +1,159 @@
+package org.tvheadend.tvhclient.service
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.tvheadend.data.entity.Program
+import org.tvheadend.data.entity.Recording
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class WriteBehindBufferTest {
+
+    private val savedChanges = LinkedBlockingQueue<WriteBehindBuffer.Changes>()
+
+    private fun awaitChanges(): WriteBehindBuffer.Changes {
+        val changes = savedChanges.poll(10, TimeUnit.SECONDS)
+        assertNotNull("No changes were saved", changes)
+        return changes!!
+    }
+
+    private fun awaitCondition(condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + 10000
+        while (!condition() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5)
+        }
+        assertTrue(condition())
+    }
+
+    @Test
+    fun savesLatestStateOfEachItem() {
+        val buffer = WriteBehindBuffer(flushDelay = 50) { savedChanges.add(it) }
+        buffer.putProgram(Program(eventId = 1, title = "First"))
+        buffer.putProgram(Program(eventId = 1, title = "Second"))
+        buffer.putProgram(Program(eventId = 2))
+        buffer.removeProgram(2)
+        buffer.removeRecording(3)
+        buffer.putRecording(Recording(id = 4, title = "Recording"))
+
+        val changes = awaitChanges()
+        assertEquals(1, changes.programs.size)
+        assertEquals("Second", changes.programs[0].title)
+        assertEquals(listOf(2), changes.removedProgramIds)
+        assertEquals(listOf(3), changes.removedRecordingIds)
+        assertEquals(listOf(4), changes.recordings.map { it.id })
+        assertEquals(0, changes.channels.size)
+
+        // The statistics are updated after the changes were saved
+        awaitCondition { buffer.flushCount == 1L }
+        assertEquals(6, buffer.totalChangeCount)
+        assertEquals(4, buffer.totalWriteCount)
+        buffer.close()
+    }
+
+    @Test
+    fun returnsPendingStateInsteadOfLoadedOne() {
+        val buffer = WriteBehindBuffer(flushDelay = 5000) { savedChanges.add(it) }
+        val program = Program(eventId = 1, title = "Pending")
+        buffer.putProgram(program)
+        buffer.removeProgram(2)
+
+        val pending = buffer.getProgram(1) { Program(eventId = 1, title = "Saved") }
+        assertEquals("Pending", pending?.title)
+        assertNotSame(program, pending)
+        assertNull(buffer.getProgram(2) { Program(eventId = 2) })
+        assertEquals("Saved", buffer.getProgram(3) { Program(eventId = 3, title = "Saved") }?.title)
+
+        // Closing saves the remaining changes right away
+        buffer.close()
+        assertEquals(1, awaitChanges().programs.size)
+    }
+
+    @Test
+    fun returnsChangesWhileTheyAreBeingSaved() {
+        val saving = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val buffer = WriteBehindBuffer(flushDelay = 20) { changes ->
+            saving.countDown()
+            release.await(10, TimeUnit.SECONDS)
+            savedChanges.add(changes)
+        }
+        buffer.putProgram(Program(eventId = 1, title = "Saving"))
+        buffer.removeProgram(2)
+        buffer.putRecording(Recording(id = 3, title = "Saving"))
+        assertTrue(saving.await(10, TimeUnit.SECONDS))
+
+        // The database still contains the old state until the transaction has committed
+        assertEquals("Saving", buffer.getProgram(1) { Program(eventId = 1, title = "Old") }?.title)
+        assertNull(buffer.getProgram(2) { Program(eventId = 2, title = "Old") })
+        assertEquals("Saving", buffer.getRecording(3) { Recording(id = 3, title = "Old") }?.title)
+
+        release.countDown()
+        awaitChanges()
+        awaitCondition { buffer.flushCount == 1L }
+        assertEquals("Saved", buffer.getProgram(1) { Program(eventId = 1, title = "Saved") }?.title)
+        assertEquals("Saved", buffer.getRecording(3) { Recording(id = 3, title = "Saved") }?.title)
+        buffer.close()
+    }
+
+    @Test
+    fun savesBurstOfChangesBeforeTheDelayPassed() {
+        val buffer = WriteBehindBuffer(flushDelay = 5000, maxPendingChanges = 3) { savedChanges.add(it) }
+        for (id in 1..3) {
+            buffer.putProgram(Program(eventId = id))
+        }
+
+        assertEquals(listOf(1, 2, 3), awaitChanges().programs.map { it.eventId })
+        buffer.close()
+    }
+
+    @Test
+    fun savesFailedChangesAgainWithNewerChanges() {
+        val attempts = AtomicInteger()
+        lateinit var buffer: WriteBehindBuffer
+        buffer = WriteBehindBuffer(flushDelay = 50) { changes ->
+            if (attempts.incrementAndGet() == 1) {
+                // A change that arrives while the failing flush is running
+                buffer.putProgram(Program(eventId = 1, title = "Newer"))
+                throw IllegalStateException("Database is locked")
+            }
+            savedChanges.add(changes)
+        }
+        buffer.putProgram(Program(eventId = 1, title = "Older"))
+        buffer.putProgram(Program(eventId = 2, title = "Other"))
+
+        val changes = awaitChanges()
+        assertEquals(2, attempts.get())
+        assertEquals(listOf("Newer", "Other"), changes.programs.sortedBy { it.eventId }.map { it.title })
+        assertEquals(1, buffer.failedFlushCount)
+        assertEquals(0, buffer.droppedChangeCount)
+        buffer.close()
+    }
+
+    @Test
+    fun dropsChangesThatFailedTooOften() {
+        val attempts = AtomicInteger()
+        val buffer = WriteBehindBuffer(flushDelay = 20, maxFailedFlushes = 2) { changes ->
+            if (attempts.incrementAndGet() <= 2) {
+                throw IllegalStateException("Database is locked")
+            }
+            savedChanges.add(changes)
+        }
+        buffer.putProgram(Program(eventId = 1))
+        buffer.putProgram(Program(eventId = 2))
+
+        awaitCondition { buffer.droppedChangeCount == 2L }
+        assertEquals(2, buffer.failedFlushCount)
+
+        // The dropped changes are not part of the next flush
+        buffer.putProgram(Program(eventId = 3))
+        assertEquals(listOf(3), awaitChanges().programs.map { it.eventId })
+        assertEquals(3, attempts.get())
+        buffer.close()
+    }
+}
@@ -0,0 +1,122 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HtspFileBlockCacheTest {
+
+    private File spillDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        spillDirectory = Files.createTempDirectory("blockcache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = spillDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spillDirectory.delete();
+    }
+
+    private static byte[] block(int value) {
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (value + i);
+        }
+        return data;
+    }
+
+    private int spillFileCount() {
+        File[] files = spillDirectory.listFiles();
+        return files != null ? files.length : 0;
+    }
+
+    @Test
+    public void returnsBlocksByFileAndOffset() {
+        HtspFileBlockCache cache = new HtspFileBlockCache(4, null, 0);
+        byte[] first = block(1);
+        byte[] second = block(2);
+        cache.put(1, 0, first);
+        cache.put(2, 0, second);
+
+        assertTrue(cache.contains(1, 0));
+        assertFalse(cache.contains(1, 100));
+        assertSame(first, cache.get(1, 0));
+        assertSame(second, cache.get(2, 0));
+        assertNull(cache.get(1, 100));
+    }
+
+    @Test
+    public void discardsLeastRecentlyUsedBlocksWithoutSpillDirectory() {
+        HtspFileBlockCache cache = new HtspFileBlockCache(2, null, 0);
+        cache.put(1, 0, block(0));
+        cache.put(1, 100, block(1));
+        // Makes the first block the most recently used one
+        cache.get(1, 0);
+        cache.put(1, 200, block(2));
+
+        assertTrue(cache.contains(1, 0));
+        assertFalse(cache.contains(1, 100));
+        assertTrue(cache.contains(1, 200));
+    }
+
+    @Test
+    public void readsBackSpilledBlocks() {
+        HtspFileBlockCache cache = new HtspFileBlockCache(1, spillDirectory, 1000);
+        cache.put(1, 0, block(0));
+        cache.put(1, 100, block(1));
+
+        assertEquals(1, spillFileCount());
+        assertTrue(cache.contains(1, 0));
+        assertArrayEquals(block(0), cache.get(1, 0));
+
+        // The block is back in memory and the other one was spilled instead
+        assertEquals(1, spillFileCount());
+        assertArrayEquals(block(1), cache.get(1, 100));
+    }
+
+    @Test
+    public void limitsTheSizeOfTheSpillDirectory() {
+        HtspFileBlockCache cache = new HtspFileBlockCache(1, spillDirectory, 250);
+        for (int i = 0; i < 5; i++) {
+            cache.put(1, i * 100, block(i));
+        }
+
+        // Two blocks fit into the spill directory besides the one in memory
+        assertEquals(2, spillFileCount());
+        assertFalse(cache.contains(1, 0));
+        assertFalse(cache.contains(1, 100));
+        assertArrayEquals(block(2), cache.get(1, 200));
+        assertArrayEquals(block(3), cache.get(1, 300));
+        assertArrayEquals(block(4), cache.get(1, 400));
+    }
+
+    @Test
+    public void removesAllBlocksOnClear() {
+        HtspFileBlockCache cache = new HtspFileBlockCache(1, spillDirectory, 1000);
+        cache.put(1, 0, block(0));
+        cache.put(1, 100, block(1));
+        cache.clear();
+
+        assertEquals(0, spillFileCount());
+        assertNull(cache.get(1, 0));
+        assertNull(cache.get(1, 100));
+    }
+}
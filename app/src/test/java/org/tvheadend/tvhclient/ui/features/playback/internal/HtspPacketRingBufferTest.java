@@ -0,0 +1,114 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HtspPacketRingBufferTest {
+
+    private static byte[] bytes(int start, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (start + i);
+        }
+        return data;
+    }
+
+    private static byte[] read(HtspPacketRingBuffer buffer, int length) {
+        byte[] data = new byte[length];
+        assertEquals(length, buffer.read(data, 0, length));
+        return data;
+    }
+
+    @Test
+    public void readsHeaderAndPayloadOfFrame() {
+        HtspPacketRingBuffer buffer = new HtspPacketRingBuffer(64);
+        assertTrue(buffer.isEmpty());
+
+        assertTrue(buffer.write(bytes(0, 4), 4, bytes(4, 10), 10));
+        assertEquals(14, buffer.size());
+        assertFalse(buffer.isEmpty());
+
+        assertArrayEquals(bytes(0, 6), read(buffer, 6));
+        assertArrayEquals(bytes(6, 8), read(buffer, 8));
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.read(new byte[8], 0, 8));
+    }
+
+    @Test
+    public void wrapsAroundTheEndOfTheArray() {
+        HtspPacketRingBuffer buffer = new HtspPacketRingBuffer(16);
+        for (int i = 0; i < 20; i++) {
+            // Frames of 7 bytes never end at the end of the array
+            assertTrue(buffer.write(bytes(i * 3, 2), 2, bytes(i * 3 + 2, 5), 5));
+            byte[] frame = new byte[7];
+            assertEquals(4, buffer.read(frame, 0, 4));
+            assertEquals(3, buffer.read(frame, 4, 10));
+            assertArrayEquals(bytes(i * 3, 7), frame);
+        }
+        assertEquals(0, buffer.getDroppedFrames());
+    }
+
+    @Test
+    public void dropsFrameThatDoesNotFit() {
+        HtspPacketRingBuffer buffer = new HtspPacketRingBuffer(16);
+        assertTrue(buffer.write(bytes(0, 10), 10));
+        assertFalse(buffer.write(bytes(10, 7), 7));
+        assertEquals(1, buffer.getDroppedFrames());
+        assertEquals(7, buffer.getDroppedBytes());
+        assertEquals(10, buffer.size());
+
+        // A frame that fits exactly into the free space is written completely
+        assertTrue(buffer.write(bytes(20, 6), 6));
+        assertEquals(16, buffer.size());
+        assertArrayEquals(bytes(0, 10), read(buffer, 10));
+        assertArrayEquals(bytes(20, 6), read(buffer, 6));
+    }
+
+    @Test
+    public void discardsUnreadDataOnClear() {
+        HtspPacketRingBuffer buffer = new HtspPacketRingBuffer(16);
+        buffer.write(bytes(0, 12), 12);
+        buffer.clear();
+
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.size());
+        assertTrue(buffer.write(bytes(12, 16), 16));
+        assertArrayEquals(bytes(12, 16), read(buffer, 16));
+    }
+
+    @Test
+    public void passesFramesBetweenThreads() throws InterruptedException {
+        HtspPacketRingBuffer buffer = new HtspPacketRingBuffer(256);
+        int frames = 10000;
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < frames; i++) {
+                byte[] frame = bytes(i, 9);
+                while (!buffer.write(frame, frame.length)) {
+                    Thread.yield();
+                }
+            }
+        });
+        writer.start();
+
+        byte[] frame = new byte[9];
+        for (int i = 0; i < frames; i++) {
+            int offset = 0;
+            while (offset < frame.length) {
+                int count = buffer.read(frame, offset, frame.length - offset);
+                if (count == 0) {
+                    buffer.awaitData(10, TimeUnit.MILLISECONDS);
+                }
+                offset += count;
+            }
+            assertArrayEquals(bytes(i, 9), frame);
+        }
+        writer.join();
+        assertTrue(buffer.isEmpty());
+    }
+}
@@ -0,0 +1,129 @@
+package org.tvheadend.data.db
+
+import android.content.Context
+import androidx.room.Room
+import androidx.room.util.TableInfo
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteOpenHelper
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class AppRoomDatabaseMigrationTest {
+
+    private lateinit var helper: SupportSQLiteOpenHelper
+    private lateinit var database: SupportSQLiteDatabase
+
+    @Before
+    fun createVersion12Database() {
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        val configuration = SupportSQLiteOpenHelper.Configuration.builder(context)
+                .name(null)
+                .callback(object : SupportSQLiteOpenHelper.Callback(12) {
+                    override fun onCreate(db: SupportSQLiteDatabase) {
+                        // The connections table as it was created by version 12
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `connections` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                                "`name` TEXT, `hostname` TEXT, `port` INTEGER NOT NULL, `username` TEXT, `password` TEXT, " +
+                                "`active` INTEGER NOT NULL, `streaming_port` INTEGER NOT NULL, `wol_enabled` INTEGER NOT NULL, " +
+                                "`wol_hostname` TEXT, `wol_port` INTEGER NOT NULL, `wol_use_broadcast` INTEGER NOT NULL, " +
+                                "`last_update` INTEGER NOT NULL, `sync_required` INTEGER NOT NULL, `server_url` TEXT, `streaming_url` TEXT)")
+                        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_connections_id` ON `connections` (`id`)")
+                        // The programs table as it was created by version 12
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `programs` (`id` INTEGER NOT NULL, `channel_id` INTEGER NOT NULL, " +
+                                "`start` INTEGER NOT NULL, `stop` INTEGER NOT NULL, `title` TEXT, `subtitle` TEXT, `summary` TEXT, " +
+                                "`description` TEXT, `credits` TEXT, `category` TEXT, `keyword` TEXT, `series_link_id` INTEGER NOT NULL, " +
+                                "`episode_id` INTEGER NOT NULL, `season_id` INTEGER NOT NULL, `brand_id` INTEGER NOT NULL, " +
+                                "`content_type` INTEGER NOT NULL, `age_rating` INTEGER NOT NULL, `star_rating` INTEGER NOT NULL, " +
+                                "`copyright_year` INTEGER NOT NULL, `first_aired` INTEGER NOT NULL, `season_number` INTEGER NOT NULL, " +
+                                "`season_count` INTEGER NOT NULL, `episode_number` INTEGER NOT NULL, `episode_count` INTEGER NOT NULL, " +
+                                "`part_number` INTEGER NOT NULL, `part_count` INTEGER NOT NULL, `episode_on_screen` TEXT, `image` TEXT, " +
+                                "`dvr_id` INTEGER NOT NULL, `next_event_id` INTEGER NOT NULL, `series_link_uri` TEXT, `episode_uri` TEXT, " +
+                                "`modified_time` INTEGER NOT NULL, `connection_id` INTEGER NOT NULL, `channel_name` TEXT, `channel_icon` TEXT, " +
+                                "PRIMARY KEY(`id`, `connection_id`))")
+                        db.execSQL("CREATE INDEX IF NOT EXISTS `index_programs_start` ON `programs` (`start`)")
+                        db.execSQL("CREATE INDEX IF NOT EXISTS `index_programs_channel_id` ON `programs` (`channel_id`)")
+                    }
+
+                    override fun onUpgrade(db: SupportSQLiteDatabase, oldVersion: Int, newVersion: Int) {
+                    }
+                })
+                .build()
+        helper = FrameworkSQLiteOpenHelperFactory().create(configuration)
+        database = helper.writableDatabase
+    }
+
+    @After
+    fun closeDatabase() {
+        helper.close()
+    }
+
+    @Test
+    fun migrationFrom12To13AddsEpgSyncColumns() {
+        database.execSQL("INSERT INTO connections (id, name, hostname, port, username, password, active, streaming_port, " +
+                "wol_enabled, wol_hostname, wol_port, wol_use_broadcast, last_update, sync_required, server_url, streaming_url) " +
+                "VALUES (1, 'Server', 'tvheadend', 9982, '', '', 1, 9981, 0, '', 9, 0, 1577836800, 0, '', '')")
+
+        AppRoomDatabase.MIGRATION_12_13.migrate(database)
+
+        val columns = HashMap<String, String?>()
+        database.query("PRAGMA table_info(connections)").use { cursor ->
+            while (cursor.moveToNext()) {
+                columns[cursor.getString(cursor.getColumnIndex("name"))] = cursor.getString(cursor.getColumnIndex("dflt_value"))
+            }
+        }
+        assertTrue(columns.containsKey("epg_watermark"))
+        assertTrue(columns.containsKey("epg_complete_sync_time"))
+        assertEquals("0", columns["epg_watermark"])
+        assertEquals("0", columns["epg_complete_sync_time"])
+
+        // The existing connection keeps its data and starts without a watermark
+        database.query("SELECT name, last_update, epg_watermark, epg_complete_sync_time FROM connections WHERE id = 1").use { cursor ->
+            assertTrue(cursor.moveToFirst())
+            assertEquals("Server", cursor.getString(0))
+            assertEquals(1577836800L, cursor.getLong(1))
+            assertEquals(0L, cursor.getLong(2))
+            assertEquals(0L, cursor.getLong(3))
+        }
+    }
+
+    @Test
+    fun migrationFrom12To13AddsSyncGenerationColumn() {
+        database.execSQL("INSERT INTO programs (id, channel_id, start, stop, title, series_link_id, episode_id, season_id, " +
+                "brand_id, content_type, age_rating, star_rating, copyright_year, first_aired, season_number, season_count, " +
+                "episode_number, episode_count, part_number, part_count, dvr_id, next_event_id, modified_time, connection_id) " +
+                "VALUES (100, 1, 1577836800, 1577840400, 'News', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1)")
+
+        AppRoomDatabase.MIGRATION_12_13.migrate(database)
+
+        // The existing program keeps its data and was not received by any complete sync yet
+        database.query("SELECT title, start, sync_generation FROM programs WHERE id = 100 AND connection_id = 1").use { cursor ->
+            assertTrue(cursor.moveToFirst())
+            assertEquals("News", cursor.getString(0))
+            assertEquals(1577836800L, cursor.getLong(1))
+            assertEquals(0L, cursor.getLong(2))
+        }
+    }
+
+    @Test
+    fun migratedTablesMatchVersion13() {
+        AppRoomDatabase.MIGRATION_12_13.migrate(database)
+
+        val context = ApplicationProvider.getApplicationContext<Context>()
+        val roomDatabase = Room.inMemoryDatabaseBuilder(context, AppRoomDatabase::class.java).build()
+        try {
+            for (table in listOf("connections", "programs")) {
+                val expected = TableInfo.read(roomDatabase.openHelper.writableDatabase, table)
+                assertEquals(expected, TableInfo.read(database, table))
+            }
+        } finally {
+            roomDatabase.close()
+        }
+    }
+}
@@ -65,6 +65,9 @@ interface ChannelDao {
     @Update
     fun update(channel: Channel)
 
+    @Update
+    fun update(channels: List<Channel>)
+
     @Delete
     fun delete(channel: Channel)
 
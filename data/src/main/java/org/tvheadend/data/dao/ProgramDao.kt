@@ -3,6 +3,7 @@ package org.tvheadend.data.dao
 import androidx.lifecycle.LiveData
 import androidx.room.*
 import org.tvheadend.data.entity.EpgProgram
+import org.tvheadend.data.entity.LastEventOfChannel
 import org.tvheadend.data.entity.Program
 
 @Dao
@@ -87,6 +88,19 @@ interface ProgramDao {
             " ORDER BY start DESC LIMIT 1")
     fun loadLastProgramFromChannelSync(channelId: Int): Program
 
+    // SQLite takes the other columns from the row with the latest start time of each channel
+    @Query("SELECT p.channel_id, p.id, p.next_event_id, MAX(p.start) AS start " +
+            "FROM programs AS p " +
+            " WHERE $CONNECTION_IS_ACTIVE" +
+            " GROUP BY p.channel_id")
+    fun loadLastEventOfAllChannelsSync(): List<LastEventOfChannel>
+
+    @Query("DELETE FROM programs " +
+            "WHERE connection_id = :connectionId " +
+            " AND stop > :startTime AND start < :endTime" +
+            " AND sync_generation != :syncGeneration")
+    fun deleteProgramsNotInSync(connectionId: Int, startTime: Long, endTime: Long, syncGeneration: Long): Int
+
     @Query("DELETE FROM programs " + "WHERE stop < :time")
     fun deleteProgramsByTime(time: Long)
 
@@ -115,6 +129,18 @@ interface ProgramDao {
             " AND id = :id")
     fun deleteById(id: Int)
 
+    @Query("DELETE FROM programs " +
+            "WHERE connection_id = :connectionId " +
+            " AND id IN (:ids)")
+    fun deleteByIds(connectionId: Int, ids: List<Int>)
+
+    @Query("DELETE FROM programs " +
+            "WHERE connection_id = :connectionId " +
+            " AND channel_id = :channelId " +
+            " AND id != :id " +
+            " AND start < :stop AND stop > :start")
+    fun deleteOverlappingPrograms(connectionId: Int, channelId: Int, id: Int, start: Long, stop: Long)
+
     @Query("DELETE FROM programs")
     fun deleteAll()
 
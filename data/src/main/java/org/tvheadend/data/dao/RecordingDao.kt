@@ -128,6 +128,11 @@ interface RecordingDao {
             " AND id = :id")
     fun deleteById(id: Int)
 
+    @Query("DELETE FROM recordings " +
+            " WHERE connection_id = :connectionId " +
+            " AND id IN (:ids)")
+    fun deleteByIds(connectionId: Int, ids: List<Int>)
+
     @Query("DELETE FROM recordings")
     fun deleteAll()
 
@@ -1,6 +1,7 @@
 package org.tvheadend.data.db
 
 import android.content.Context
+import androidx.annotation.VisibleForTesting
 import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
@@ -21,7 +22,7 @@ import org.tvheadend.data.entity.*
             ServerProfile::class,
             ServerStatus::class],
         exportSchema = false,
-        version = 12)
+        version = 13)
 abstract class AppRoomDatabase : RoomDatabase() {
 
     abstract val timerRecordingDao: TimerRecordingDao
@@ -63,6 +64,7 @@ abstract class AppRoomDatabase : RoomDatabase() {
                             .addMigrations(MIGRATION_9_10)
                             .addMigrations(MIGRATION_10_11)
                             .addMigrations(MIGRATION_11_12)
+                            .addMigrations(MIGRATION_12_13)
                             .build()
                 }
             }
@@ -151,5 +153,14 @@ abstract class AppRoomDatabase : RoomDatabase() {
                 database.execSQL("ALTER TABLE programs ADD COLUMN modified_time INTEGER NOT NULL DEFAULT 0;")
             }
         }
+
+        @VisibleForTesting
+        internal val MIGRATION_12_13 = object : Migration(12, 13) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("ALTER TABLE connections ADD COLUMN epg_watermark INTEGER NOT NULL DEFAULT 0;")
+                database.execSQL("ALTER TABLE connections ADD COLUMN epg_complete_sync_time INTEGER NOT NULL DEFAULT 0;")
+                database.execSQL("ALTER TABLE programs ADD COLUMN sync_generation INTEGER NOT NULL DEFAULT 0;")
+            }
+        }
     }
 }
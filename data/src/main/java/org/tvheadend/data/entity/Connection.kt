@@ -34,5 +34,11 @@ data class Connection(
         @ColumnInfo(name = "server_url")
         var serverUrl: String? = "",
         @ColumnInfo(name = "streaming_url")
-        var streamingUrl: String? = ""
+        var streamingUrl: String? = "",
+        // Server time in seconds up to which all changes of the program guide have been received
+        @ColumnInfo(name = "epg_watermark")
+        var epgWatermark: Long = 0,
+        // Local time in seconds of the last sync that received all events of the program guide
+        @ColumnInfo(name = "epg_complete_sync_time")
+        var epgCompleteSyncTime: Long = 0
 )
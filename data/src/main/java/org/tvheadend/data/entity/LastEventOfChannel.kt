@@ -0,0 +1,15 @@
+package org.tvheadend.data.entity
+
+import androidx.room.ColumnInfo
+
+data class LastEventOfChannel(
+
+        @ColumnInfo(name = "channel_id")
+        var channelId: Int = 0,
+        @ColumnInfo(name = "id")
+        var eventId: Int = 0,
+        @ColumnInfo(name = "next_event_id")
+        var nextEventId: Int = 0,
+        @ColumnInfo(name = "start")
+        var start: Long = 0
+)
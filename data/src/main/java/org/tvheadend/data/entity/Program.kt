@@ -66,6 +66,9 @@ data class Program(
         override var episodeUri: String? = null,
         @ColumnInfo(name = "modified_time")
         override var modifiedTime: Long = 0,
+        // Start time in seconds of the last complete sync of the program guide that received the event
+        @ColumnInfo(name = "sync_generation")
+        var syncGeneration: Long = 0,
 
         @ColumnInfo(name = "connection_id")
         override var connectionId: Int = 0,
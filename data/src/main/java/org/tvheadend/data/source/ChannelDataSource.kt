@@ -28,6 +28,13 @@ class ChannelDataSource(private val db: AppRoomDatabase) : DataSourceInterface<C
         ioScope.launch { db.channelDao.update(item) }
     }
 
+    /**
+     * Updates the items on the calling thread, which must not be the main thread
+     */
+    fun updateItemsSync(items: List<Channel>) {
+        db.channelDao.update(items)
+    }
+
     override fun removeItem(item: Channel) {
         ioScope.launch { db.channelDao.delete(item) }
     }
@@ -20,6 +20,14 @@ class MiscDataSource(private val db: AppRoomDatabase) {
         }
     }
 
+    /**
+     * Runs the given block in one transaction on the calling thread, which must not be the main thread.
+     * The synchronous methods of the other data sources that are called within the block become part of it.
+     */
+    fun runInTransactionSync(block: () -> Unit) {
+        db.runInTransaction(Runnable { block() })
+    }
+
     @SuppressLint("BinaryOperationInTimber")
     private fun clearDatabase() {
 
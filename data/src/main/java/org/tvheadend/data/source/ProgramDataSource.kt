@@ -7,6 +7,7 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import org.tvheadend.data.db.AppRoomDatabase
 import org.tvheadend.data.entity.EpgProgram
+import org.tvheadend.data.entity.LastEventOfChannel
 import org.tvheadend.data.entity.Program
 
 class ProgramDataSource(private val db: AppRoomDatabase) : DataSourceInterface<Program> {
@@ -30,6 +31,39 @@ class ProgramDataSource(private val db: AppRoomDatabase) : DataSourceInterface<P
         ioScope.launch { db.programDao.insert(ArrayList(items)) }
     }
 
+    /**
+     * Removes the programs with the given ids and inserts the given items in one transaction
+     * on the calling thread, which must not be the main thread. If requested, the programs
+     * of the same channel that overlap with an inserted item are removed as well.
+     */
+    fun addAndRemoveItemsSync(items: List<Program>, removedIds: List<Int>, connectionId: Int, removeOverlapping: Boolean) {
+        db.runInTransaction {
+            // Each id is a bound variable, SQLite allows at most 999 of them in one statement
+            for (ids in removedIds.chunked(MAX_IDS_PER_DELETE)) {
+                db.programDao.deleteByIds(connectionId, ids)
+            }
+            if (removeOverlapping) {
+                for (item in items) {
+                    db.programDao.deleteOverlappingPrograms(item.connectionId, item.channelId, item.eventId, item.start, item.stop)
+                }
+            }
+            if (items.isNotEmpty()) {
+                db.programDao.insert(items)
+            }
+        }
+    }
+
+    /**
+     * Removes the programs of the connection that run between the given times, but
+     * that were not saved with the given sync generation. This is done with one
+     * statement on the calling thread, which must not be the main thread.
+     *
+     * @return The number of removed programs
+     */
+    fun removeItemsNotInSync(connectionId: Int, startTime: Long, endTime: Long, syncGeneration: Long): Int {
+        return db.programDao.deleteProgramsNotInSync(connectionId, startTime, endTime, syncGeneration)
+    }
+
     override fun updateItem(item: Program) {
         ioScope.launch { db.programDao.update(item) }
     }
@@ -98,6 +132,14 @@ class ProgramDataSource(private val db: AppRoomDatabase) : DataSourceInterface<P
         return program
     }
 
+    fun getLastItemOfAllChannels(): List<LastEventOfChannel> {
+        val events = ArrayList<LastEventOfChannel>()
+        runBlocking(Dispatchers.IO) {
+            events.addAll(db.programDao.loadLastEventOfAllChannelsSync())
+        }
+        return events
+    }
+
     fun getItemsByChannelId(id: Int): List<Program> {
         val programs = ArrayList<Program>()
         runBlocking(Dispatchers.IO) {
@@ -105,4 +147,8 @@ class ProgramDataSource(private val db: AppRoomDatabase) : DataSourceInterface<P
         }
         return programs
     }
+
+    companion object {
+        private const val MAX_IDS_PER_DELETE = 500
+    }
 }
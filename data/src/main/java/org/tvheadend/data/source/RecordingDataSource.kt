@@ -30,6 +30,22 @@ class RecordingDataSource(private val db: AppRoomDatabase) : DataSourceInterface
         scope.launch { db.recordingDao.delete(item) }
     }
 
+    /**
+     * Removes the recordings with the given ids and inserts the given items in one
+     * transaction on the calling thread, which must not be the main thread
+     */
+    fun addAndRemoveItemsSync(items: List<Recording>, removedIds: List<Int>, connectionId: Int) {
+        db.runInTransaction {
+            // Each id is a bound variable, SQLite allows at most 999 of them in one statement
+            for (ids in removedIds.chunked(MAX_IDS_PER_DELETE)) {
+                db.recordingDao.deleteByIds(connectionId, ids)
+            }
+            if (items.isNotEmpty()) {
+                db.recordingDao.insert(items)
+            }
+        }
+    }
+
     override fun getLiveDataItemCount(): LiveData<Int> {
         return MutableLiveData()
     }
@@ -107,4 +123,8 @@ class RecordingDataSource(private val db: AppRoomDatabase) : DataSourceInterface
             db.recordingDao.insert(items)
         }
     }
+
+    companion object {
+        private const val MAX_IDS_PER_DELETE = 500
+    }
 }
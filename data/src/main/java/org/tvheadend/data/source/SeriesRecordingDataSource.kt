@@ -25,6 +25,10 @@ class SeriesRecordingDataSource(private val db: AppRoomDatabase) : DataSourceInt
         ioScope.launch { db.seriesRecordingDao.delete(item) }
     }
 
+    fun removeItemById(id: String) {
+        ioScope.launch { db.seriesRecordingDao.deleteById(id) }
+    }
+
     override fun getLiveDataItemCount(): LiveData<Int> {
         return db.seriesRecordingDao.itemCount
     }
@@ -25,6 +25,10 @@ class TimerRecordingDataSource(private val db: AppRoomDatabase) : DataSourceInte
         ioScope.launch { db.timerRecordingDao.delete(item) }
     }
 
+    fun removeItemById(id: String) {
+        ioScope.launch { db.timerRecordingDao.deleteById(id) }
+    }
+
     override fun getLiveDataItemCount(): LiveData<Int> {
         return db.timerRecordingDao.itemCount
     }
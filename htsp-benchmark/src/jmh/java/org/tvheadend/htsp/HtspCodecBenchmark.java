@@ -0,0 +1,90 @@
+package org.tvheadend.htsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the current codec with the codec that converted every integer
+ * through BigInteger. One operation encodes or decodes a single message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HtspCodecBenchmark {
+
+    private static final int MESSAGE_COUNT = 256;
+
+    @Param({HtspTraffic.MUXPKT, HtspTraffic.EVENT_ADD})
+    public String method;
+
+    private List<HtspMessage> messages;
+    private ByteBuffer[] frames;
+    private ByteBuffer[] legacyFrames;
+    private ByteBuffer buffer;
+    private HtspMessageEncoder encoder;
+    private HtspMessageDecoder decoder;
+    private int index;
+
+    @Setup
+    public void setup() throws IOException {
+        messages = HtspTraffic.create(method, MESSAGE_COUNT);
+        encoder = new HtspMessageEncoder();
+        decoder = new HtspMessageDecoder();
+        buffer = ByteBuffer.allocate(1024 * 1024);
+
+        frames = new ByteBuffer[MESSAGE_COUNT];
+        legacyFrames = new ByteBuffer[MESSAGE_COUNT];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            buffer.clear();
+            encoder.encode(messages.get(i), buffer);
+            buffer.flip();
+            frames[i] = ByteBuffer.allocate(buffer.remaining());
+            frames[i].put(buffer);
+            frames[i].flip();
+            legacyFrames[i] = ByteBuffer.wrap(LegacyHtspCodec.serialize(messages.get(i)));
+        }
+    }
+
+    private int next() {
+        index = (index + 1) % MESSAGE_COUNT;
+        return index;
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws IOException {
+        buffer.clear();
+        encoder.encode(messages.get(next()), buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy() throws IOException {
+        return LegacyHtspCodec.serialize(messages.get(next()));
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) throws IOException {
+        ByteBuffer frame = frames[next()];
+        frame.rewind();
+        blackhole.consume(decoder.decode(frame));
+    }
+
+    @Benchmark
+    public void decodeLegacy(Blackhole blackhole) throws IOException {
+        ByteBuffer frame = legacyFrames[next()];
+        frame.rewind();
+        blackhole.consume(LegacyHtspCodec.deserialize(frame));
+    }
+}
@@ -0,0 +1,94 @@
+package org.tvheadend.htsp;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures request and response round trips of a {@link HtspConnection}
+ * to a {@link HtspServer} on the loopback interface.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HtspConnectionBenchmark {
+
+    private static final int PIPELINED_REQUESTS = 64;
+
+    private HtspServer server;
+    private HtspConnection connection;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new HtspServer("user", "password");
+        server.addRequestHandler("getSysTime", (client, request) -> {
+            HtspMessage response = new HtspMessage();
+            response.put("time", System.currentTimeMillis() / 1000);
+            response.put("gmtoffset", 0);
+            return response;
+        });
+        server.start();
+
+        connection = new HtspConnection("user", "password", server.getUrl(), 5000, new HtspConnectionStateListener() {
+            @Override
+            public void onAuthenticationStateChange(@NotNull HtspConnection.AuthenticationState state) {
+            }
+
+            @Override
+            public void onConnectionStateChange(@NotNull HtspConnection.ConnectionState state) {
+            }
+        }, null);
+        connection.openConnection();
+        connection.authenticate();
+        if (!connection.isAuthenticated()) {
+            throw new IOException("Could not connect to the server");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        connection.closeConnection();
+        server.close();
+    }
+
+    private static HtspMessage createRequest() {
+        HtspMessage request = new HtspMessage();
+        request.setMethod("getSysTime");
+        return request;
+    }
+
+    /**
+     * Sends one request and waits for its response
+     */
+    @Benchmark
+    public HtspMessage roundTrip() throws InterruptedException {
+        return connection.sendRequest(createRequest()).get();
+    }
+
+    /**
+     * Sends several requests before waiting for the responses
+     */
+    @Benchmark
+    @OperationsPerInvocation(PIPELINED_REQUESTS)
+    public HtspMessage pipelinedRoundTrips() throws InterruptedException {
+        HtspResponseFuture[] responses = new HtspResponseFuture[PIPELINED_REQUESTS];
+        for (int i = 0; i < PIPELINED_REQUESTS; i++) {
+            responses[i] = connection.sendRequest(createRequest());
+        }
+        HtspMessage response = null;
+        for (HtspResponseFuture future : responses) {
+            response = future.get();
+        }
+        return response;
+    }
+}
@@ -0,0 +1,69 @@
+package org.tvheadend.htsp;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many muxpkt messages per second the dispatcher delivers to the
+ * given number of listeners. The queues of the listeners are bounded, so the
+ * throughput is limited by the slowest listener once the queues are full.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HtspDispatcherBenchmark {
+
+    private static final int MESSAGE_COUNT = 256;
+
+    @Param({"1", "4", "16"})
+    public int listenerCount;
+
+    private HtspMessageDispatcher dispatcher;
+    private List<HtspMessageListener> listeners;
+    private List<HtspMessage> messages;
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private int index;
+
+    @Setup
+    public void setup() {
+        messages = HtspTraffic.create(HtspTraffic.MUXPKT, MESSAGE_COUNT);
+        dispatcher = new HtspMessageDispatcher();
+        listeners = new ArrayList<>();
+        for (int i = 0; i < listenerCount; i++) {
+            HtspMessageListener listener = new HtspMessageListener() {
+                @Override
+                public void onMessage(@NotNull HtspMessage response) {
+                    receivedBytes.addAndGet(response.getByteArray("payload").length);
+                }
+            };
+            listeners.add(listener);
+            dispatcher.addListener(listener);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (HtspMessageListener listener : listeners) {
+            dispatcher.removeListener(listener);
+        }
+    }
+
+    @Benchmark
+    public void dispatch() {
+        index = (index + 1) % MESSAGE_COUNT;
+        dispatcher.dispatch(messages.get(index));
+    }
+}
@@ -0,0 +1,71 @@
+package org.tvheadend.htsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast a traffic log is split into messages and decoded. One operation
+ * replays the whole log at maximum speed. A log that was recorded from a real server
+ * can be given with the log parameter, otherwise a log with generated event and
+ * packet messages is used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HtspReplayBenchmark {
+
+    private static final int MESSAGE_COUNT = 4000;
+
+    @Param({""})
+    public String log;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() throws IOException {
+        if (!log.isEmpty()) {
+            data = Files.readAllBytes(new File(log).toPath());
+            return;
+        }
+
+        List<HtspMessage> messages = new ArrayList<>();
+        messages.addAll(HtspTraffic.create(HtspTraffic.EVENT_ADD, MESSAGE_COUNT / 2));
+        messages.addAll(HtspTraffic.create(HtspTraffic.MUXPKT, MESSAGE_COUNT / 2));
+
+        HtspMessageEncoder encoder = new HtspMessageEncoder();
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (HtspTrafficRecorder recorder = new HtspTrafficRecorder(out)) {
+            for (HtspMessage message : messages) {
+                buffer.clear();
+                encoder.encode(message, buffer);
+                recorder.record(HtspTrafficRecorder.DIRECTION_RECEIVED, buffer, 0, buffer.position());
+            }
+        }
+        data = out.toByteArray();
+    }
+
+    @Benchmark
+    public void replay(Blackhole blackhole) throws IOException {
+        try (HtspTrafficReplayer replayer = new HtspTrafficReplayer(new ByteArrayInputStream(data))) {
+            blackhole.consume(replayer.replay(blackhole::consume, false));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.tvheadend.htsp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Creates messages with the fields and value ranges that a tvheadend server
+ * sends for a running subscription and for the EPG synchronization.
+ * A fixed seed makes the messages identical for every benchmark run.
+ */
+final class HtspTraffic {
+
+    static final String MUXPKT = "muxpkt";
+    static final String EVENT_ADD = "eventAdd";
+
+    private HtspTraffic() {
+    }
+
+    static List<HtspMessage> create(String method, int count) {
+        Random random = new Random(42);
+        List<HtspMessage> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            switch (method) {
+                case MUXPKT:
+                    messages.add(createMuxpkt(random, i));
+                    break;
+                case EVENT_ADD:
+                    messages.add(createEventAdd(random, i));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown method " + method);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Video and audio packets of a SD stream with 25 frames per second. The packets
+     * are kept below 32 KB because the legacy codec cannot serialize larger maps.
+     */
+    private static HtspMessage createMuxpkt(Random random, int index) {
+        boolean video = index % 3 != 0;
+        long pts = 8589934592L - 900000 + index * 3600L;
+        byte[] payload = new byte[video ? 8000 + random.nextInt(24000) : 768];
+        random.nextBytes(payload);
+
+        HtspMessage msg = new HtspMessage();
+        msg.setMethod(MUXPKT);
+        msg.put("subscriptionId", 1);
+        msg.put("frametype", (int) (video && index % 25 != 1 ? 'P' : 'I'));
+        msg.put("stream", video ? 1 : 2);
+        msg.put("com", 0);
+        msg.put("pts", pts);
+        msg.put("dts", pts - 7200);
+        msg.put("duration", video ? 40000 : 24000);
+        msg.put("payload", payload);
+        return msg;
+    }
+
+    /**
+     * Events of the EPG as they are sent during the initial synchronization
+     */
+    private static HtspMessage createEventAdd(Random random, int index) {
+        long start = 1577836800L + index * 1800L;
+
+        HtspMessage msg = new HtspMessage();
+        msg.setMethod(EVENT_ADD);
+        msg.put("eventId", 1000000 + index);
+        msg.put("channelId", 1 + random.nextInt(1000));
+        msg.put("start", start);
+        msg.put("stop", start + 1800 + random.nextInt(3600));
+        msg.put("title", "Event title " + index);
+        msg.put("subtitle", "Episode " + random.nextInt(100));
+        msg.put("summary", "A short summary of the event that is shown in the program list");
+        msg.put("description", createText(random, 400));
+        msg.put("contentType", 16 + random.nextInt(200));
+        msg.put("ageRating", random.nextInt(18));
+        msg.put("seasonNumber", 1 + random.nextInt(10));
+        msg.put("episodeNumber", 1 + random.nextInt(24));
+        msg.put("episodeOnscreen", "S01E" + random.nextInt(24));
+        msg.put("serieslinkUri", "crid://example.tv/" + random.nextInt(100000));
+        msg.put("nextEventId", 1000001 + index);
+        return msg;
+    }
+
+    private static String createText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            text.append("word").append(random.nextInt(1000)).append(' ');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,231 @@
+package org.tvheadend.htsp;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The codec that HtspMessage used before the serialization was moved into
+ * HtspMessageEncoder and HtspMessageDecoder. Integers are converted through
+ * BigInteger and every field is copied into its own array. It is kept
+ * unchanged as the baseline the current codec is compared with.
+ */
+final class LegacyHtspCodec {
+
+    private LegacyHtspCodec() {
+    }
+
+    /**
+     * Returns the length prefixed message
+     */
+    static byte[] serialize(HtspMessage message) throws IOException {
+        byte[] data = serializeBinary(message);
+        byte[] frame = new byte[data.length + 4];
+        frame[0] = (byte) ((data.length >> 24) & 0xFF);
+        frame[1] = (byte) ((data.length >> 16) & 0xFF);
+        frame[2] = (byte) ((data.length >> 8) & 0xFF);
+        frame[3] = (byte) ((data.length) & 0xFF);
+        System.arraycopy(data, 0, frame, 4, data.length);
+        return frame;
+    }
+
+    /**
+     * Decodes the length prefixed message at the position of the buffer
+     */
+    static HtspMessage deserialize(ByteBuffer buf) throws IOException {
+        int len = buf.getInt();
+        int limit = buf.limit();
+        buf.limit(buf.position() + len);
+        HtspMessage msg = deserializeBinary(buf);
+        buf.limit(limit);
+        return msg;
+    }
+
+    private static byte[] toByteArray(BigInteger big) {
+        byte[] b = big.toByteArray();
+        byte[] b1 = new byte[b.length];
+
+        for (int i = 0; i < b.length; i++) {
+            b1[i] = b[b.length - 1 - i];
+        }
+
+        return b1;
+    }
+
+    private static BigInteger toBigInteger(byte[] b) {
+        byte[] b1 = new byte[b.length + 1];
+
+        for (int i = 0; i < b.length; i++) {
+            b1[i + 1] = b[b.length - 1 - i];
+        }
+
+        return new BigInteger(b1);
+    }
+
+    private static long uIntToLong(byte b1, byte b2, byte b3, byte b4) {
+        long i = 0;
+        i <<= 8;
+        i ^= b1 & 0xFF;
+        i <<= 8;
+        i ^= b2 & 0xFF;
+        i <<= 8;
+        i ^= b3 & 0xFF;
+        i <<= 8;
+        i ^= b4 & 0xFF;
+        return i;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static byte[] serializeBinary(String name, Object value) throws IOException {
+        byte[] bName = name.getBytes();
+        byte[] bData;
+        byte type;
+
+        if (value instanceof String) {
+            type = HtspMessage.HMF_STR;
+            bData = ((String) value).getBytes();
+        } else if (value instanceof BigInteger) {
+            type = HtspMessage.HMF_S64;
+            bData = toByteArray((BigInteger) value);
+        } else if (value instanceof Integer) {
+            type = HtspMessage.HMF_S64;
+            bData = toByteArray(BigInteger.valueOf((Integer) value));
+        } else if (value instanceof Long) {
+            type = HtspMessage.HMF_S64;
+            bData = toByteArray(BigInteger.valueOf((Long) value));
+        } else if (value instanceof byte[]) {
+            type = HtspMessage.HMF_BIN;
+            bData = (byte[]) value;
+        } else if (value instanceof Map) {
+            type = HtspMessage.HMF_MAP;
+            bData = serializeBinary((Map<String, Object>) value);
+        } else if (value instanceof Collection) {
+            type = HtspMessage.HMF_LIST;
+            bData = serializeBinary((Collection<?>) value);
+        } else if (value == null) {
+            throw new IOException("HTSP doesn't support null values");
+        } else {
+            throw new IOException("Unhandled class for " + name + ": " + value
+                    + " (" + value.getClass().getSimpleName() + ")");
+        }
+
+        byte[] buf = new byte[1 + 1 + 4 + bName.length + bData.length];
+        buf[0] = type;
+        buf[1] = (byte) (bName.length & 0xFF);
+        buf[2] = (byte) ((bData.length >> 24) & 0xFF);
+        buf[3] = (byte) ((bData.length >> 16) & 0xFF);
+        buf[4] = (byte) ((bData.length >> 8) & 0xFF);
+        buf[5] = (byte) ((bData.length) & 0xFF);
+
+        System.arraycopy(bName, 0, buf, 6, bName.length);
+        System.arraycopy(bData, 0, buf, 6 + bName.length, bData.length);
+
+        return buf;
+    }
+
+    private static byte[] serializeBinary(Collection<?> list) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(Short.MAX_VALUE);
+
+        for (Object value : list) {
+            byte[] sub = serializeBinary("", value);
+            buf.put(sub);
+        }
+
+        byte[] bBuf = new byte[buf.position()];
+        buf.flip();
+        buf.get(bBuf);
+
+        return bBuf;
+    }
+
+    private static byte[] serializeBinary(Map<String, Object> map) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(Short.MAX_VALUE);
+
+        for (Object key : map.keySet()) {
+            //noinspection SuspiciousMethodCalls
+            Object value = map.get(key);
+            byte[] sub = serializeBinary(key.toString(), value);
+            buf.put(sub);
+        }
+
+        byte[] bBuf = new byte[buf.position()];
+        buf.flip();
+        buf.get(bBuf);
+
+        return bBuf;
+    }
+
+    private static HtspMessage deserializeBinary(ByteBuffer buf) throws IOException {
+        byte type, namelen;
+        long datalen;
+
+        HtspMessage msg = new HtspMessage();
+        int cnt = 0;
+
+        while (buf.hasRemaining()) {
+            type = buf.get();
+            namelen = buf.get();
+            datalen = uIntToLong(buf.get(), buf.get(), buf.get(), buf.get());
+
+            if (datalen > Integer.MAX_VALUE) {
+                throw new IOException("Would get precision losses, datalen " + datalen + ", max int " + Integer.MAX_VALUE);
+            }
+            if (buf.limit() < namelen + datalen) {
+                throw new IOException("Buffer limit exceeded, limit " + buf.limit() + ", namelen " + namelen + ", datalen " + datalen);
+            }
+
+            // Get the key for the map (the name)
+            String name;
+            if (namelen == 0) {
+                name = Integer.toString(cnt++);
+            } else if (namelen > 0) {
+                byte[] bName = new byte[namelen];
+                buf.get(bName);
+                name = new String(bName);
+            } else {
+                throw new IOException("Buffer position is negative, namelen " + namelen);
+            }
+
+            // Get the actual content
+            Object obj;
+            byte[] bData = new byte[(int) datalen]; // Should be long?
+            buf.get(bData);
+
+            switch (type) {
+                case HtspMessage.HMF_STR: {
+                    obj = new String(bData);
+                    break;
+                }
+                case HtspMessage.HMF_BIN: {
+                    obj = bData;
+                    break;
+                }
+                case HtspMessage.HMF_S64: {
+                    obj = toBigInteger(bData);
+                    break;
+                }
+                case HtspMessage.HMF_MAP: {
+                    ByteBuffer sub = ByteBuffer.allocateDirect((int) datalen);
+                    sub.put(bData);
+                    sub.flip();
+                    obj = deserializeBinary(sub);
+                    break;
+                }
+                case HtspMessage.HMF_LIST: {
+                    ByteBuffer sub = ByteBuffer.allocateDirect((int) datalen);
+                    sub.put(bData);
+                    sub.flip();
+                    obj = new ArrayList<>(deserializeBinary(sub).values());
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown data type " + type);
+            }
+            msg.put(name, obj);
+        }
+        return msg;
+    }
+}
@@ -0,0 +1,27 @@
+package android.net;
+
+import java.net.URI;
+
+/**
+ * Stand-in for the Android class with the methods that HtspConnection uses
+ */
+public final class Uri {
+
+    private final URI uri;
+
+    private Uri(URI uri) {
+        this.uri = uri;
+    }
+
+    public static Uri parse(String uriString) {
+        return new Uri(URI.create(uriString));
+    }
+
+    public String getHost() {
+        return uri.getHost();
+    }
+
+    public int getPort() {
+        return uri.getPort();
+    }
+}
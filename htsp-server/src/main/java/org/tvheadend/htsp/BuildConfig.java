@@ -0,0 +1,13 @@
+package org.tvheadend.htsp;
+
+/**
+ * Stand-in for the build configuration that the Android build generates
+ */
+public final class BuildConfig {
+
+    public static final String VERSION_NAME = "1.0.0";
+    public static final int VERSION_CODE = 1;
+
+    private BuildConfig() {
+    }
+}
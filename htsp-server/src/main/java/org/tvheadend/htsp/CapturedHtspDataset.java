@@ -0,0 +1,168 @@
+package org.tvheadend.htsp;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A dataset that was captured from a tvheadend server. The capture file is a traffic
+ * log that was written by the {@link HtspTrafficRecorder} of a connection. The metadata is taken from the
+ * add and update messages and from the events of getEvents responses. The packets
+ * are taken from the first subscription in the capture.
+ */
+public class CapturedHtspDataset implements HtspDataset {
+
+    private final Map<Integer, HtspMessage> tags = new LinkedHashMap<>();
+    private final Map<Integer, HtspMessage> channels = new LinkedHashMap<>();
+    private final Map<Integer, HtspMessage> dvrEntries = new LinkedHashMap<>();
+    private final Map<Integer, HtspMessage> events = new HashMap<>();
+    private final Map<Integer, List<HtspMessage>> channelEvents = new HashMap<>();
+    private final List<HtspMessage> packets = new ArrayList<>();
+    private HtspMessage subscriptionStart;
+    private int subscriptionId;
+
+    private CapturedHtspDataset() {
+    }
+
+    /**
+     * Reads the messages of the capture file
+     */
+    @NonNull
+    public static CapturedHtspDataset load(@NonNull File file) throws IOException {
+        CapturedHtspDataset dataset = new CapturedHtspDataset();
+        try (HtspTrafficReplayer replayer = new HtspTrafficReplayer(file)) {
+            replayer.replay(dataset::addMessage, false);
+        }
+        dataset.sortEvents();
+        return dataset;
+    }
+
+    private void addMessage(HtspMessage message) {
+        String method = message.getMethod();
+        switch (method) {
+            case "tagAdd":
+            case "tagUpdate":
+                update(tags, "tagId", message, "tagAdd");
+                break;
+            case "channelAdd":
+            case "channelUpdate":
+                update(channels, "channelId", message, "channelAdd");
+                break;
+            case "dvrEntryAdd":
+            case "dvrEntryUpdate":
+                update(dvrEntries, "id", message, "dvrEntryAdd");
+                break;
+            case "eventAdd":
+            case "eventUpdate":
+                update(events, "eventId", message, "eventAdd");
+                break;
+            case "subscriptionStart":
+                if (subscriptionStart == null) {
+                    subscriptionStart = message;
+                    subscriptionId = message.getInteger("subscriptionId", 0);
+                }
+                break;
+            case "muxpkt":
+                if (subscriptionStart != null && message.getInteger("subscriptionId", 0) == subscriptionId) {
+                    packets.add(message);
+                }
+                break;
+            default:
+                // The events of a getEvents response
+                if (message.get("events") instanceof List) {
+                    for (Object event : message.getList("events")) {
+                        if (event instanceof HtspMessage) {
+                            update(events, "eventId", (HtspMessage) event, "eventAdd");
+                        }
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * Merges the fields of the message into the message with the same id
+     */
+    private static void update(Map<Integer, HtspMessage> messages, String idField, HtspMessage message, String method) {
+        if (!message.containsKey(idField)) {
+            return;
+        }
+        int id = message.getInteger(idField);
+        HtspMessage existing = messages.get(id);
+        if (existing == null) {
+            existing = new HtspMessage();
+            messages.put(id, existing);
+        }
+        existing.putAll(message);
+        existing.remove("seq");
+        existing.setMethod(method);
+    }
+
+    private void sortEvents() {
+        for (HtspMessage event : events.values()) {
+            int channelId = event.getInteger("channelId", 0);
+            List<HtspMessage> list = channelEvents.get(channelId);
+            if (list == null) {
+                list = new ArrayList<>();
+                channelEvents.put(channelId, list);
+            }
+            list.add(event);
+        }
+        Comparator<HtspMessage> byStart = (a, b) -> Long.compare(a.getLong("start", 0), b.getLong("start", 0));
+        for (List<HtspMessage> list : channelEvents.values()) {
+            Collections.sort(list, byStart);
+        }
+    }
+
+    @NonNull
+    @Override
+    public List<HtspMessage> getTags() {
+        return new ArrayList<>(tags.values());
+    }
+
+    @NonNull
+    @Override
+    public List<HtspMessage> getChannels() {
+        return new ArrayList<>(channels.values());
+    }
+
+    @NonNull
+    @Override
+    public List<HtspMessage> getDvrEntries() {
+        return new ArrayList<>(dvrEntries.values());
+    }
+
+    @NonNull
+    @Override
+    public List<HtspMessage> getEvents(int channelId) {
+        List<HtspMessage> list = channelEvents.get(channelId);
+        return list != null ? list : Collections.<HtspMessage>emptyList();
+    }
+
+    @Nullable
+    @Override
+    public HtspMessage getEvent(int eventId) {
+        return events.get(eventId);
+    }
+
+    @NonNull
+    @Override
+    public HtspMessage getSubscriptionStart() {
+        return subscriptionStart != null ? subscriptionStart : new HtspMessage();
+    }
+
+    @NonNull
+    @Override
+    public List<HtspMessage> getPackets() {
+        return packets;
+    }
+}
@@ -0,0 +1,57 @@
+package org.tvheadend.htsp;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * The data that the {@link HtspDatasetServer} provides to its clients.
+ * All messages are templates which must not be modified, the server
+ * copies them before it adds client specific fields.
+ */
+public interface HtspDataset {
+
+    /**
+     * Returns the tagAdd messages
+     */
+    @NonNull
+    List<HtspMessage> getTags();
+
+    /**
+     * Returns the channelAdd messages
+     */
+    @NonNull
+    List<HtspMessage> getChannels();
+
+    /**
+     * Returns the dvrEntryAdd messages
+     */
+    @NonNull
+    List<HtspMessage> getDvrEntries();
+
+    /**
+     * Returns the eventAdd messages of the channel ordered by their start time
+     */
+    @NonNull
+    List<HtspMessage> getEvents(int channelId);
+
+    /**
+     * Returns the eventAdd message of the event or null if it does not exist
+     */
+    @Nullable
+    HtspMessage getEvent(int eventId);
+
+    /**
+     * Returns the subscriptionStart message that describes the streams of the packets
+     */
+    @NonNull
+    HtspMessage getSubscriptionStart();
+
+    /**
+     * Returns the muxpkt messages of a stream section ordered by their decoding time.
+     * The section is sent repeatedly with increasing timestamps.
+     */
+    @NonNull
+    List<HtspMessage> getPackets();
+}
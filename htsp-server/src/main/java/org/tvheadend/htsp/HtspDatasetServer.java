@@ -0,0 +1,461 @@
+package org.tvheadend.htsp;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves a {@link HtspDataset} with a {@link HtspServer} like a tvheadend server.
+ * It handles the initial synchronization with enableAsyncMetadata, the EPG
+ * requests, subscriptions and the reading of recordings. The metadata of the
+ * initial synchronization can be sent at a limited rate, the packets of the
+ * subscriptions are sent in real time or faster. Each sender waits while the
+ * client has not read the previous messages, like a server that is limited
+ * by the network.
+ */
+public class HtspDatasetServer implements Closeable {
+
+    // Messages that may be queued for a client before a sender waits
+    private static final int MAX_QUEUED_MESSAGES = 1000;
+
+    private final HtspServer server;
+    private final HtspDataset dataset;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ConcurrentMap<HtspServer.Client, Map<Integer, Subscription>> subscriptions = new ConcurrentHashMap<>();
+    private final Map<Integer, OpenFile> openFiles = new ConcurrentHashMap<>();
+    private final AtomicInteger fileCount = new AtomicInteger();
+
+    private volatile int messageRate;
+    private volatile double streamSpeed = 1.0;
+    private volatile long fileSize = 1024L * 1024 * 1024;
+
+    private static final class OpenFile {
+        final long size;
+        long position;
+
+        OpenFile(long size) {
+            this.size = size;
+        }
+    }
+
+    public HtspDatasetServer(@NonNull HtspServer server, @NonNull HtspDataset dataset) {
+        this.server = server;
+        this.dataset = dataset;
+
+        server.addRequestHandler("getSysTime", (client, request) -> {
+            HtspMessage response = new HtspMessage();
+            response.put("time", System.currentTimeMillis() / 1000);
+            response.put("gmtoffset", 0);
+            return response;
+        });
+        server.addRequestHandler("getDiskSpace", (client, request) -> {
+            HtspMessage response = new HtspMessage();
+            response.put("freediskspace", 500L * 1024 * 1024 * 1024);
+            response.put("totaldiskspace", 1000L * 1024 * 1024 * 1024);
+            return response;
+        });
+        server.addRequestHandler("getProfiles", (client, request) -> {
+            HtspMessage response = new HtspMessage();
+            response.put("profiles", new ArrayList<HtspMessage>());
+            return response;
+        });
+        server.addRequestHandler("getDvrConfigs", (client, request) -> {
+            HtspMessage response = new HtspMessage();
+            response.put("dvrconfigs", new ArrayList<HtspMessage>());
+            return response;
+        });
+        server.addRequestHandler("enableAsyncMetadata", this::enableAsyncMetadata);
+        server.addRequestHandler("getEvent", this::getEvent);
+        server.addRequestHandler("getEvents", this::getEvents);
+        server.addRequestHandler("subscribe", this::subscribe);
+        server.addRequestHandler("unsubscribe", this::unsubscribe);
+        server.addRequestHandler("subscriptionSpeed", this::subscriptionSpeed);
+        server.addRequestHandler("subscriptionSkip", (client, request) -> new HtspMessage());
+        server.addRequestHandler("fileOpen", this::fileOpen);
+        server.addRequestHandler("fileRead", this::fileRead);
+        server.addRequestHandler("fileClose", this::fileClose);
+    }
+
+    /**
+     * Sets the number of metadata messages per second of the initial synchronization
+     *
+     * @param messageRate The rate or 0 to send the messages as fast as the client reads them
+     */
+    public void setMessageRate(int messageRate) {
+        this.messageRate = messageRate;
+    }
+
+    /**
+     * Sets the speed of the subscriptions relative to real time
+     *
+     * @param streamSpeed The speed or 0 to send the packets as fast as the client reads them
+     */
+    public void setStreamSpeed(double streamSpeed) {
+        this.streamSpeed = streamSpeed;
+    }
+
+    /**
+     * Sets the size in bytes of the recordings that can be opened with fileOpen
+     */
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    @Override
+    public void close() {
+        for (Map<Integer, Subscription> clientSubscriptions : subscriptions.values()) {
+            for (Subscription subscription : clientSubscriptions.values()) {
+                subscription.isStopped = true;
+            }
+        }
+        executor.shutdownNow();
+        server.close();
+    }
+
+    private static HtspMessage copy(HtspMessage template) {
+        HtspMessage message = new HtspMessage();
+        message.putAll(template);
+        return message;
+    }
+
+    /**
+     * Waits until the client has read most of the queued messages
+     */
+    private static void awaitQueueSpace(HtspServer.Client client) throws InterruptedException {
+        while (client.getQueuedMessageCount() > MAX_QUEUED_MESSAGES && !client.isClosed()) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void sleepUntil(long time) throws InterruptedException {
+        long delay = time - System.nanoTime();
+        if (delay > 0) {
+            Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+        }
+    }
+
+    private HtspMessage enableAsyncMetadata(HtspServer.Client client, HtspMessage request) {
+        final boolean epg = request.getInteger("epg", 0) == 1;
+        final long epgMaxTime = request.getLong("epgMaxTime", Long.MAX_VALUE);
+
+        client.sendResponse(request, new HtspMessage());
+        executor.execute(() -> {
+            try {
+                sendInitialSync(client, epg, epgMaxTime);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        return null;
+    }
+
+    private void sendInitialSync(HtspServer.Client client, boolean epg, long epgMaxTime) throws InterruptedException {
+        int rate = messageRate;
+        long interval = rate > 0 ? 1000000000L / rate : 0;
+        long nextTime = System.nanoTime();
+
+        List<HtspMessage> messages = new ArrayList<>();
+        messages.addAll(dataset.getTags());
+        messages.addAll(dataset.getChannels());
+        messages.addAll(dataset.getDvrEntries());
+        for (HtspMessage message : messages) {
+            if (client.isClosed()) {
+                return;
+            }
+            awaitQueueSpace(client);
+            sleepUntil(nextTime += interval);
+            client.send(copy(message));
+        }
+
+        if (epg) {
+            for (HtspMessage channel : dataset.getChannels()) {
+                for (HtspMessage event : dataset.getEvents(channel.getInteger("channelId"))) {
+                    if (event.getLong("start", 0) > epgMaxTime) {
+                        break;
+                    }
+                    if (client.isClosed()) {
+                        return;
+                    }
+                    awaitQueueSpace(client);
+                    sleepUntil(nextTime += interval);
+                    client.send(copy(event));
+                }
+            }
+        }
+
+        HtspMessage message = new HtspMessage();
+        message.setMethod("initialSyncCompleted");
+        client.send(message);
+    }
+
+    private HtspMessage getEvent(HtspServer.Client client, HtspMessage request) throws IOException {
+        HtspMessage event = dataset.getEvent(request.getInteger("eventId", 0));
+        if (event == null) {
+            throw new IOException("Event does not exist");
+        }
+        HtspMessage response = copy(event);
+        response.remove("method");
+        return response;
+    }
+
+    /**
+     * Returns the events of a channel starting with the given event or with the current
+     * event, limited by the number of following events and the maximum start time.
+     */
+    private HtspMessage getEvents(HtspServer.Client client, HtspMessage request) throws IOException {
+        int numFollowing = request.getInteger("numFollowing", Integer.MAX_VALUE - 1);
+        long maxTime = request.getLong("maxTime", Long.MAX_VALUE);
+
+        int channelId;
+        long startTime;
+        if (request.containsKey("eventId")) {
+            HtspMessage event = dataset.getEvent(request.getInteger("eventId"));
+            if (event == null) {
+                throw new IOException("Event does not exist");
+            }
+            channelId = event.getInteger("channelId");
+            startTime = event.getLong("start");
+        } else if (request.containsKey("channelId")) {
+            channelId = request.getInteger("channelId");
+            startTime = Long.MIN_VALUE;
+        } else {
+            throw new IOException("Either eventId or channelId is required");
+        }
+
+        List<HtspMessage> channelEvents = dataset.getEvents(channelId);
+        List<HtspMessage> events = new ArrayList<>();
+        long now = System.currentTimeMillis() / 1000;
+        for (int i = findFirstEvent(channelEvents, startTime, now); i < channelEvents.size(); i++) {
+            HtspMessage event = channelEvents.get(i);
+            if (events.size() > numFollowing || event.getLong("start", 0) > maxTime) {
+                break;
+            }
+            HtspMessage copy = copy(event);
+            copy.remove("method");
+            events.add(copy);
+        }
+
+        HtspMessage response = new HtspMessage();
+        response.put("events", events);
+        return response;
+    }
+
+    /**
+     * Returns the index of the event that starts at the given time or, if no start
+     * time is given, of the event that runs at the current time
+     */
+    private static int findFirstEvent(List<HtspMessage> events, long startTime, long now) {
+        int low = 0;
+        int high = events.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            HtspMessage event = events.get(mid);
+            boolean before = startTime != Long.MIN_VALUE
+                    ? event.getLong("start", 0) < startTime
+                    : event.getLong("stop", 0) <= now;
+            if (before) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private HtspMessage subscribe(HtspServer.Client client, HtspMessage request) throws IOException {
+        if (!request.containsKey("subscriptionId")) {
+            throw new IOException("subscriptionId is required");
+        }
+        // Forget the subscriptions of clients that disconnected
+        for (HtspServer.Client otherClient : subscriptions.keySet()) {
+            if (otherClient.isClosed()) {
+                subscriptions.remove(otherClient);
+            }
+        }
+
+        Subscription subscription = new Subscription(client, request.getInteger("subscriptionId"));
+        Map<Integer, Subscription> clientSubscriptions = subscriptions.get(client);
+        if (clientSubscriptions == null) {
+            Map<Integer, Subscription> newSubscriptions = new ConcurrentHashMap<>();
+            clientSubscriptions = subscriptions.putIfAbsent(client, newSubscriptions);
+            if (clientSubscriptions == null) {
+                clientSubscriptions = newSubscriptions;
+            }
+        }
+        clientSubscriptions.put(subscription.subscriptionId, subscription);
+
+        client.sendResponse(request, new HtspMessage());
+        executor.execute(subscription);
+        return null;
+    }
+
+    private HtspMessage unsubscribe(HtspServer.Client client, HtspMessage request) {
+        Subscription subscription = removeSubscription(client, request.getInteger("subscriptionId", 0));
+        if (subscription != null) {
+            subscription.isStopped = true;
+        }
+        return new HtspMessage();
+    }
+
+    private HtspMessage subscriptionSpeed(HtspServer.Client client, HtspMessage request) {
+        Map<Integer, Subscription> clientSubscriptions = subscriptions.get(client);
+        if (clientSubscriptions != null) {
+            Subscription subscription = clientSubscriptions.get(request.getInteger("subscriptionId", 0));
+            if (subscription != null) {
+                subscription.speed = request.getInteger("speed", 100);
+            }
+        }
+        return new HtspMessage();
+    }
+
+    private Subscription removeSubscription(HtspServer.Client client, int subscriptionId) {
+        Map<Integer, Subscription> clientSubscriptions = subscriptions.get(client);
+        if (clientSubscriptions == null) {
+            return null;
+        }
+        return clientSubscriptions.remove(subscriptionId);
+    }
+
+    /**
+     * Sends the packets of the dataset in a loop until the subscription is stopped.
+     * The timestamps are increased in every loop so that the stream is continuous.
+     */
+    private final class Subscription implements Runnable {
+        private final HtspServer.Client client;
+        private final int subscriptionId;
+        private volatile boolean isStopped;
+        private volatile int speed = 100;
+
+        Subscription(HtspServer.Client client, int subscriptionId) {
+            this.client = client;
+            this.subscriptionId = subscriptionId;
+        }
+
+        @Override
+        public void run() {
+            HtspMessage start = copy(dataset.getSubscriptionStart());
+            start.setMethod("subscriptionStart");
+            start.put("subscriptionId", subscriptionId);
+            client.send(start);
+
+            try {
+                sendPackets();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                Map<Integer, Subscription> clientSubscriptions = subscriptions.get(client);
+                if (clientSubscriptions != null) {
+                    clientSubscriptions.remove(subscriptionId, this);
+                }
+                HtspMessage stop = new HtspMessage();
+                stop.setMethod("subscriptionStop");
+                stop.put("subscriptionId", subscriptionId);
+                stop.put("status", "Subscription stopped");
+                client.send(stop);
+            }
+        }
+
+        private void sendPackets() throws InterruptedException {
+            List<HtspMessage> packets = dataset.getPackets();
+            if (packets.isEmpty()) {
+                return;
+            }
+
+            // The timestamps are given in microseconds
+            long firstTime = getTime(packets.get(0));
+            HtspMessage last = packets.get(packets.size() - 1);
+            long loopDuration = Math.max(1, getTime(last) - firstTime + last.getLong("duration", 0));
+            long startTime = System.nanoTime();
+
+            for (long loop = 0; ; loop++) {
+                long offset = loop * loopDuration;
+                for (HtspMessage packet : packets) {
+                    // Paused subscriptions continue where they stopped
+                    long pauseStart = System.nanoTime();
+                    while (speed == 0 && !isStopped) {
+                        Thread.sleep(10);
+                    }
+                    startTime += System.nanoTime() - pauseStart;
+
+                    if (isStopped || client.isClosed()) {
+                        return;
+                    }
+
+                    double rate = streamSpeed;
+                    if (rate > 0) {
+                        long time = getTime(packet) - firstTime + offset;
+                        sleepUntil(startTime + (long) (time * 1000 / rate));
+                    }
+                    awaitQueueSpace(client);
+
+                    HtspMessage message = copy(packet);
+                    message.put("subscriptionId", subscriptionId);
+                    message.put("pts", packet.getLong("pts", 0) + offset);
+                    if (packet.containsKey("dts")) {
+                        message.put("dts", packet.getLong("dts") + offset);
+                    }
+                    client.send(message);
+                }
+            }
+        }
+
+        private long getTime(HtspMessage packet) {
+            return packet.getLong("dts", packet.getLong("pts", 0));
+        }
+    }
+
+    private HtspMessage fileOpen(HtspServer.Client client, HtspMessage request) throws IOException {
+        if (!request.containsKey("file")) {
+            throw new IOException("file is required");
+        }
+        int id = fileCount.incrementAndGet();
+        long size = fileSize;
+        openFiles.put(id, new OpenFile(size));
+
+        HtspMessage response = new HtspMessage();
+        response.put("id", id);
+        response.put("size", size);
+        response.put("mtime", System.currentTimeMillis() / 1000);
+        return response;
+    }
+
+    /**
+     * Returns the requested range of the file. Each byte of the
+     * content is derived from its offset so that it can be verified.
+     */
+    private HtspMessage fileRead(HtspServer.Client client, HtspMessage request) throws IOException {
+        OpenFile file = openFiles.get(request.getInteger("id", 0));
+        if (file == null) {
+            throw new IOException("Unknown file id");
+        }
+
+        byte[] data;
+        synchronized (file) {
+            long offset = request.getLong("offset", file.position);
+            int length = (int) Math.max(0, Math.min(request.getLong("size", 0), file.size - offset));
+            data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = (byte) ((offset + i) % 251);
+            }
+            file.position = offset + length;
+        }
+
+        HtspMessage response = new HtspMessage();
+        response.put("data", data);
+        return response;
+    }
+
+    private HtspMessage fileClose(HtspServer.Client client, HtspMessage request) {
+        openFiles.remove(request.getInteger("id", 0));
+        return new HtspMessage();
+    }
+}
@@ -0,0 +1,372 @@
+package org.tvheadend.htsp;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * A small HTSP server that runs in the same process as its clients. It handles
+ * the handshake, answers the requests for which a handler was added and sends
+ * server push messages to the connected clients. It uses the same codec, frame
+ * reader and writer as {@link HtspConnection} and is meant for benchmarks and
+ * load tests that shall run without a tvheadend server.
+ */
+public class HtspServer implements Closeable {
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final String username;
+    private final String password;
+    private final Map<String, RequestHandler> requestHandlers = new ConcurrentHashMap<>();
+    private final Set<Client> clients = new CopyOnWriteArraySet<>();
+    private final SecureRandom random = new SecureRandom();
+
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean isRunning;
+
+    /**
+     * Handles the requests of one method. It is called on the thread of the
+     * server and must not block, longer running work has to be moved to
+     * another thread which sends the response with {@link Client#sendResponse}.
+     */
+    public interface RequestHandler {
+
+        /**
+         * @return The response to the request or null if the response is sent later
+         * @throws IOException If the request is invalid, the message of the exception
+         *                     is sent to the client in the field error
+         */
+        @Nullable
+        HtspMessage handleRequest(@NonNull Client client, @NonNull HtspMessage request) throws IOException;
+    }
+
+    /**
+     * A client that is connected to the server
+     */
+    public static final class Client {
+        private final SocketChannel channel;
+        private final Selector selector;
+        private final HtspFrameReader frameReader = new HtspFrameReader(READ_BUFFER_SIZE);
+        private final HtspFrameWriter frameWriter = new HtspFrameWriter();
+        private final byte[] challenge;
+        private volatile String username = "";
+        private volatile boolean isAuthenticated;
+        private volatile boolean isClosed;
+
+        Client(SocketChannel channel, Selector selector, byte[] challenge) {
+            this.channel = channel;
+            this.selector = selector;
+            this.challenge = challenge;
+        }
+
+        /**
+         * Queues the message for sending, this can be called from any thread
+         */
+        public void send(@NonNull HtspMessage message) {
+            if (!isClosed && frameWriter.enqueue(message)) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Sends the response with the sequence number of the request
+         */
+        public void sendResponse(@NonNull HtspMessage request, @NonNull HtspMessage response) {
+            if (request.containsKey("seq")) {
+                response.put("seq", request.getLong("seq"));
+            }
+            send(response);
+        }
+
+        @NonNull
+        public String getUsername() {
+            return username;
+        }
+
+        public boolean isAuthenticated() {
+            return isAuthenticated;
+        }
+
+        public boolean isClosed() {
+            return isClosed;
+        }
+
+        /**
+         * Returns the number of messages that were not yet written to the socket.
+         * Senders of many messages can wait while this is high instead of
+         * queueing more messages than the client can read.
+         */
+        public int getQueuedMessageCount() {
+            return frameWriter.getQueuedMessageCount();
+        }
+    }
+
+    /**
+     * Creates a server that accepts every client
+     */
+    public HtspServer() {
+        this(null, null);
+    }
+
+    /**
+     * Creates a server that only accepts clients with the given credentials
+     */
+    public HtspServer(@Nullable String username, @Nullable String password) {
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Adds the handler for the requests with the given method. An existing handler is replaced.
+     */
+    public void addRequestHandler(@NonNull String method, @NonNull RequestHandler handler) {
+        requestHandlers.put(method, handler);
+    }
+
+    /**
+     * Starts listening on a free port of the loopback interface
+     */
+    public void start() throws IOException {
+        start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    /**
+     * Starts listening on the given address
+     */
+    public void start(@NonNull InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        isRunning = true;
+        thread = new Thread(this::run, "HtspServer");
+        thread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the url that a {@link HtspConnection} can connect to
+     */
+    @NonNull
+    public String getUrl() {
+        String host = serverChannel.socket().getInetAddress().getHostAddress();
+        if (host.contains(":")) {
+            host = "[" + host + "]";
+        }
+        return "htsp://" + host + ":" + getPort();
+    }
+
+    @NonNull
+    public List<Client> getClients() {
+        return new ArrayList<>(clients);
+    }
+
+    /**
+     * Sends the message to all authenticated clients
+     */
+    public void broadcast(@NonNull HtspMessage message) {
+        for (Client client : clients) {
+            if (client.isAuthenticated) {
+                client.send(message);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        isRunning = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (isRunning) {
+                selector.select();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptClient();
+                        continue;
+                    }
+
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable() && client.frameReader.read(client.channel,
+                                message -> handleRequest(client, message)) < 0) {
+                            closeClient(client);
+                            continue;
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            client.frameWriter.write(client.channel);
+                        }
+                    } catch (IOException e) {
+                        closeClient(client);
+                    }
+                }
+
+                for (Client client : clients) {
+                    updateInterest(client);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("HTSP server failed: " + e);
+        } finally {
+            for (Client client : clients) {
+                closeClient(client);
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                // Nothing left to clean up
+            }
+        }
+    }
+
+    private void acceptClient() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        byte[] challenge = new byte[32];
+        random.nextBytes(challenge);
+        Client client = new Client(channel, selector, challenge);
+        channel.register(selector, SelectionKey.OP_READ, client);
+        clients.add(client);
+    }
+
+    private void closeClient(Client client) {
+        client.isClosed = true;
+        client.frameWriter.clear();
+        clients.remove(client);
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // The client is gone anyway
+        }
+    }
+
+    private void updateInterest(Client client) {
+        SelectionKey key = client.channel.keyFor(selector);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        int ops = SelectionKey.OP_READ;
+        if (client.frameWriter.hasPendingData()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    private void handleRequest(Client client, HtspMessage request) {
+        String method = request.getMethod();
+        HtspMessage response;
+        try {
+            if (method.equals("hello")) {
+                response = handleHello(client, request);
+            } else if (method.equals("authenticate")) {
+                response = handleAuthenticate(client, request);
+            } else if (!client.isAuthenticated) {
+                response = new HtspMessage();
+                response.put("noaccess", 1);
+            } else {
+                RequestHandler handler = requestHandlers.get(method);
+                if (handler == null) {
+                    throw new IOException("Unknown method " + method);
+                }
+                response = handler.handleRequest(client, request);
+            }
+        } catch (IOException e) {
+            response = new HtspMessage();
+            response.put("error", String.valueOf(e.getMessage()));
+        }
+
+        if (response != null) {
+            client.sendResponse(request, response);
+        }
+    }
+
+    private HtspMessage handleHello(Client client, HtspMessage request) {
+        client.username = request.getString("username", "");
+
+        List<String> capabilities = new ArrayList<>();
+        capabilities.add("files");
+        capabilities.add("timeshift");
+
+        HtspMessage response = new HtspMessage();
+        response.put("htspversion", HtspMessage.HTSP_VERSION);
+        response.put("servername", "HTSP stand-in server");
+        response.put("serverversion", "4.2.0");
+        response.put("servercapability", capabilities);
+        response.put("challenge", client.challenge);
+        return response;
+    }
+
+    private HtspMessage handleAuthenticate(Client client, HtspMessage request) throws IOException {
+        HtspMessage response = new HtspMessage();
+        if (username == null || (username.equals(request.getString("username", ""))
+                && Arrays.equals(getDigest(client.challenge), request.getByteArray("digest")))) {
+            client.isAuthenticated = true;
+        } else {
+            response.put("noaccess", 1);
+        }
+        return response;
+    }
+
+    private byte[] getDigest(byte[] challenge) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA1");
+            md.update(password != null ? password.getBytes() : new byte[0]);
+            md.update(challenge);
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA1 is not available", e);
+        }
+    }
+}
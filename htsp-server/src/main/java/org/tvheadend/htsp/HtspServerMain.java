@@ -0,0 +1,111 @@
+package org.tvheadend.htsp;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Starts a {@link HtspDatasetServer} from the command line, for example with
+ * ./gradlew :htsp-server:run --args="--channels 1000 --days 14".
+ * <p>
+ * Options:
+ * <pre>
+ * --address ADDRESS     Address to listen on, default 0.0.0.0
+ * --port PORT           Port to listen on, default 9982
+ * --username NAME       Only accept clients with this username
+ * --password PASSWORD   Password of the username
+ * --capture FILE        Serve the messages of a capture file instead of synthetic data
+ * --channels COUNT      Number of synthetic channels, default 100
+ * --days DAYS           Days of synthetic events per channel, default 14
+ * --event-duration SEC  Duration of each synthetic event, default 1800
+ * --bitrate BITS        Bitrate of the synthetic stream, default 20000000
+ * --message-rate COUNT  Metadata messages per second, default 0 for unlimited
+ * --stream-speed SPEED  Speed of the streams relative to real time, 0 for unlimited
+ * --file-size BYTES     Size of the recordings, default 1 GB
+ * </pre>
+ */
+public final class HtspServerMain {
+
+    private HtspServerMain() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String address = "0.0.0.0";
+        int port = 9982;
+        String username = null;
+        String password = null;
+        String capture = null;
+        int channels = 100;
+        int days = 14;
+        int eventDuration = 1800;
+        int bitrate = 20000000;
+        int messageRate = 0;
+        double streamSpeed = 1.0;
+        long fileSize = 1024L * 1024 * 1024;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--address":
+                    address = value;
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--username":
+                    username = value;
+                    break;
+                case "--password":
+                    password = value;
+                    break;
+                case "--capture":
+                    capture = value;
+                    break;
+                case "--channels":
+                    channels = Integer.parseInt(value);
+                    break;
+                case "--days":
+                    days = Integer.parseInt(value);
+                    break;
+                case "--event-duration":
+                    eventDuration = Integer.parseInt(value);
+                    break;
+                case "--bitrate":
+                    bitrate = Integer.parseInt(value);
+                    break;
+                case "--message-rate":
+                    messageRate = Integer.parseInt(value);
+                    break;
+                case "--stream-speed":
+                    streamSpeed = Double.parseDouble(value);
+                    break;
+                case "--file-size":
+                    fileSize = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        HtspDataset dataset;
+        if (capture != null) {
+            dataset = CapturedHtspDataset.load(new File(capture));
+        } else {
+            // The first events started two hours ago, aligned to their duration
+            long now = System.currentTimeMillis() / 1000;
+            long startTime = now - now % eventDuration - 2 * 60 * 60;
+            dataset = new SyntheticHtspDataset(channels, days, eventDuration, startTime, bitrate);
+        }
+
+        HtspServer server = new HtspServer(username, password);
+        HtspDatasetServer datasetServer = new HtspDatasetServer(server, dataset);
+        datasetServer.setMessageRate(messageRate);
+        datasetServer.setStreamSpeed(streamSpeed);
+        datasetServer.setFileSize(fileSize);
+        server.start(new InetSocketAddress(address, port));
+        System.out.println("HTSP server is listening on " + server.getUrl());
+
+        Runtime.getRuntime().addShutdownHook(new Thread(datasetServer::close));
+        Thread.currentThread().join();
+    }
+}
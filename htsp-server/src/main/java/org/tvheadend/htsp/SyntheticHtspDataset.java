@@ -0,0 +1,237 @@
+package org.tvheadend.htsp;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates the channels, tags and events of an EPG of the given size and the
+ * packets of a stream with the given bitrate. The events are created when they
+ * are accessed, so even an EPG of many channels and days needs little memory.
+ * The content only depends on the parameters and is identical for every run.
+ */
+public class SyntheticHtspDataset implements HtspDataset {
+
+    private static final int TAG_COUNT = 10;
+    private static final int EVENT_ID_FACTOR = 1000000;
+    private static final int FRAMES_PER_SECOND = 25;
+    private static final int AUDIO_PACKETS_PER_SECOND = 47;
+
+    private final int channelCount;
+    private final int eventsPerChannel;
+    private final int eventDuration;
+    private final long startTime;
+    private final int bitrate;
+
+    private final List<HtspMessage> tags = new ArrayList<>();
+    private final List<HtspMessage> channels = new ArrayList<>();
+    private List<HtspMessage> packets;
+
+    /**
+     * @param channelCount  The number of channels
+     * @param days          The number of days of events of each channel
+     * @param eventDuration The duration of each event in seconds
+     * @param startTime     The start time of the first event of each channel in seconds
+     * @param bitrate       The bitrate of the stream in bits per second
+     */
+    public SyntheticHtspDataset(int channelCount, int days, int eventDuration, long startTime, int bitrate) {
+        this.channelCount = channelCount;
+        this.eventsPerChannel = days * 24 * 60 * 60 / eventDuration;
+        this.eventDuration = eventDuration;
+        this.startTime = startTime;
+        this.bitrate = bitrate;
+
+        for (int i = 1; i <= TAG_COUNT; i++) {
+            List<Integer> members = new ArrayList<>();
+            for (int channelId = i; channelId <= channelCount; channelId += TAG_COUNT) {
+                members.add(channelId);
+            }
+            HtspMessage tag = new HtspMessage();
+            tag.setMethod("tagAdd");
+            tag.put("tagId", i);
+            tag.put("tagName", "Tag " + i);
+            tag.put("tagIndex", i);
+            tag.put("members", members);
+            tags.add(tag);
+        }
+
+        for (int channelId = 1; channelId <= channelCount; channelId++) {
+            HtspMessage channel = new HtspMessage();
+            channel.setMethod("channelAdd");
+            channel.put("channelId", channelId);
+            channel.put("channelNumber", channelId);
+            channel.put("channelName", "Channel " + channelId);
+            channel.put("tags", Collections.singletonList(1 + (channelId - 1) % TAG_COUNT));
+            if (eventsPerChannel > 0) {
+                channel.put("eventId", getEventId(channelId, 0));
+                if (eventsPerChannel > 1) {
+                    channel.put("nextEventId", getEventId(channelId, 1));
+                }
+            }
+            channels.add(channel);
+        }
+    }
+
+    @NonNull
+    @Override
+    public List<HtspMessage> getTags() {
+        return tags;
+    }
+
+    @NonNull
+    @Override
+    public List<HtspMessage> getChannels() {
+        return channels;
+    }
+
+    @NonNull
+    @Override
+    public List<HtspMessage> getDvrEntries() {
+        return Collections.emptyList();
+    }
+
+    @NonNull
+    @Override
+    public List<HtspMessage> getEvents(final int channelId) {
+        if (channelId < 1 || channelId > channelCount) {
+            return Collections.emptyList();
+        }
+        return new AbstractList<HtspMessage>() {
+            @Override
+            public HtspMessage get(int index) {
+                if (index < 0 || index >= eventsPerChannel) {
+                    throw new IndexOutOfBoundsException("Index " + index + ", size " + eventsPerChannel);
+                }
+                return createEvent(channelId, index);
+            }
+
+            @Override
+            public int size() {
+                return eventsPerChannel;
+            }
+        };
+    }
+
+    @Nullable
+    @Override
+    public HtspMessage getEvent(int eventId) {
+        int channelId = eventId / EVENT_ID_FACTOR;
+        int index = eventId % EVENT_ID_FACTOR;
+        if (channelId < 1 || channelId > channelCount || index >= eventsPerChannel) {
+            return null;
+        }
+        return createEvent(channelId, index);
+    }
+
+    private static int getEventId(int channelId, int index) {
+        return channelId * EVENT_ID_FACTOR + index;
+    }
+
+    private HtspMessage createEvent(int channelId, int index) {
+        Random random = new Random(getEventId(channelId, index));
+        long start = startTime + (long) index * eventDuration;
+
+        HtspMessage event = new HtspMessage();
+        event.setMethod("eventAdd");
+        event.put("eventId", getEventId(channelId, index));
+        event.put("channelId", channelId);
+        event.put("start", start);
+        event.put("stop", start + eventDuration);
+        event.put("title", "Event " + index + " on channel " + channelId);
+        event.put("subtitle", "Episode " + (1 + random.nextInt(24)));
+        event.put("summary", "The summary of event " + index);
+        event.put("description", "The description of event " + index + " on channel " + channelId
+                + " which is a bit longer than the summary and contains some more details.");
+        event.put("contentType", 16 * (1 + random.nextInt(11)));
+        event.put("ageRating", random.nextInt(18));
+        if (index + 1 < eventsPerChannel) {
+            event.put("nextEventId", getEventId(channelId, index + 1));
+        }
+        return event;
+    }
+
+    @NonNull
+    @Override
+    public HtspMessage getSubscriptionStart() {
+        HtspMessage video = new HtspMessage();
+        video.put("index", 1);
+        video.put("type", "H264");
+        video.put("width", 1920);
+        video.put("height", 1080);
+
+        HtspMessage audio = new HtspMessage();
+        audio.put("index", 2);
+        audio.put("type", "AAC");
+        audio.put("language", "eng");
+        audio.put("channels", 2);
+        audio.put("rate", 3);
+
+        List<HtspMessage> streams = new ArrayList<>();
+        streams.add(video);
+        streams.add(audio);
+
+        HtspMessage sourceInfo = new HtspMessage();
+        sourceInfo.put("service", "Synthetic service");
+
+        HtspMessage message = new HtspMessage();
+        message.setMethod("subscriptionStart");
+        message.put("streams", streams);
+        message.put("sourceinfo", sourceInfo);
+        return message;
+    }
+
+    /**
+     * Returns the packets of one second of the stream, that is one group of pictures
+     * that starts with a key frame and the audio packets of the same duration.
+     */
+    @NonNull
+    @Override
+    public synchronized List<HtspMessage> getPackets() {
+        if (packets != null) {
+            return packets;
+        }
+
+        Random random = new Random(bitrate);
+        int audioSize = 256;
+        int videoSize = Math.max(1, (bitrate / 8 - audioSize * AUDIO_PACKETS_PER_SECOND) / FRAMES_PER_SECOND);
+        long videoDuration = 1000000 / FRAMES_PER_SECOND;
+        long audioDuration = 1000000 / AUDIO_PACKETS_PER_SECOND;
+
+        packets = new ArrayList<>();
+        int audioIndex = 0;
+        for (int frame = 0; frame < FRAMES_PER_SECOND; frame++) {
+            long videoTime = frame * videoDuration;
+            // The key frame is larger than the other frames of the group
+            int size = frame == 0 ? videoSize * 3 : videoSize * (FRAMES_PER_SECOND - 3) / (FRAMES_PER_SECOND - 1);
+            packets.add(createPacket(random, 1, frame == 0 ? 'I' : 'P', videoTime, videoDuration, size));
+
+            while (audioIndex < AUDIO_PACKETS_PER_SECOND && audioIndex * audioDuration < videoTime + videoDuration) {
+                packets.add(createPacket(random, 2, 'I', audioIndex * audioDuration, audioDuration, audioSize));
+                audioIndex++;
+            }
+        }
+        return packets;
+    }
+
+    private static HtspMessage createPacket(Random random, int stream, char frameType, long time, long duration, int size) {
+        byte[] payload = new byte[size];
+        random.nextBytes(payload);
+
+        // The timestamps are given in microseconds
+        HtspMessage packet = new HtspMessage();
+        packet.setMethod("muxpkt");
+        packet.put("stream", stream);
+        packet.put("frametype", (int) frameType);
+        packet.put("com", 0);
+        packet.put("pts", time);
+        packet.put("dts", time);
+        packet.put("duration", duration);
+        packet.put("payload", payload);
+        return packet;
+    }
+}
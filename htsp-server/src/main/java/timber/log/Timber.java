@@ -0,0 +1,25 @@
+package timber.log;
+
+/**
+ * Stand-in for the logging library of the app. Only errors are printed,
+ * the debug output of the connection would distort the measurements.
+ */
+public final class Timber {
+
+    private Timber() {
+    }
+
+    public static void d(String message, Object... args) {
+    }
+
+    public static void d(Throwable t, String message, Object... args) {
+    }
+
+    public static void i(String message, Object... args) {
+    }
+
+    public static void e(Throwable t, String message, Object... args) {
+        System.err.println(args.length > 0 ? String.format(message, args) : message);
+        t.printStackTrace();
+    }
+}
@@ -0,0 +1,102 @@
+package org.tvheadend.htsp;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Recycles the byte arrays that the binary payloads of the received messages are
+ * decoded into. The arrays are kept in size classes of powers of two, so an array
+ * that is handed out can be larger than requested. Each size class keeps a limited
+ * number of released arrays, arrays larger than the largest size class are neither
+ * pooled nor kept. All methods are thread safe, because arrays are usually acquired
+ * by the thread that reads from the socket and released by the one that consumes them.
+ */
+public final class HtspBufferPool {
+
+    private static final int MIN_SIZE_SHIFT = 10;
+
+    private final int maxSizeShift;
+    private final byte[][][] buffers;
+    private final int[] counts;
+
+    private long acquiredCount;
+    private long allocatedCount;
+
+    /**
+     * @param maxSize        The size of the largest pooled arrays, rounded up to a power of two
+     * @param buffersPerSize The number of released arrays that are kept per size class
+     */
+    public HtspBufferPool(int maxSize, int buffersPerSize) {
+        this.maxSizeShift = Math.max(MIN_SIZE_SHIFT, getSizeShift(maxSize));
+        int sizeClasses = maxSizeShift - MIN_SIZE_SHIFT + 1;
+        this.buffers = new byte[sizeClasses][buffersPerSize][];
+        this.counts = new int[sizeClasses];
+    }
+
+    private static int getSizeShift(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * Returns an array with at least the given length, which can be
+     * handed back with {@link #release(byte[])} when it is not needed anymore
+     */
+    @NonNull
+    public byte[] acquire(int size) {
+        int shift = Math.max(MIN_SIZE_SHIFT, getSizeShift(size));
+        if (shift > maxSizeShift) {
+            synchronized (this) {
+                acquiredCount++;
+                allocatedCount++;
+            }
+            return new byte[size];
+        }
+
+        int sizeClass = shift - MIN_SIZE_SHIFT;
+        synchronized (this) {
+            acquiredCount++;
+            int count = counts[sizeClass];
+            if (count > 0) {
+                counts[sizeClass] = count - 1;
+                byte[] buffer = buffers[sizeClass][count - 1];
+                buffers[sizeClass][count - 1] = null;
+                return buffer;
+            }
+            allocatedCount++;
+        }
+        return new byte[1 << shift];
+    }
+
+    /**
+     * Hands the array back to the pool. Arrays that were not acquired
+     * from a pool are ignored unless their length matches a size class.
+     */
+    public void release(@NonNull byte[] buffer) {
+        int shift = getSizeShift(buffer.length);
+        if (buffer.length != 1 << shift || shift < MIN_SIZE_SHIFT || shift > maxSizeShift) {
+            return;
+        }
+
+        int sizeClass = shift - MIN_SIZE_SHIFT;
+        synchronized (this) {
+            int count = counts[sizeClass];
+            if (count < buffers[sizeClass].length) {
+                buffers[sizeClass][count] = buffer;
+                counts[sizeClass] = count + 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of arrays that were handed out
+     */
+    public synchronized long getAcquiredCount() {
+        return acquiredCount;
+    }
+
+    /**
+     * Returns the number of arrays that had to be allocated because none was available
+     */
+    public synchronized long getAllocatedCount() {
+        return allocatedCount;
+    }
+}
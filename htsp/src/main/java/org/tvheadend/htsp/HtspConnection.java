@@ -1,7 +1,6 @@
 package org.tvheadend.htsp;
 
 import android.net.Uri;
-import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -9,7 +8,6 @@ import androidx.annotation.Nullable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
@@ -23,10 +21,8 @@ import java.nio.channels.UnresolvedAddressException;
 import java.nio.channels.UnsupportedAddressTypeException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Set;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -34,6 +30,9 @@ import timber.log.Timber;
 
 public class HtspConnection extends Thread implements HtspConnectionInterface {
 
+    // Time in milliseconds after which a request without a response is failed
+    private static final long RESPONSE_TIMEOUT = 30 * 1000;
+
     private final String username;
     private final String password;
     private final String url;
@@ -41,26 +40,57 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
     private volatile boolean isRunning;
     private final Lock lock;
     private SocketChannel socketChannel;
-    private final ByteBuffer inputByteBuffer;
-    private int seq;
+    private final HtspFrameReader frameReader;
 
     private final HtspConnectionStateListener connectionListener;
-    private final Set<HtspMessageListener> messageListeners = new HashSet<>();
-    private final SparseArray<HtspResponseListener> responseHandlers;
-    private final LinkedList<HtspMessage> messageQueue;
+    private final HtspMessageDispatcher messageDispatcher;
+    private final HtspResponseTable responseTable;
+    private final HtspFrameWriter frameWriter;
     private boolean isConnecting = false;
     private boolean isAuthenticated = false;
-    private Selector selector;
+    private volatile Selector selector;
+    private boolean isReadingPaused = false;
     private final int connectionTimeout;
+    private volatile HtspTrafficRecorder trafficRecorder;
 
     @Override
     public void addMessageListener(@NonNull HtspMessageListener listener) {
-        messageListeners.add(listener);
+        messageDispatcher.addListener(listener);
+    }
+
+    @Override
+    public void addMessageListener(@NonNull HtspMessageListener listener, @NonNull String... methods) {
+        messageDispatcher.addListener(listener, methods);
+    }
+
+    @Override
+    public void addSubscriptionListener(int subscriptionId, @NonNull HtspMessageListener listener) {
+        messageDispatcher.addSubscriptionListener(subscriptionId, listener);
     }
 
     @Override
     public void removeMessageListener(@NonNull HtspMessageListener listener) {
-        messageListeners.remove(listener);
+        messageDispatcher.removeListener(listener);
+    }
+
+    /**
+     * Starts recording the data that is received and sent on the socket
+     * into the given recorder, or stops recording if it is null.
+     * The recorder is not closed when the connection is closed.
+     */
+    public void setTrafficRecorder(@Nullable HtspTrafficRecorder recorder) {
+        trafficRecorder = recorder;
+    }
+
+    /**
+     * Decodes the payloads of the received muxpkt messages and the data of the fileRead
+     * responses into arrays of the given pool, or into newly allocated arrays if it is null.
+     * The listeners of the subscriptions and the readers of the files get them with
+     * {@link HtspMessage#getPayload(String)} and have to release them, so a pool should
+     * only be set if every such message is handled by exactly one consumer.
+     */
+    public void setPayloadBufferPool(@Nullable HtspBufferPool pool) {
+        frameReader.setPayloadPool(pool);
     }
 
     public enum AuthenticationState {
@@ -99,14 +129,22 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
 
         this.isRunning = false;
         this.lock = new ReentrantLock();
-        this.inputByteBuffer = ByteBuffer.allocateDirect(2048 * 2048);
-        this.inputByteBuffer.limit(4);
-        this.responseHandlers = new SparseArray<>();
-        this.messageQueue = new LinkedList<>();
+        this.frameReader = new HtspFrameReader(2048 * 2048);
+        this.responseTable = new HtspResponseTable();
+        this.frameWriter = new HtspFrameWriter();
+        this.messageDispatcher = new HtspMessageDispatcher();
         this.connectionListener = connectionListener;
 
+        // Continue reading as soon as the message listeners have caught up
+        this.messageDispatcher.setCongestionListener(() -> {
+            Selector currentSelector = selector;
+            if (currentSelector != null) {
+                currentSelector.wakeup();
+            }
+        });
+
         if (messageListener != null) {
-            this.messageListeners.add(messageListener);
+            this.messageDispatcher.addListener(messageListener);
         }
     }
 
@@ -232,25 +270,6 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
 
         isAuthenticated = false;
 
-        final HtspMessage authMessage = new HtspMessage();
-        authMessage.setMethod("authenticate");
-        authMessage.put("username", username);
-
-        final HtspResponseListener authHandler = response -> {
-            isAuthenticated = response.getInteger("noaccess", 0) != 1;
-            Timber.d("Authentication was successful: %s", isAuthenticated);
-            if (!isAuthenticated) {
-                connectionListener.onAuthenticationStateChange(AuthenticationState.FAILED_BAD_CREDENTIALS);
-            } else {
-                connectionListener.onAuthenticationStateChange(AuthenticationState.AUTHENTICATED);
-            }
-            synchronized (authMessage) {
-                authMessage.notify();
-            }
-            Timber.d("Connection to server is complete");
-            isConnecting = false;
-        };
-
         Timber.d("Sending initial message to server");
         HtspMessage helloMessage = new HtspMessage();
         helloMessage.setMethod("hello");
@@ -259,37 +278,47 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
         helloMessage.put("htspversion", HtspMessage.HTSP_VERSION);
         helloMessage.put("username", username);
 
-        sendMessage(helloMessage, response -> {
+        try {
+            // The deadline of the requests limits the waiting time to the connection timeout
+            HtspMessage response = sendRequest(helloMessage, connectionTimeout).get();
+            if (response.containsKey("error")) {
+                Timber.d("Did not receive a response for the initial message, %s", response.getString("error"));
+                connectionListener.onAuthenticationStateChange(AuthenticationState.FAILED);
+                return;
+            }
 
+            // The listeners save the server status before the authentication is reported
             response.setMethod("serverStatus");
-            for (HtspMessageListener listener : messageListeners) {
-                listener.onMessage(response);
-            }
+            messageDispatcher.deliver(response);
 
-            MessageDigest md;
-            try {
-                md = MessageDigest.getInstance("SHA1");
-                md.update(password.getBytes());
-                md.update(response.getByteArray("challenge"));
-
-                Timber.d("Sending authentication message");
-                authMessage.put("digest", md.digest());
-                sendMessage(authMessage, authHandler);
-            } catch (NoSuchAlgorithmException e) {
-                Timber.d(e, "Could not sent authentication message.");
-            }
-        });
+            MessageDigest md = MessageDigest.getInstance("SHA1");
+            md.update(password.getBytes());
+            md.update(response.getByteArray("challenge"));
 
-        synchronized (authMessage) {
-            try {
-                authMessage.wait(connectionTimeout);
-                if (!isAuthenticated) {
-                    Timber.d("Timeout while waiting for authentication response");
-                    connectionListener.onAuthenticationStateChange(AuthenticationState.FAILED);
-                }
-            } catch (InterruptedException e) {
-                Timber.d(e, "Waiting for authentication message was interrupted.");
+            Timber.d("Sending authentication message");
+            HtspMessage authMessage = new HtspMessage();
+            authMessage.setMethod("authenticate");
+            authMessage.put("username", username);
+            authMessage.put("digest", md.digest());
+            response = sendRequest(authMessage, connectionTimeout).get();
+
+            isAuthenticated = !response.containsKey("error") && response.getInteger("noaccess", 0) != 1;
+            Timber.d("Authentication was successful: %s", isAuthenticated);
+            if (response.containsKey("error")) {
+                Timber.d("Timeout while waiting for authentication response");
+                connectionListener.onAuthenticationStateChange(AuthenticationState.FAILED);
+            } else if (!isAuthenticated) {
+                connectionListener.onAuthenticationStateChange(AuthenticationState.FAILED_BAD_CREDENTIALS);
+            } else {
+                connectionListener.onAuthenticationStateChange(AuthenticationState.AUTHENTICATED);
             }
+            Timber.d("Connection to server is complete");
+            isConnecting = false;
+
+        } catch (NoSuchAlgorithmException e) {
+            Timber.d(e, "Could not sent authentication message.");
+        } catch (InterruptedException e) {
+            Timber.d(e, "Waiting for authentication message was interrupted.");
         }
     }
 
@@ -300,6 +329,32 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
 
     @Override
     public void sendMessage(@NonNull HtspMessage message, @Nullable HtspResponseListener listener) {
+        sendMessage(message, listener, RESPONSE_TIMEOUT);
+    }
+
+    @NonNull
+    @Override
+    public HtspResponseFuture sendRequest(@NonNull HtspMessage message) {
+        return sendRequest(message, RESPONSE_TIMEOUT);
+    }
+
+    @NonNull
+    @Override
+    public HtspResponseFuture sendRequest(@NonNull HtspMessage message, long timeout) {
+        final HtspResponseFuture future = new HtspResponseFuture();
+        final int seq = sendMessage(message, future, timeout);
+        if (seq > 0) {
+            future.setCancelAction(() -> responseTable.cancel(seq));
+        }
+        return future;
+    }
+
+    /**
+     * Queues the message for sending and registers the listener for the response.
+     *
+     * @return The sequence number of the message or 0 if the message was not sent
+     */
+    private int sendMessage(@NonNull HtspMessage message, @Nullable HtspResponseListener listener, long timeout) {
         if (isNotConnected()) {
             Timber.d("Not sending message, not connected to server");
 
@@ -310,31 +365,50 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
                 listener.handleResponse(msg);
             }
 
-            return;
+            return 0;
         }
-        lock.lock();
+        // No locking is required here, the response table and the queue of
+        // the writer can be used concurrently with the selector thread
         try {
-            seq++;
+            int seq = responseTable.register(listener, timeout);
             message.put("seq", seq);
-            responseHandlers.put(seq, listener);
-            socketChannel.register(selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ | SelectionKey.OP_CONNECT);
-            messageQueue.add(message);
-            selector.wakeup();
+            // The selector thread enables the write interest when the queue is not empty anymore
+            if (frameWriter.enqueue(message)) {
+                selector.wakeup();
+            }
+            return seq;
 
         } catch (Exception e) {
             Timber.d(e, "Could not send message.");
-        } finally {
-            lock.unlock();
+            return 0;
         }
     }
 
+    /**
+     * Returns the table that correlates the requests with their responses.
+     * It provides the number of pending requests and the response times.
+     */
+    @NonNull
+    public HtspResponseTable getResponseTable() {
+        return responseTable;
+    }
+
+    /**
+     * Returns the dispatcher that delivers the server push messages.
+     * It provides the statistics of the queue of each listener.
+     */
+    @NonNull
+    public HtspMessageDispatcher getMessageDispatcher() {
+        return messageDispatcher;
+    }
+
     @Override
     public void closeConnection() {
         Timber.d("Closing HTSP connection");
+        List<HtspResponseTable.PendingResponse> pendingResponses = responseTable.removeAll();
         lock.lock();
         try {
-            responseHandlers.clear();
-            messageQueue.clear();
+            frameWriter.clear();
             isAuthenticated = false;
             isConnecting = false;
             isRunning = false;
@@ -357,6 +431,7 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
         } finally {
             lock.unlock();
         }
+        failPendingResponses(pendingResponses, "Connection to server was closed");
         Timber.d("HTSP connection closed");
     }
 
@@ -367,7 +442,9 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
 
         while (isRunning) {
             try {
-                selector.select(5000);
+                // Wake up in time to fail the requests that were not answered
+                long timeout = responseTable.getTimeUntilNextDeadline(System.currentTimeMillis());
+                selector.select(Math.max(1, Math.min(5000, timeout)));
             } catch (IOException e) {
                 Timber.d(e, "Failed to select from socket channel, I/O error occurred");
                 connectionListener.onConnectionStateChange(ConnectionState.FAILED);
@@ -386,13 +463,9 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
                     it.remove();
                     processTcpSelectionKey(selKey);
                 }
-                int ops = SelectionKey.OP_READ;
-                if (!messageQueue.isEmpty()) {
-                    ops |= SelectionKey.OP_WRITE;
-                }
-                if (socketChannel.isOpen()) {
-                    socketChannel.register(selector, ops);
-                }
+                updateInterestOps();
+                failPendingResponses(responseTable.removeExpired(System.currentTimeMillis()),
+                        "Timeout while waiting for response from server");
 
             } catch (NullPointerException e) {
                 Timber.d(e, "Failed to register selector with socket channel, socket channel is null");
@@ -438,43 +511,98 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
         }
         if (selKey.isReadable() && selKey.isValid()) {
             SocketChannel sChannel = (SocketChannel) selKey.channel();
-            int len = sChannel.read(inputByteBuffer);
-            if (len < 0) {
+            HtspTrafficRecorder recorder = trafficRecorder;
+            // Read everything the socket offers and handle all complete messages in order
+            if (frameReader.read(recorder != null ? recorder.wrap(sChannel) : sChannel, this::handleMessage) < 0) {
                 connectionListener.onConnectionStateChange(ConnectionState.FAILED);
                 Timber.d("Could not read data from server");
                 throw new IOException();
             }
-
-            HtspMessage msg = HtspMessage.parse(inputByteBuffer);
-            if (msg != null) {
-                handleMessage(msg);
-            }
         }
         if (selKey.isWritable() && selKey.isValid()) {
             SocketChannel sChannel = (SocketChannel) selKey.channel();
-            HtspMessage msg = messageQueue.poll();
-            if (msg != null) {
-                msg.transmit(sChannel);
+            HtspTrafficRecorder recorder = trafficRecorder;
+            frameWriter.write(recorder != null ? recorder.wrap(sChannel) : sChannel);
+        }
+    }
+
+    /**
+     * Enables the write interest of the socket channel when messages are waiting
+     * to be sent and disables it when all messages have been written. The read
+     * interest is disabled while a message listener that must not miss messages
+     * has fallen behind, so the server has to wait instead of messages being dropped.
+     * The interest ops are only changed when one of these states has changed.
+     */
+    private void updateInterestOps() {
+        if (!socketChannel.isOpen() || !socketChannel.isConnected()) {
+            return;
+        }
+        SelectionKey key = socketChannel.keyFor(selector);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        boolean congested = messageDispatcher.isCongested();
+        if (congested != isReadingPaused) {
+            isReadingPaused = congested;
+            Timber.d(congested ? "Message listeners are behind, pausing reading from server"
+                    : "Message listeners caught up, continuing reading from server");
+        }
+        int ops = congested ? 0 : SelectionKey.OP_READ;
+        if (frameWriter.hasPendingData()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Calls the listeners of the given requests with an error response so that
+     * callers that are waiting for a response are not blocked forever.
+     */
+    private void failPendingResponses(List<HtspResponseTable.PendingResponse> pendingResponses, String error) {
+        for (HtspResponseTable.PendingResponse pendingResponse : pendingResponses) {
+            Timber.d("Failing request with seq %d, %s", pendingResponse.seq, error);
+            HtspMessage msg = new HtspMessage();
+            msg.put("seq", pendingResponse.seq);
+            msg.put("success", 0);
+            msg.put("error", error);
+            try {
+                synchronized (pendingResponse.listener) {
+                    pendingResponse.listener.handleResponse(msg);
+                }
+            } catch (RuntimeException e) {
+                Timber.d(e, "Response listener failed to handle the error response");
             }
         }
     }
 
-    private void handleMessage(HtspMessage msg) {
+    /**
+     * Passes a response to the listener of its request and all other
+     * messages to the message listeners. This is also used to replay
+     * recorded traffic, see {@link HtspTrafficReplayer}.
+     * <p>
+     * Only responses contain a sequence number. A response without a listener belongs
+     * to a request that was cancelled, timed out or did not expect a response. It is
+     * dropped instead of being passed to the message listeners, which do not handle
+     * responses, and the pooled arrays of its data are released.
+     */
+    void handleMessage(HtspMessage msg) {
         if (msg.containsKey("seq")) {
             int respSeq = msg.getInteger("seq");
-            HtspResponseListener handler = responseHandlers.get(respSeq);
-            responseHandlers.remove(respSeq);
+            HtspResponseListener handler = responseTable.remove(respSeq);
 
             if (handler != null) {
                 synchronized (handler) {
                     handler.handleResponse(msg);
                 }
-                return;
+            } else {
+                msg.releasePayloads();
             }
+            return;
         }
 
-        for (HtspMessageListener listener : messageListeners) {
-            listener.onMessage(msg);
-        }
+        // Server push messages are handed to the listeners on their own threads
+        messageDispatcher.dispatch(msg);
     }
 }
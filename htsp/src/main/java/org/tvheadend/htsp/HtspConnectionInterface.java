@@ -6,6 +6,12 @@ import androidx.annotation.Nullable;
 interface HtspConnectionInterface {
     void addMessageListener(@NonNull HtspMessageListener listener);
 
+    // the listener only receives the messages with one of the given methods
+    void addMessageListener(@NonNull HtspMessageListener listener, @NonNull String... methods);
+
+    // the listener only receives the messages that belong to the given subscription
+    void addSubscriptionListener(int subscriptionId, @NonNull HtspMessageListener listener);
+
     void removeMessageListener(@NonNull HtspMessageListener listener);
 
     // synchronized, non blocking connect
@@ -22,5 +28,12 @@ interface HtspConnectionInterface {
 
     void sendMessage(@NonNull HtspMessage message, @Nullable HtspResponseListener listener);
 
+    @NonNull
+    HtspResponseFuture sendRequest(@NonNull HtspMessage message);
+
+    // asynchronous request, the response is failed if it was not received within the timeout
+    @NonNull
+    HtspResponseFuture sendRequest(@NonNull HtspMessage message, long timeout);
+
     void closeConnection();
 }
@@ -2,28 +2,86 @@ package org.tvheadend.htsp;
 
 import androidx.annotation.NonNull;
 
-import org.jetbrains.annotations.NotNull;
-
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 import timber.log.Timber;
 
+/**
+ * Reads a file from the server with fileRead requests. To avoid waiting for a
+ * round trip per chunk, a window of requests at increasing offsets is kept in
+ * flight. The responses are consumed in the order of their offsets, and a new
+ * request is sent whenever a chunk was taken from the window. The memory that is
+ * used is therefore bounded by the chunk size times the number of requests in the
+ * window. Seeking to an offset keeps the requests that are still needed and
+ * cancels the others. If the connection has a buffer pool, the chunks are read
+ * straight from the pooled arrays they were decoded into, which are handed back
+ * once the next chunk is taken. The stream is not thread safe.
+ */
 public class HtspFileInputStream extends InputStream {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_WINDOW_SIZE = 4;
+
+    private static final byte[] EMPTY = new byte[0];
+
     private final HtspConnection connection;
     private final String path;
+    private final int chunkSize;
+    private final int windowSize;
+    private final Deque<PendingRead> pendingReads = new ArrayDeque<>();
 
     private long fileId;
     private long fileSize;
 
+    // The chunk that is currently read from, the number of its valid bytes
+    // and the offset of its first byte in the file
+    private HtspPayload payload;
     private byte[] buf;
-    private int bufPos;
-    private long offset;
+    private int bufLength;
+    private long bufOffset;
+
+    // The offset of the next byte that is returned and of the next chunk that is requested
+    private long position;
+    private long requestOffset;
+    private boolean endOfFile;
+
+    private static final class PendingRead {
+        final long offset;
+        final int size;
+        final HtspResponseFuture response;
+
+        PendingRead(long offset, int size, HtspResponseFuture response) {
+            this.offset = offset;
+            this.size = size;
+            this.response = response;
+        }
+    }
 
     public HtspFileInputStream(HtspConnection conn, String path)
             throws IOException {
+        this(conn, path, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param conn       The connection to the server
+     * @param path       The path of the file on the server
+     * @param chunkSize  The number of bytes that are requested with a single fileRead
+     * @param windowSize The maximum number of fileRead requests that are in flight
+     * @throws IOException If the file could not be opened
+     */
+    public HtspFileInputStream(HtspConnection conn, String path, int chunkSize, int windowSize)
+            throws IOException {
+        if (chunkSize <= 0 || windowSize <= 0) {
+            throw new IllegalArgumentException("Chunk size and window size must be positive");
+        }
         this.connection = conn;
         this.path = path;
+        this.chunkSize = chunkSize;
+        this.windowSize = windowSize;
 
         this.fileId = -1;
         this.fileSize = -1;
@@ -32,68 +90,52 @@ public class HtspFileInputStream extends InputStream {
         this.open();
     }
 
-    public int available() {
-        return this.buf.length;
+    /**
+     * Returns the size of the file or -1 if the server did not provide it
+     */
+    public long getFileSize() {
+        return fileSize;
     }
 
-    public boolean markSupported() {
-        return false;
+    /**
+     * Returns the offset of the next byte that will be read
+     */
+    public long getPosition() {
+        return position;
     }
 
-    public void reset() {
-        buf = new byte[0];
-        bufPos = 0;
-        offset = 0;
-    }
-
-    class FileOpenResponse implements HtspResponseListener {
-        int id;
-        long size;
-        long mtime;
-
-        @Override
-        public void handleResponse(@NotNull HtspMessage response) {
-            id = response.getInteger("id", 0);
-            size = response.getLong("size", 0);
-            mtime = response.getLong("mtime", 0);
-            notifyAll();
-        }
+    public int available() {
+        return (int) (bufOffset + bufLength - position);
     }
 
-    class FileReadResponse implements HtspResponseListener {
-        byte[] data;
-
-        @Override
-        public void handleResponse(@NotNull HtspMessage response) {
-            data = response.getByteArray("data");
-            notifyAll();
-        }
+    public boolean markSupported() {
+        return false;
     }
 
-    class FileCloseResponse implements HtspResponseListener {
-
-        @Override
-        public void handleResponse(@NotNull HtspMessage response) {
-            notifyAll();
-        }
+    /**
+     * Continues reading from the beginning of the file
+     */
+    public void reset() {
+        releaseChunk();
+        bufOffset = 0;
+        seek(0);
     }
 
     private void open() throws IOException {
         HtspMessage request = new HtspMessage();
-        FileOpenResponse response = new FileOpenResponse();
-
         request.setMethod("fileOpen");
         request.put("file", path);
 
-        synchronized (response) {
-            try {
-                connection.sendMessage(request, response);
-                response.wait();
-                fileId = response.id;
-                fileSize = response.size;
-            } catch (Throwable e) {
-                Timber.e(e, "Timeout waiting for fileOpen");
+        try {
+            HtspMessage response = connection.sendRequest(request).get();
+            if (response.containsKey("error")) {
+                Timber.d("Error opening file %s: %s", path, response.getString("error"));
+            } else {
+                fileId = response.getInteger("id", 0);
+                fileSize = response.getLong("size", -1);
             }
+        } catch (InterruptedException e) {
+            Timber.e(e, "Interrupted while waiting for fileOpen");
         }
 
         if (fileId < 0) {
@@ -104,72 +146,202 @@ public class HtspFileInputStream extends InputStream {
     }
 
     public void close() {
-        HtspMessage request = new HtspMessage();
-        FileCloseResponse response = new FileCloseResponse();
+        cancelPendingReads();
+        releaseChunk();
 
+        HtspMessage request = new HtspMessage();
         request.setMethod("fileClose");
         request.put("id", fileId);
 
-        synchronized (response) {
-            try {
-                connection.sendMessage(request, response);
-                response.wait();
-                fileId = -1;
-                fileSize = -1;
-            } catch (Throwable e) {
-                Timber.e(e, "Timeout waiting for fileClose");
+        try {
+            connection.sendRequest(request).get();
+            fileId = -1;
+            fileSize = -1;
+        } catch (InterruptedException e) {
+            Timber.e(e, "Interrupted while waiting for fileClose");
+        }
+    }
+
+    /**
+     * Moves the position from which the next byte will be read. Data that was already
+     * received or requested for the new position is kept, all other requests are cancelled.
+     *
+     * @param offset The offset in the file
+     */
+    public void seek(long offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be negative");
+        }
+        position = offset;
+        endOfFile = false;
+        if (offset >= bufOffset && offset < bufOffset + bufLength) {
+            return;
+        }
+        releaseChunk();
+        bufOffset = offset;
+
+        // Drop the requests until the one that contains the new position
+        while (!pendingReads.isEmpty()) {
+            PendingRead pendingRead = pendingReads.peekFirst();
+            if (offset >= pendingRead.offset && offset < pendingRead.offset + pendingRead.size) {
+                return;
             }
+            cancel(pendingReads.pollFirst());
         }
+        requestOffset = offset;
     }
 
-    public int read(@NonNull byte[] outBuf, int outOffset, int outLength) {
-        fillBuffer();
+    @Override
+    public long skip(long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        if (fileSize >= 0) {
+            n = Math.max(0, Math.min(n, fileSize - position));
+        }
+        seek(position + n);
+        return n;
+    }
 
-        int ret = Math.min(buf.length - bufPos, outLength - outOffset);
-        if(ret > 0) {
-            System.arraycopy(buf, bufPos, outBuf, outOffset, ret);
-            bufPos += ret;
-            return ret;
+    public int read(@NonNull byte[] outBuf, int outOffset, int outLength) throws IOException {
+        if (outLength == 0) {
+            return 0;
+        }
+        if (!fillBuffer()) {
+            return -1;
         }
 
-        return -1;
+        int bufPos = (int) (position - bufOffset);
+        int ret = Math.min(bufLength - bufPos, outLength);
+        System.arraycopy(buf, bufPos, outBuf, outOffset, ret);
+        position += ret;
+        return ret;
     }
 
     @Override
-    public int read() {
-        fillBuffer();
-
-        if (bufPos < buf.length) {
-            return buf[bufPos++] & 0xff;
+    public int read() throws IOException {
+        if (!fillBuffer()) {
+            return -1;
         }
-
-        return -1;
+        return buf[(int) (position++ - bufOffset)] & 0xff;
     }
 
-    private void fillBuffer() {
-        if(bufPos < buf.length) {
-            return;
+    /**
+     * Makes sure that the current chunk contains the byte at the current position.
+     *
+     * @return False if the end of the file was reached
+     * @throws IOException If the server failed to read the file
+     */
+    private boolean fillBuffer() throws IOException {
+        if (position >= bufOffset && position < bufOffset + bufLength) {
+            return true;
         }
 
-        HtspMessage request = new HtspMessage();
-        FileReadResponse response = new FileReadResponse();
+        while (true) {
+            if (endOfFile || (fileSize >= 0 && position >= fileSize)) {
+                return false;
+            }
 
-        request.setMethod("fileRead");
-        request.put("id", fileId);
-        request.put("size", Math.min(fileSize, 1024 * 1024 * 8));
-        request.put("offset", offset);
+            requestChunks();
+            PendingRead pendingRead = pendingReads.pollFirst();
+            if (pendingRead == null) {
+                return false;
+            }
 
-        synchronized (response) {
+            HtspMessage response;
             try {
-                connection.sendMessage(request, response);
-                response.wait();
-
-                offset += buf.length;
-                buf = response.data;
-                bufPos = 0;
-            } catch (Throwable e) {
-                Timber.e(e, "Timeout waiting for fileRead");
+                response = pendingRead.response.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelPendingReads();
+                throw new InterruptedIOException("Interrupted while waiting for fileRead");
+            }
+
+            if (response.containsKey("error")) {
+                cancelPendingReads();
+                throw new IOException("Error reading file " + path + ": " + response.getString("error"));
+            }
+
+            releaseChunk();
+            payload = response.getPayload("data");
+            if (payload != null) {
+                buf = payload.getData();
+                bufLength = payload.getLength();
+            }
+            bufOffset = pendingRead.offset;
+
+            if (bufLength < pendingRead.size) {
+                // The server returned less than requested, so either the end of the file was
+                // reached or the following requests would leave a gap and need to be sent again
+                cancelPendingReads();
+                if (bufLength == 0) {
+                    endOfFile = true;
+                } else {
+                    requestOffset = Math.max(bufOffset + bufLength, position);
+                }
+            }
+
+            if (position >= bufOffset && position < bufOffset + bufLength) {
+                return true;
             }
         }
     }
+
+    /**
+     * Sends fileRead requests until the window is full or the end of the file was requested
+     */
+    private void requestChunks() {
+        while (pendingReads.size() < windowSize && (fileSize < 0 || requestOffset < fileSize)) {
+            int size = chunkSize;
+            if (fileSize >= 0) {
+                // Make sure we don't overrun the file
+                size = (int) Math.min(size, fileSize - requestOffset);
+            }
+
+            HtspMessage request = new HtspMessage();
+            request.setMethod("fileRead");
+            request.put("id", fileId);
+            request.put("size", size);
+            request.put("offset", requestOffset);
+
+            pendingReads.addLast(new PendingRead(requestOffset, size, connection.sendRequest(request)));
+            requestOffset += size;
+        }
+    }
+
+    private void cancelPendingReads() {
+        while (!pendingReads.isEmpty()) {
+            cancel(pendingReads.pollFirst());
+        }
+    }
+
+    /**
+     * Cancels the request or, if its response was already received, releases its data
+     */
+    private static void cancel(PendingRead pendingRead) {
+        HtspResponseFuture response = pendingRead.response;
+        if (response.cancel(false) || response.isCancelled()) {
+            return;
+        }
+        try {
+            HtspPayload data = response.get().getPayload("data");
+            if (data != null) {
+                data.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hands the array of the current chunk back to the pool of the connection
+     */
+    private void releaseChunk() {
+        if (payload != null) {
+            payload.release();
+            payload = null;
+        }
+        buf = EMPTY;
+        bufLength = 0;
+    }
 }
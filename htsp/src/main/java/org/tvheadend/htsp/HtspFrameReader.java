@@ -0,0 +1,83 @@
+package org.tvheadend.htsp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the data from the socket channel into a ring like buffer and passes
+ * every complete HTSP message to the given listener in the order it was received.
+ * The unread data is only moved to the beginning of the buffer when the end of
+ * the buffer has been reached, so a read does not memmove the remaining bytes.
+ */
+final class HtspFrameReader {
+
+    private final ByteBuffer buffer;
+    private final HtspMessageDecoder decoder;
+
+    HtspFrameReader(int capacity) {
+        // A heap buffer allows decoding the string fields without copying them first
+        this.buffer = ByteBuffer.allocate(capacity);
+        this.buffer.limit(0);
+        this.decoder = new HtspMessageDecoder();
+    }
+
+    /**
+     * Sets the pool for the arrays of the payloads of the received messages or null to allocate them
+     */
+    void setPayloadPool(HtspBufferPool pool) {
+        decoder.setPayloadPool(pool);
+    }
+
+    /**
+     * Reads as much data as the channel currently offers, bounded by the size of the
+     * buffer per call, and passes all messages that are complete to the listener.
+     *
+     * @param channel  The channel to read from
+     * @param listener The listener that handles the decoded messages
+     * @return The number of bytes that were read or -1 if the end of stream was reached
+     * @throws IOException If reading from the channel or decoding a message failed
+     */
+    int read(ReadableByteChannel channel, HtspMessageListener listener) throws IOException {
+        int total = 0;
+
+        while (total < buffer.capacity()) {
+            if (buffer.limit() == buffer.capacity()) {
+                // The end of the buffer was reached, move the unread data to the beginning
+                buffer.compact();
+                buffer.flip();
+            }
+
+            // Append the new data behind the unread data
+            int position = buffer.position();
+            buffer.position(buffer.limit());
+            buffer.limit(buffer.capacity());
+            int len;
+            try {
+                len = channel.read(buffer);
+            } finally {
+                buffer.limit(buffer.position());
+                buffer.position(position);
+            }
+
+            if (len < 0) {
+                return total > 0 ? total : -1;
+            }
+            if (len == 0) {
+                break;
+            }
+            total += len;
+
+            HtspMessage msg;
+            while ((msg = decoder.decode(buffer)) != null) {
+                listener.onMessage(msg);
+            }
+
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                buffer.limit(0);
+            }
+        }
+        return total;
+    }
+}
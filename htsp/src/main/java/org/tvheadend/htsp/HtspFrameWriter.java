@@ -0,0 +1,146 @@
+package org.tvheadend.htsp;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the outgoing HTSP messages and writes them to the socket channel.
+ * All queued messages are serialized directly into a fixed set of reusable direct
+ * buffers which are flushed with a single gathering write. Messages can be added
+ * from any thread, the writing is done by the thread that handles the selector.
+ */
+final class HtspFrameWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BUFFER_COUNT = 16;
+
+    private final Queue<HtspMessage> messageQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedMessageCount = new AtomicInteger();
+    private final ByteBuffer[] buffers = new ByteBuffer[BUFFER_COUNT];
+    private final HtspMessageEncoder encoder = new HtspMessageEncoder();
+
+    // The buffers with data that was not yet written to the channel
+    private int firstBuffer;
+    private int bufferCount;
+
+    // The message that did not fit into the buffers anymore
+    private HtspMessage pendingMessage;
+
+    /**
+     * Adds the message to the queue of messages that shall be sent.
+     *
+     * @param message The message that shall be sent
+     * @return True if the queue was empty before, in this case the
+     * caller needs to make sure that the writer gets called
+     */
+    boolean enqueue(HtspMessage message) {
+        messageQueue.add(message);
+        return queuedMessageCount.getAndIncrement() == 0;
+    }
+
+    /**
+     * Returns true if there are messages or parts of a message that were not yet written
+     */
+    boolean hasPendingData() {
+        return bufferCount > 0 || pendingMessage != null || queuedMessageCount.get() > 0;
+    }
+
+    /**
+     * Returns the number of messages that were queued but not yet serialized
+     */
+    int getQueuedMessageCount() {
+        return queuedMessageCount.get();
+    }
+
+    void clear() {
+        messageQueue.clear();
+        queuedMessageCount.set(0);
+        pendingMessage = null;
+        firstBuffer = 0;
+        bufferCount = 0;
+    }
+
+    /**
+     * Writes as many of the queued messages as the channel accepts.
+     *
+     * @param channel The channel the messages shall be written to
+     * @throws IOException If a message could not be serialized or written
+     */
+    void write(GatheringByteChannel channel) throws IOException {
+        while (bufferCount > 0 || fillBuffers()) {
+            if (channel.write(buffers, firstBuffer, bufferCount) < 0) {
+                throw new IOException("Server went down");
+            }
+            while (bufferCount > 0 && !buffers[firstBuffer].hasRemaining()) {
+                firstBuffer++;
+                bufferCount--;
+            }
+            if (bufferCount > 0) {
+                // The channel does not accept more data right now
+                return;
+            }
+        }
+    }
+
+    private boolean fillBuffers() throws IOException {
+        int index = 0;
+        ByteBuffer buf = prepareBuffer(index);
+
+        while (true) {
+            HtspMessage message = pendingMessage;
+            if (message == null) {
+                message = messageQueue.poll();
+                if (message == null) {
+                    break;
+                }
+                queuedMessageCount.decrementAndGet();
+            }
+
+            int position = buf.position();
+            try {
+                encoder.encode(message, buf);
+                pendingMessage = null;
+                continue;
+            } catch (BufferOverflowException e) {
+                buf.position(position);
+                pendingMessage = message;
+            }
+
+            if (position == 0) {
+                // The message does not even fit into an empty buffer, replace it with a larger one
+                buffers[index] = ByteBuffer.allocateDirect(buf.capacity() * 2);
+                buf = buffers[index];
+                continue;
+            }
+
+            // The current buffer is full, continue with the next one
+            if (index + 1 == BUFFER_COUNT) {
+                break;
+            }
+            buf = prepareBuffer(++index);
+        }
+
+        firstBuffer = 0;
+        bufferCount = 0;
+        for (int i = 0; i <= index; i++) {
+            buffers[i].flip();
+            if (buffers[i].hasRemaining()) {
+                bufferCount = i + 1;
+            }
+        }
+        return bufferCount > 0;
+    }
+
+    private ByteBuffer prepareBuffer(int index) {
+        if (buffers[index] == null) {
+            buffers[index] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        buffers[index].clear();
+        return buffers[index];
+    }
+}
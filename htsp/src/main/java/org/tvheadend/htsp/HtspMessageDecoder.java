@@ -0,0 +1,251 @@
+package org.tvheadend.htsp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental decoder for length prefixed HTSP messages.
+ * The fields are decoded straight from the buffer that the socket reads into.
+ * Nested maps and lists are decoded in place by narrowing the limit of the buffer
+ * instead of copying them into separate buffers. Messages that are larger than the
+ * read buffer are collected in a reusable scratch buffer until they are complete.
+ * Field names and short string values are resolved with a symbol table to avoid
+ * creating new strings for the recurring vocabulary of the protocol. If a buffer
+ * pool is set, the payloads of the muxpkt messages and the data of the fileRead
+ * responses are decoded into pooled arrays.
+ */
+final class HtspMessageDecoder {
+
+    // Scratch buffers larger than this are released after the message was decoded
+    private static final int MAX_RETAINED_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // Names of the unnamed fields of a map, which are keyed by their index
+    private static final String[] INDEX_NAMES = new String[64];
+
+    static {
+        for (int i = 0; i < INDEX_NAMES.length; i++) {
+            INDEX_NAMES[i] = Integer.toString(i);
+        }
+    }
+
+    private final HtspSymbolTable symbolTable = new HtspSymbolTable();
+    private final byte[] nameBuffer = new byte[255];
+    private byte[] valueBuffer = new byte[1024];
+    private ByteBuffer frameBuffer;
+    private ByteBuffer pendingFrame;
+    private volatile HtspBufferPool payloadPool;
+
+    /**
+     * Sets the pool for the arrays of the payload fields or null to allocate them
+     */
+    void setPayloadPool(HtspBufferPool pool) {
+        payloadPool = pool;
+    }
+
+    /**
+     * Decodes the next message from the given buffer. The buffer must be in read mode.
+     * All bytes that belong to the returned message are consumed. If the message is not
+     * yet complete, null is returned and the remaining bytes are left in the buffer
+     * unless the message can never fit into it. In this case the available bytes are
+     * moved into the scratch buffer so that the caller can continue reading.
+     *
+     * @param buf The buffer that contains the received data
+     * @return The decoded message or null if more data is required
+     * @throws IOException If the data could not be decoded
+     */
+    HtspMessage decode(ByteBuffer buf) throws IOException {
+        if (pendingFrame == null) {
+            if (buf.remaining() < 4) {
+                return null;
+            }
+
+            long len = buf.getInt(buf.position()) & 0xFFFFFFFFL;
+            if (len > Integer.MAX_VALUE - 4) {
+                throw new IOException("Message is too long, length " + len);
+            }
+
+            if (buf.remaining() >= len + 4) {
+                buf.position(buf.position() + 4);
+                int limit = buf.limit();
+                buf.limit(buf.position() + (int) len);
+                try {
+                    HtspMessage msg = decodeMap(buf);
+                    msg.wireSize = (int) len + 4;
+                    return msg;
+                } finally {
+                    buf.limit(limit);
+                }
+            }
+
+            // Message not yet fully read but it will fit into the buffer
+            if (len + 4 <= buf.capacity()) {
+                return null;
+            }
+
+            buf.position(buf.position() + 4);
+            pendingFrame = obtainFrameBuffer((int) len);
+        }
+
+        int count = Math.min(buf.remaining(), pendingFrame.remaining());
+        int limit = buf.limit();
+        buf.limit(buf.position() + count);
+        pendingFrame.put(buf);
+        buf.limit(limit);
+
+        if (pendingFrame.hasRemaining()) {
+            return null;
+        }
+
+        ByteBuffer frame = pendingFrame;
+        pendingFrame = null;
+        frame.flip();
+        HtspMessage msg = decodeMap(frame);
+        msg.wireSize = frame.limit() + 4;
+
+        if (frame.capacity() > MAX_RETAINED_FRAME_SIZE) {
+            frameBuffer = null;
+        }
+        return msg;
+    }
+
+    private ByteBuffer obtainFrameBuffer(int len) {
+        if (frameBuffer == null || frameBuffer.capacity() < len) {
+            frameBuffer = ByteBuffer.allocate(len);
+        }
+        frameBuffer.clear();
+        frameBuffer.limit(len);
+        return frameBuffer;
+    }
+
+    private HtspMessage decodeMap(ByteBuffer buf) throws IOException {
+        HtspMessage msg = new HtspMessage();
+        HtspBufferPool pool = payloadPool;
+        int cnt = 0;
+
+        while (buf.hasRemaining()) {
+            byte type = buf.get();
+            int namelen = readFieldHeader(buf);
+            int datalen = buf.getInt();
+
+            // Get the key for the map (the name)
+            String name;
+            if (namelen == 0) {
+                name = cnt < INDEX_NAMES.length ? INDEX_NAMES[cnt] : Integer.toString(cnt);
+                cnt++;
+            } else if (buf.hasArray()) {
+                name = symbolTable.get(buf.array(), buf.arrayOffset() + buf.position(), namelen, true);
+                buf.position(buf.position() + namelen);
+            } else {
+                buf.get(nameBuffer, 0, namelen);
+                name = symbolTable.get(nameBuffer, 0, namelen, true);
+            }
+
+            if (pool != null && type == HtspMessage.HMF_BIN && ("payload".equals(name) || "data".equals(name))) {
+                byte[] data = pool.acquire(datalen);
+                buf.get(data, 0, datalen);
+                msg.put(name, new HtspPayload(pool, data, datalen));
+            } else {
+                msg.put(name, decodeValue(buf, type, datalen));
+            }
+        }
+        return msg;
+    }
+
+    private List<Object> decodeList(ByteBuffer buf) throws IOException {
+        List<Object> list = new ArrayList<>();
+
+        while (buf.hasRemaining()) {
+            byte type = buf.get();
+            int namelen = readFieldHeader(buf);
+            int datalen = buf.getInt();
+
+            // List entries are not supposed to have a name, skip it if present
+            buf.position(buf.position() + namelen);
+            list.add(decodeValue(buf, type, datalen));
+        }
+        return list;
+    }
+
+    /**
+     * Validates the header of the field at the current position of the buffer
+     * and returns the length of the name. The buffer position is moved to the
+     * beginning of the data length.
+     */
+    private static int readFieldHeader(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 5) {
+            throw new IOException("Field header is truncated, remaining " + buf.remaining());
+        }
+
+        int namelen = buf.get() & 0xFF;
+        long datalen = buf.getInt(buf.position()) & 0xFFFFFFFFL;
+
+        if (4 + namelen + datalen > buf.remaining()) {
+            throw new IOException("Buffer limit exceeded, remaining " + buf.remaining() + ", namelen " + namelen + ", datalen " + datalen);
+        }
+        return namelen;
+    }
+
+    private Object decodeValue(ByteBuffer buf, byte type, int datalen) throws IOException {
+        switch (type) {
+            case HtspMessage.HMF_STR:
+                return decodeString(buf, datalen);
+
+            case HtspMessage.HMF_BIN: {
+                byte[] bData = new byte[datalen];
+                buf.get(bData);
+                return bData;
+            }
+            case HtspMessage.HMF_S64:
+                return decodeS64(buf, datalen);
+
+            case HtspMessage.HMF_MAP:
+            case HtspMessage.HMF_LIST: {
+                int limit = buf.limit();
+                buf.limit(buf.position() + datalen);
+                try {
+                    return type == HtspMessage.HMF_MAP ? decodeMap(buf) : decodeList(buf);
+                } finally {
+                    buf.limit(limit);
+                }
+            }
+            default:
+                throw new IOException("Unknown data type " + type);
+        }
+    }
+
+    /**
+     * Decodes a string value. Values like the method names are taken from the
+     * symbol table, but other values are never added to it because most of
+     * them, like titles and descriptions, do not recur.
+     */
+    private String decodeString(ByteBuffer buf, int datalen) {
+        if (buf.hasArray()) {
+            String value = symbolTable.get(buf.array(), buf.arrayOffset() + buf.position(), datalen, false);
+            buf.position(buf.position() + datalen);
+            return value;
+        }
+
+        if (valueBuffer.length < datalen) {
+            valueBuffer = new byte[datalen];
+        }
+        buf.get(valueBuffer, 0, datalen);
+        return symbolTable.get(valueBuffer, 0, datalen, false);
+    }
+
+    /**
+     * Decodes the little endian integer of the given length. Like the server, the
+     * value is interpreted as a 64 bit two's complement number, so negative values
+     * are sent with all eight bytes. Bytes beyond the eighth are shifted out.
+     */
+    private static long decodeS64(ByteBuffer buf, int datalen) {
+        int position = buf.position();
+        long value = 0;
+        for (int i = datalen - 1; i >= 0; i--) {
+            value = (value << 8) | (buf.get(position + i) & 0xFF);
+        }
+        buf.position(position + datalen);
+        return value;
+    }
+}
@@ -0,0 +1,441 @@
+package org.tvheadend.htsp;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers the messages that the server pushes to the registered listeners
+ * without blocking the thread that reads from the socket. Each listener has its
+ * own queue which is drained by a pooled thread, so a listener receives
+ * its messages in the order they were received while a slow listener does not
+ * delay the others. The queue of a listener is bounded by the size of the received
+ * frames of its messages. The dispatching thread never waits for a full queue.
+ * <p>
+ * The listeners of all messages or of methods receive the channels, events and
+ * recordings and the end of the initial sync, so their messages are never dropped.
+ * While one of their queues is over the limit the dispatcher is congested and the
+ * connection stops reading from the socket until the queue has drained to half of
+ * the limit, see {@link #isCongested()}. The limit can therefore be exceeded by the
+ * messages of one read. Listeners that are only registered for subscriptions drop
+ * messages according to their {@link OverflowPolicy} instead, so that a player that
+ * falls behind never stops the other listeners. Such a listener is then marked as
+ * lagging in its {@link Statistics}.
+ * <p>
+ * A listener either receives all messages or only the messages of the methods
+ * or the subscriptions it was registered for. The interested listeners of a
+ * message are looked up by its method and subscription id, so the cost of
+ * dispatching a message does not grow with the number of running subscriptions.
+ */
+public final class HtspMessageDispatcher {
+
+    private static final long MAX_QUEUED_BYTES = 32 * 1024 * 1024;
+    // Size that is accounted for messages that were not decoded from a frame
+    private static final int MIN_MESSAGE_SIZE = 64;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ExecutorService executor;
+    private final long maxQueuedBytes;
+    private final ConcurrentMap<HtspMessageListener, ListenerQueue> listenerQueues = new ConcurrentHashMap<>();
+    private final Set<ListenerQueue> broadcastQueues = newConcurrentSet();
+    private final ConcurrentMap<String, Set<ListenerQueue>> methodQueues = new ConcurrentHashMap<>();
+    private final Map<Integer, ListenerQueue> subscriptionQueues = new ConcurrentHashMap<>();
+    // The number of queues of lossless listeners that are over the limit
+    private final AtomicInteger congestedQueues = new AtomicInteger();
+    private volatile Runnable congestionListener;
+
+    /**
+     * Defines which messages are dropped when the queue of a subscription listener is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * The message that does not fit is dropped, the queued ones are still delivered
+         */
+        DROP_NEWEST,
+        /**
+         * The oldest queued messages are dropped until the new one fits, so that
+         * a listener that has fallen behind continues with the latest messages
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * Statistics of the queue of a single listener that show
+     * if the listener can keep up with the received messages.
+     */
+    public static final class Statistics {
+        private final AtomicInteger maxQueuedMessages = new AtomicInteger();
+        private final AtomicLong maxQueuedBytes = new AtomicLong();
+        private final AtomicLong dispatchedMessages = new AtomicLong();
+        private final AtomicLong droppedMessages = new AtomicLong();
+
+        private volatile int queuedMessages;
+        private volatile long queuedBytes;
+
+        public int getQueuedMessages() {
+            return queuedMessages;
+        }
+
+        public int getMaxQueuedMessages() {
+            return maxQueuedMessages.get();
+        }
+
+        public long getQueuedBytes() {
+            return queuedBytes;
+        }
+
+        public long getMaxQueuedBytes() {
+            return maxQueuedBytes.get();
+        }
+
+        public long getDispatchedMessages() {
+            return dispatchedMessages.get();
+        }
+
+        /**
+         * Returns the number of messages that were dropped because the queue was full
+         */
+        public long getDroppedMessages() {
+            return droppedMessages.get();
+        }
+
+        /**
+         * Returns true if the listener could not keep up and missed messages.
+         * The data that the listener derived from the messages is incomplete.
+         */
+        public boolean isLagging() {
+            return droppedMessages.get() > 0;
+        }
+    }
+
+    HtspMessageDispatcher() {
+        this(MAX_QUEUED_BYTES);
+    }
+
+    /**
+     * @param maxQueuedBytes The size of the frames of the messages that can be queued for each listener
+     */
+    HtspMessageDispatcher(long maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+        // Threads are only kept while there are messages to deliver
+        executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "HtspDispatcher-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sets the action that is run when the dispatcher is not congested anymore,
+     * so that the connection can continue reading from the socket
+     */
+    void setCongestionListener(@Nullable Runnable congestionListener) {
+        this.congestionListener = congestionListener;
+    }
+
+    /**
+     * Returns true while the queue of a listener that must not miss messages is over
+     * the limit. No further messages shall be read until this returns false again.
+     */
+    public boolean isCongested() {
+        return congestedQueues.get() > 0;
+    }
+
+    /**
+     * Registers the listener for all messages
+     */
+    void addListener(@NonNull HtspMessageListener listener) {
+        ListenerQueue listenerQueue = getListenerQueue(listener);
+        listenerQueue.overflowPolicy = null;
+        listenerQueue.receivesAll = true;
+        broadcastQueues.add(listenerQueue);
+    }
+
+    /**
+     * Registers the listener for the messages with one of the given methods
+     */
+    void addListener(@NonNull HtspMessageListener listener, @NonNull String... methods) {
+        ListenerQueue listenerQueue = getListenerQueue(listener);
+        listenerQueue.overflowPolicy = null;
+        for (String method : methods) {
+            Set<ListenerQueue> queues = methodQueues.get(method);
+            if (queues == null) {
+                Set<ListenerQueue> newQueues = newConcurrentSet();
+                queues = methodQueues.putIfAbsent(method, newQueues);
+                if (queues == null) {
+                    queues = newQueues;
+                }
+            }
+            queues.add(listenerQueue);
+        }
+    }
+
+    /**
+     * Registers the listener for the messages that belong to the given subscription.
+     * Only one listener can be registered for a subscription. A listener that is only
+     * registered for subscriptions drops its oldest messages when it falls behind.
+     */
+    void addSubscriptionListener(int subscriptionId, @NonNull HtspMessageListener listener) {
+        ListenerQueue listenerQueue = listenerQueues.get(listener);
+        if (listenerQueue == null) {
+            listenerQueue = getListenerQueue(listener);
+            listenerQueue.overflowPolicy = OverflowPolicy.DROP_OLDEST;
+        }
+        subscriptionQueues.put(subscriptionId, listenerQueue);
+    }
+
+    /**
+     * Sets which messages are dropped when the queue of the listener is full. This only
+     * applies to listeners that are only registered for subscriptions, the default is
+     * {@link OverflowPolicy#DROP_OLDEST}. The messages of other listeners are never dropped.
+     */
+    public void setOverflowPolicy(@NonNull HtspMessageListener listener, @NonNull OverflowPolicy overflowPolicy) {
+        ListenerQueue listenerQueue = listenerQueues.get(listener);
+        if (listenerQueue != null && listenerQueue.overflowPolicy != null) {
+            listenerQueue.overflowPolicy = overflowPolicy;
+        }
+    }
+
+    /**
+     * Removes the listener from all methods and subscriptions it was registered for.
+     * Messages that were queued but not yet delivered are discarded.
+     */
+    void removeListener(@NonNull HtspMessageListener listener) {
+        ListenerQueue listenerQueue = listenerQueues.remove(listener);
+        if (listenerQueue == null) {
+            return;
+        }
+        broadcastQueues.remove(listenerQueue);
+        for (Set<ListenerQueue> queues : methodQueues.values()) {
+            queues.remove(listenerQueue);
+        }
+        subscriptionQueues.values().removeAll(Collections.singleton(listenerQueue));
+        listenerQueue.close();
+    }
+
+    private ListenerQueue getListenerQueue(HtspMessageListener listener) {
+        ListenerQueue listenerQueue = listenerQueues.get(listener);
+        if (listenerQueue == null) {
+            ListenerQueue newQueue = new ListenerQueue(listener);
+            listenerQueue = listenerQueues.putIfAbsent(listener, newQueue);
+            if (listenerQueue == null) {
+                listenerQueue = newQueue;
+            }
+        }
+        return listenerQueue;
+    }
+
+    private static <T> Set<T> newConcurrentSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+    }
+
+    /**
+     * Returns the statistics of the queue of the given listener or null if it is not registered
+     */
+    @Nullable
+    public Statistics getStatistics(@NonNull HtspMessageListener listener) {
+        ListenerQueue listenerQueue = listenerQueues.get(listener);
+        return listenerQueue != null ? listenerQueue.statistics : null;
+    }
+
+    /**
+     * Hands the message to all listeners that are interested in it on the calling
+     * thread and returns once they have processed it. This is used for messages whose
+     * effects the caller relies on, like the server status of the hello response that
+     * must be saved before the authentication is reported. The message is processed
+     * before the messages that are still queued for a listener, but never at the same time.
+     */
+    void deliver(@NonNull HtspMessage message) {
+        Set<ListenerQueue> interestedQueues = new LinkedHashSet<>(broadcastQueues);
+        String method = message.getMethod();
+        Set<ListenerQueue> queues = method != null ? methodQueues.get(method) : null;
+        if (queues != null) {
+            interestedQueues.addAll(queues);
+        }
+        Object subscriptionId = message.get("subscriptionId");
+        if (subscriptionId instanceof Number) {
+            ListenerQueue listenerQueue = subscriptionQueues.get(((Number) subscriptionId).intValue());
+            if (listenerQueue != null) {
+                interestedQueues.add(listenerQueue);
+            }
+        }
+        for (ListenerQueue listenerQueue : interestedQueues) {
+            listenerQueue.deliver(message);
+        }
+    }
+
+    /**
+     * Adds the message to the queues of all listeners that are interested in it.
+     * Every listener gets the message only once, even if it was registered for
+     * the method as well as for the subscription of the message. Never blocks.
+     */
+    void dispatch(@NonNull HtspMessage message) {
+        for (ListenerQueue listenerQueue : broadcastQueues) {
+            listenerQueue.add(message);
+        }
+
+        Set<ListenerQueue> queues = null;
+        String method = message.getMethod();
+        if (method != null) {
+            queues = methodQueues.get(method);
+            if (queues != null) {
+                for (ListenerQueue listenerQueue : queues) {
+                    if (!listenerQueue.receivesAll) {
+                        listenerQueue.add(message);
+                    }
+                }
+            }
+        }
+
+        Object subscriptionId = message.get("subscriptionId");
+        if (subscriptionId instanceof Number) {
+            ListenerQueue listenerQueue = subscriptionQueues.get(((Number) subscriptionId).intValue());
+            if (listenerQueue != null && !listenerQueue.receivesAll
+                    && (queues == null || !queues.contains(listenerQueue))) {
+                listenerQueue.add(message);
+            }
+        }
+    }
+
+    private static long sizeOf(HtspMessage message) {
+        return Math.max(message.wireSize, MIN_MESSAGE_SIZE);
+    }
+
+    private final class ListenerQueue implements Runnable {
+        private final HtspMessageListener listener;
+        private final Queue<HtspMessage> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queuedMessages = new AtomicInteger();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean congested = new AtomicBoolean();
+        private final Statistics statistics = new Statistics();
+        // Null if the listener must not miss any message
+        private volatile OverflowPolicy overflowPolicy;
+        private volatile boolean closed;
+        private volatile boolean receivesAll;
+
+        ListenerQueue(HtspMessageListener listener) {
+            this.listener = listener;
+        }
+
+        void add(HtspMessage message) {
+            if (closed) {
+                return;
+            }
+            long size = sizeOf(message);
+            OverflowPolicy policy = overflowPolicy;
+            if (policy != null && queuedBytes.get() + size > maxQueuedBytes) {
+                if (policy == OverflowPolicy.DROP_NEWEST || size > maxQueuedBytes) {
+                    statistics.droppedMessages.incrementAndGet();
+                    schedule();
+                    return;
+                }
+                HtspMessage oldest;
+                while (queuedBytes.get() + size > maxQueuedBytes && (oldest = poll()) != null) {
+                    statistics.droppedMessages.incrementAndGet();
+                }
+            }
+
+            queue.offer(message);
+            int messages = queuedMessages.incrementAndGet();
+            long bytes = queuedBytes.addAndGet(size);
+            statistics.queuedMessages = messages;
+            statistics.queuedBytes = bytes;
+            if (policy == null && bytes > maxQueuedBytes && congested.compareAndSet(false, true)) {
+                congestedQueues.incrementAndGet();
+            }
+            int maxMessages;
+            while (messages > (maxMessages = statistics.maxQueuedMessages.get())) {
+                if (statistics.maxQueuedMessages.compareAndSet(maxMessages, messages)) {
+                    break;
+                }
+            }
+            long maxBytes;
+            while (bytes > (maxBytes = statistics.maxQueuedBytes.get())) {
+                if (statistics.maxQueuedBytes.compareAndSet(maxBytes, bytes)) {
+                    break;
+                }
+            }
+            schedule();
+        }
+
+        private HtspMessage poll() {
+            HtspMessage message = queue.poll();
+            if (message != null) {
+                statistics.queuedMessages = queuedMessages.decrementAndGet();
+                long bytes = queuedBytes.addAndGet(-sizeOf(message));
+                statistics.queuedBytes = bytes;
+                if (bytes <= maxQueuedBytes / 2) {
+                    endCongestion();
+                }
+            }
+            return message;
+        }
+
+        private void endCongestion() {
+            if (congested.compareAndSet(true, false) && congestedQueues.decrementAndGet() == 0) {
+                Runnable listener = congestionListener;
+                if (listener != null) {
+                    listener.run();
+                }
+            }
+        }
+
+        void close() {
+            closed = true;
+            while (poll() != null) {
+                // Discard the messages that were not yet delivered
+            }
+            endCongestion();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        /**
+         * Passes the message to the listener, but not while it processes a queued message
+         */
+        synchronized void deliver(HtspMessage message) {
+            if (closed) {
+                return;
+            }
+            listener.onMessage(message);
+            statistics.dispatchedMessages.incrementAndGet();
+        }
+
+        @Override
+        public void run() {
+            try {
+                HtspMessage message;
+                while (!closed && (message = poll()) != null) {
+                    deliver(message);
+                }
+            } finally {
+                scheduled.set(false);
+                // A message might have been added after the queue was found empty
+                if (!closed && !queue.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.tvheadend.htsp;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Serializes HTSP messages in a single pass directly into the given buffer.
+ * The length of a message and of each map or list is not known before its
+ * content was written, so a placeholder is written first and back-patched
+ * afterwards. No intermediate arrays are allocated for nested fields.
+ */
+final class HtspMessageEncoder {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Writes the length prefixed message into the buffer at its current position.
+     *
+     * @param message The message that shall be serialized
+     * @param buf     The buffer the message shall be written to
+     * @throws BufferOverflowException If the message does not fit into the remaining buffer.
+     *                                 The position of the buffer is undefined in this case.
+     * @throws IOException             If the message contains values that are not supported
+     */
+    void encode(HtspMessage message, ByteBuffer buf) throws IOException {
+        int lengthPosition = buf.position();
+        buf.putInt(0);
+        encodeMap(message, buf);
+        buf.putInt(lengthPosition, buf.position() - lengthPosition - 4);
+    }
+
+    private static void encodeMap(Map<?, ?> map, ByteBuffer buf) throws IOException {
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            encodeField(entry.getKey().toString(), entry.getValue(), buf);
+        }
+    }
+
+    private static void encodeList(Collection<?> list, ByteBuffer buf) throws IOException {
+        for (Object value : list) {
+            encodeField("", value, buf);
+        }
+    }
+
+    private static void encodeField(String name, Object value, ByteBuffer buf) throws IOException {
+        byte type;
+        if (value instanceof String) {
+            type = HtspMessage.HMF_STR;
+        } else if (value instanceof Long || value instanceof Integer || value instanceof BigInteger) {
+            type = HtspMessage.HMF_S64;
+        } else if (value instanceof byte[] || value instanceof HtspPayload) {
+            type = HtspMessage.HMF_BIN;
+        } else if (value instanceof Map) {
+            type = HtspMessage.HMF_MAP;
+        } else if (value instanceof Collection) {
+            type = HtspMessage.HMF_LIST;
+        } else if (value == null) {
+            throw new IOException("HTSP doesn't support null values");
+        } else {
+            throw new IOException("Unhandled class for " + name + ": " + value
+                    + " (" + value.getClass().getSimpleName() + ")");
+        }
+
+        buf.put(type);
+        int nameLengthPosition = buf.position();
+        buf.put((byte) 0);
+        int dataLengthPosition = buf.position();
+        buf.putInt(0);
+
+        int nameLength = putString(name, buf);
+        if (nameLength > 255) {
+            throw new IOException("Name of field " + name + " is too long");
+        }
+        buf.put(nameLengthPosition, (byte) nameLength);
+
+        int dataPosition = buf.position();
+        switch (type) {
+            case HtspMessage.HMF_STR:
+                putString((String) value, buf);
+                break;
+            case HtspMessage.HMF_S64:
+                putS64(((Number) value).longValue(), buf);
+                break;
+            case HtspMessage.HMF_BIN:
+                if (value instanceof HtspPayload) {
+                    HtspPayload payload = (HtspPayload) value;
+                    buf.put(payload.getData(), 0, payload.getLength());
+                } else {
+                    buf.put((byte[]) value);
+                }
+                break;
+            case HtspMessage.HMF_MAP:
+                encodeMap((Map<?, ?>) value, buf);
+                break;
+            case HtspMessage.HMF_LIST:
+                encodeList((Collection<?>) value, buf);
+                break;
+        }
+        buf.putInt(dataLengthPosition, buf.position() - dataPosition);
+    }
+
+    /**
+     * Writes the string in UTF-8 and returns the number of written bytes.
+     * The usual ASCII strings are written char by char without allocating an array.
+     */
+    private static int putString(String value, ByteBuffer buf) {
+        int start = buf.position();
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                buf.position(start);
+                buf.put(value.getBytes(CHARSET));
+                break;
+            }
+            buf.put((byte) c);
+        }
+        return buf.position() - start;
+    }
+
+    /**
+     * Writes the value in little endian order with the minimal number of bytes.
+     * As on the server, zero is sent without any bytes and negative values are
+     * sent with all eight bytes.
+     */
+    private static void putS64(long value, ByteBuffer buf) {
+        while (value != 0) {
+            buf.put((byte) value);
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.tvheadend.htsp;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A binary field that was decoded into an array of a {@link HtspBufferPool}.
+ * The array can be larger than the data, only the first {@link #getLength()}
+ * bytes are valid. Whoever consumes the message releases the payload after
+ * copying the data, the array must not be used anymore afterwards.
+ */
+public final class HtspPayload {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    @Nullable
+    private final HtspBufferPool pool;
+    private byte[] data;
+    private final int length;
+
+    /**
+     * @param pool   The pool the array is returned to or null if it is not pooled
+     * @param data   The array that contains the data
+     * @param length The number of valid bytes in the array
+     */
+    public HtspPayload(@Nullable HtspBufferPool pool, @NonNull byte[] data, int length) {
+        this.pool = pool;
+        this.data = data;
+        this.length = length;
+    }
+
+    /**
+     * Returns the array that contains the data, or an empty array if the payload was released
+     */
+    @NonNull
+    public byte[] getData() {
+        byte[] array = data;
+        return array != null ? array : EMPTY;
+    }
+
+    public int getLength() {
+        return data != null ? length : 0;
+    }
+
+    /**
+     * Returns the data in an array of its exact length
+     */
+    @NonNull
+    public byte[] toByteArray() {
+        byte[] array = getData();
+        if (array.length == getLength()) {
+            return array;
+        }
+        byte[] copy = new byte[getLength()];
+        System.arraycopy(array, 0, copy, 0, copy.length);
+        return copy;
+    }
+
+    /**
+     * Returns the array to the pool. Releasing a payload more than once has no effect.
+     */
+    public void release() {
+        byte[] array;
+        synchronized (this) {
+            array = data;
+            data = null;
+        }
+        if (array != null && pool != null) {
+            pool.release(array);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.tvheadend.htsp;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending response of a request that was sent with
+ * {@link HtspConnection#sendRequest(HtspMessage, long)}.
+ * Many requests can be sent from one thread and their responses collected
+ * afterwards, either by blocking in {@link #get()} or by adding listeners that
+ * are called on the connection thread. If the server does not answer before the
+ * deadline of the request or the connection is closed, the future is completed
+ * with a response that contains the field error.
+ */
+public class HtspResponseFuture implements Future<HtspMessage>, HtspResponseListener {
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final List<HtspResponseListener> listeners = new ArrayList<>();
+    private final List<Runnable> cancelListeners = new ArrayList<>();
+    private HtspMessage response;
+    private boolean cancelled;
+    private Runnable cancelAction;
+
+    HtspResponseFuture() {
+    }
+
+    /**
+     * Sets the action that removes the request from the connection when it is cancelled
+     */
+    synchronized void setCancelAction(Runnable cancelAction) {
+        this.cancelAction = cancelAction;
+    }
+
+    @Override
+    public void handleResponse(@NonNull HtspMessage response) {
+        List<HtspResponseListener> completedListeners;
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            this.response = response;
+            completedListeners = new ArrayList<>(listeners);
+            listeners.clear();
+            cancelListeners.clear();
+            latch.countDown();
+        }
+        for (HtspResponseListener listener : completedListeners) {
+            listener.handleResponse(response);
+        }
+    }
+
+    /**
+     * Adds a listener that is called with the response. If the response was already
+     * received the listener is called immediately. The listener is not called if the
+     * request was cancelled, see {@link #addCancelListener(Runnable)} for that case.
+     */
+    public void addListener(@NonNull HtspResponseListener listener) {
+        HtspMessage completedResponse;
+        synchronized (this) {
+            if (!isDone()) {
+                listeners.add(listener);
+                return;
+            }
+            completedResponse = response;
+        }
+        if (completedResponse != null) {
+            listener.handleResponse(completedResponse);
+        }
+    }
+
+    /**
+     * Adds a listener that is called when the request is cancelled. If the request was
+     * already cancelled the listener is called immediately. The listener is not called
+     * if the response was received.
+     */
+    public void addCancelListener(@NonNull Runnable listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                cancelListeners.add(listener);
+                return;
+            }
+            if (!cancelled) {
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Runnable action;
+        List<Runnable> completedListeners;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            cancelled = true;
+            listeners.clear();
+            completedListeners = new ArrayList<>(cancelListeners);
+            cancelListeners.clear();
+            latch.countDown();
+            action = cancelAction;
+        }
+        if (action != null) {
+            action.run();
+        }
+        for (Runnable listener : completedListeners) {
+            listener.run();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return cancelled || response != null;
+    }
+
+    /**
+     * Waits until the response was received. The deadline of the request
+     * guarantees that this does not block longer than the timeout of the request.
+     */
+    @Override
+    public HtspMessage get() throws InterruptedException {
+        latch.await();
+        return getResponse();
+    }
+
+    @Override
+    public HtspMessage get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException("No response received within " + unit.toMillis(timeout) + " ms");
+        }
+        return getResponse();
+    }
+
+    private synchronized HtspMessage getResponse() {
+        if (cancelled) {
+            throw new CancellationException("Request was cancelled");
+        }
+        return response;
+    }
+}
@@ -0,0 +1,25 @@
+package org.tvheadend.htsp
+
+import kotlinx.coroutines.suspendCancellableCoroutine
+import java.util.concurrent.CancellationException
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/**
+ * Suspends until the response of the request was received without blocking a thread.
+ * Cancelling the coroutine also cancels the request. If the request is cancelled
+ * otherwise, the coroutine is resumed with a [CancellationException].
+ */
+suspend fun HtspResponseFuture.await(): HtspMessage {
+    return suspendCancellableCoroutine { continuation ->
+        continuation.invokeOnCancellation { cancel(false) }
+        addListener(object : HtspResponseListener {
+            override fun handleResponse(response: HtspMessage) {
+                continuation.resume(response)
+            }
+        })
+        addCancelListener(Runnable {
+            continuation.resumeWithException(CancellationException("Request was cancelled"))
+        })
+    }
+}
@@ -0,0 +1,194 @@
+package org.tvheadend.htsp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Correlates the responses from the server with the listeners of the requests.
+ * The sequence numbers are generated without locking and the listeners are kept
+ * in a concurrent map, so callers can send requests while the selector thread
+ * is handling responses. Listeners whose request was not answered in time are
+ * removed and returned by {@link #removeExpired(long)} so they can be failed.
+ * Additionally the number of pending requests and the response times are tracked.
+ */
+public final class HtspResponseTable {
+
+    // Interval of a full check for expired requests, this bounds the delay of
+    // requests that were registered while the selector waited for a later deadline
+    private static final long CHECK_INTERVAL = 5000;
+
+    private final AtomicInteger sequence = new AtomicInteger();
+    private final Map<Integer, PendingResponse> pendingResponses = new ConcurrentHashMap<>();
+    private final AtomicLong nextDeadline = new AtomicLong(Long.MAX_VALUE);
+    private long lastCheck;
+
+    private final AtomicLong responseCount = new AtomicLong();
+    private final AtomicLong orphanedResponseCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong totalResponseTime = new AtomicLong();
+    private final AtomicLong maxResponseTime = new AtomicLong();
+
+    static final class PendingResponse {
+        final int seq;
+        final HtspResponseListener listener;
+        final long sendTime;
+        final long deadline;
+
+        PendingResponse(int seq, HtspResponseListener listener, long sendTime, long deadline) {
+            this.seq = seq;
+            this.listener = listener;
+            this.sendTime = sendTime;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Returns a new sequence number and registers the listener for it.
+     *
+     * @param listener The listener for the response, can be null if no response is expected
+     * @param timeout  The time in milliseconds after which the request is considered as failed
+     * @return The sequence number that shall be used for the request
+     */
+    int register(HtspResponseListener listener, long timeout) {
+        int seq = sequence.incrementAndGet();
+        if (listener != null) {
+            long now = System.currentTimeMillis();
+            long deadline = now + timeout;
+            pendingResponses.put(seq, new PendingResponse(seq, listener, now, deadline));
+            updateNextDeadline(deadline);
+        }
+        return seq;
+    }
+
+    /**
+     * Removes and returns the listener for the given sequence number
+     *
+     * @param seq The sequence number of the response
+     * @return The listener or null if none was registered or the request was cancelled or timed out already
+     */
+    HtspResponseListener remove(int seq) {
+        PendingResponse pendingResponse = pendingResponses.remove(seq);
+        if (pendingResponse == null) {
+            orphanedResponseCount.incrementAndGet();
+            return null;
+        }
+
+        long responseTime = System.currentTimeMillis() - pendingResponse.sendTime;
+        responseCount.incrementAndGet();
+        totalResponseTime.addAndGet(responseTime);
+        long max;
+        while (responseTime > (max = maxResponseTime.get())) {
+            if (maxResponseTime.compareAndSet(max, responseTime)) {
+                break;
+            }
+        }
+        return pendingResponse.listener;
+    }
+
+    /**
+     * Lowers the next deadline to the given one if it is earlier. A compare and set loop
+     * is used because the deadline is lowered by the callers and reset by the selector thread.
+     */
+    private void updateNextDeadline(long deadline) {
+        long next;
+        while (deadline < (next = nextDeadline.get())) {
+            if (nextDeadline.compareAndSet(next, deadline)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Removes the listener of a request whose response is not of interest anymore
+     */
+    void cancel(int seq) {
+        pendingResponses.remove(seq);
+    }
+
+    /**
+     * Removes all requests whose deadline has passed.
+     *
+     * @param now The current time in milliseconds
+     * @return The requests that were not answered in time
+     */
+    List<PendingResponse> removeExpired(long now) {
+        List<PendingResponse> expired = new ArrayList<>();
+        if (now < nextDeadline.get() && now - lastCheck < CHECK_INTERVAL) {
+            return expired;
+        }
+        lastCheck = now;
+
+        // Reset the deadline before the check, a request that is registered
+        // meanwhile is either seen by the iterator or lowers it again
+        nextDeadline.set(Long.MAX_VALUE);
+        long deadline = Long.MAX_VALUE;
+        Iterator<PendingResponse> it = pendingResponses.values().iterator();
+        while (it.hasNext()) {
+            PendingResponse pendingResponse = it.next();
+            if (pendingResponse.deadline <= now) {
+                it.remove();
+                expired.add(pendingResponse);
+            } else if (pendingResponse.deadline < deadline) {
+                deadline = pendingResponse.deadline;
+            }
+        }
+        updateNextDeadline(deadline);
+        timeoutCount.addAndGet(expired.size());
+        return expired;
+    }
+
+    /**
+     * Removes all pending requests and returns them
+     */
+    List<PendingResponse> removeAll() {
+        List<PendingResponse> removed = new ArrayList<>();
+        Iterator<PendingResponse> it = pendingResponses.values().iterator();
+        while (it.hasNext()) {
+            removed.add(it.next());
+            it.remove();
+        }
+        nextDeadline.set(Long.MAX_VALUE);
+        return removed;
+    }
+
+    /**
+     * Returns the time in milliseconds until the next pending request times out
+     */
+    long getTimeUntilNextDeadline(long now) {
+        return Math.max(0, Math.min(nextDeadline.get(), lastCheck + CHECK_INTERVAL) - now);
+    }
+
+    public int getPendingRequestCount() {
+        return pendingResponses.size();
+    }
+
+    public long getResponseCount() {
+        return responseCount.get();
+    }
+
+    /**
+     * Returns the number of responses that were received without a listener, because
+     * the request was cancelled, timed out or did not expect a response
+     */
+    public long getOrphanedResponseCount() {
+        return orphanedResponseCount.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    public long getAverageResponseTime() {
+        long count = responseCount.get();
+        return count > 0 ? totalResponseTime.get() / count : 0;
+    }
+
+    public long getMaxResponseTime() {
+        return maxResponseTime.get();
+    }
+}
@@ -0,0 +1,164 @@
+package org.tvheadend.htsp;
+
+import java.nio.charset.Charset;
+
+/**
+ * Maps the UTF-8 encoded field names of received messages to shared String instances.
+ * The table is prefilled with the vocabulary of the HTSP protocol, so the names of
+ * the usual messages are resolved without creating a new String for every field.
+ * As the same instances are used as keys in every message, the hash code of a key is
+ * computed only once and map lookups with the String constants in the code succeed
+ * with a reference comparison. Unknown names are added until the table is full.
+ * A table is not thread safe, every decoder owns its own instance.
+ */
+final class HtspSymbolTable {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    // Strings longer than this are never looked up in the table
+    static final int MAX_SYMBOL_LENGTH = 32;
+
+    // Limits the number of names that are added while decoding
+    private static final int MAX_SYMBOLS = 1024;
+    private static final int CAPACITY = 4096;
+
+    private static final String[] VOCABULARY = {
+            // Common fields
+            "method", "seq", "error", "noaccess", "id", "name", "type", "uuid",
+            // Connection and server status
+            "htspversion", "clientname", "clientversion", "username", "digest", "challenge",
+            "servername", "serverversion", "servercapability", "webroot", "time", "timezone",
+            "gmtoffset", "freediskspace", "totaldiskspace", "profiles", "dvrconfigs", "comment",
+            "path", "ticket", "success",
+            // Channels and tags
+            "channelId", "channelNumber", "channelNumberMinor", "channelName", "channelIcon",
+            "eventId", "nextEventId", "tags", "services", "caid", "caname", "tagId", "tagName",
+            "tagIndex", "tagIcon", "tagTitledIcon", "members",
+            // Events
+            "start", "stop", "title", "subtitle", "summary", "description", "credits", "category",
+            "keyword", "serieslinkId", "serieslinkUri", "episodeId", "episodeUri", "seasonId",
+            "brandId", "contentType", "ageRating", "starRating", "firstAired", "seasonNumber",
+            "seasonCount", "episodeNumber", "episodeCount", "partNumber", "partCount",
+            "episodeOnscreen", "image", "dvrId", "events", "copyright_year", "genre",
+            // Recordings and timers
+            "enabled", "priority", "retention", "removal", "startExtra", "stopExtra", "state",
+            "owner", "creator", "files", "size", "dataErrors", "streamErrors",
+            "autorecId", "timerecId", "daysOfWeek", "approxTime", "startWindow", "minDuration",
+            "maxDuration", "dupDetect", "maxCount", "configName", "fulltext", "directory",
+            "playcount", "playposition", "status", "subscriptionError", "duplicate", "language",
+            // Subscriptions
+            "subscriptionId", "streams", "index", "width", "height", "aspect_num", "aspect_den",
+            "channels", "rate", "composition_id", "ancillary_id", "sourceinfo", "adapter", "mux",
+            "network", "provider", "service", "timeshiftPeriod", "normts", "profile", "weight",
+            "stream", "frametype", "com", "pts", "dts", "duration", "payload", "packets", "bytes",
+            "delay", "Bdrops", "Pdrops", "Idrops", "feSNR", "feSignal", "feBER", "feUNC",
+            "feStatus", "shift", "full", "speed", "absolute", "errors", "offset",
+            // Files
+            "file", "fileId", "data", "mtime",
+            // Methods
+            "hello", "authenticate", "getDiskSpace", "getSysTime", "enableAsyncMetadata",
+            "getEvent", "getEvents", "epgQuery", "getEpgObject", "getDvrConfigs", "getProfiles",
+            "addDvrEntry", "updateDvrEntry", "cancelDvrEntry", "deleteDvrEntry", "stopDvrEntry",
+            "addAutorecEntry", "updateAutorecEntry", "deleteAutorecEntry", "addTimerecEntry",
+            "updateTimerecEntry", "deleteTimerecEntry", "getTicket", "subscribe", "unsubscribe",
+            "subscriptionChangeWeight", "subscriptionSkip", "subscriptionSeek", "subscriptionSpeed",
+            "subscriptionLive", "subscriptionFilterStream", "fileOpen", "fileRead", "fileClose",
+            "fileStat", "fileSeek", "channelAdd", "channelUpdate", "channelDelete", "tagAdd",
+            "tagUpdate", "tagDelete", "dvrEntryAdd", "dvrEntryUpdate", "dvrEntryDelete",
+            "autorecEntryAdd", "autorecEntryUpdate", "autorecEntryDelete", "timerecEntryAdd",
+            "timerecEntryUpdate", "timerecEntryDelete", "eventAdd", "eventUpdate", "eventDelete",
+            "initialSyncCompleted", "subscriptionStart", "subscriptionStop", "subscriptionGrace",
+            "subscriptionStatus", "queueStatus", "signalStatus", "timeshiftStatus", "muxpkt",
+            // Stream types
+            "H264", "HEVC", "MPEG2VIDEO", "VP8", "VP9", "THEORA", "AAC", "MPEG2AUDIO", "AC3",
+            "EAC3", "VORBIS", "OPUS", "FLAC", "DVBSUB", "TEXTSUB", "TELETEXT", "CA",
+    };
+
+    private final String[] symbols = new String[CAPACITY];
+    private final byte[][] encodedSymbols = new byte[CAPACITY][];
+    private final int[] hashes = new int[CAPACITY];
+    private int symbolCount;
+
+    HtspSymbolTable() {
+        for (String symbol : VOCABULARY) {
+            byte[] bytes = symbol.getBytes(CHARSET);
+            int slot = findSlot(bytes, 0, bytes.length, hash(bytes, 0, bytes.length));
+            if (symbols[slot] == null) {
+                addSymbol(slot, symbol, bytes, hash(bytes, 0, bytes.length));
+            }
+        }
+    }
+
+    /**
+     * Returns the string for the given UTF-8 encoded bytes.
+     *
+     * @param data   The array that contains the encoded string
+     * @param offset The position of the first byte of the string
+     * @param length The number of bytes of the string
+     * @param add    True if a string that is not yet in the table shall be added
+     * @return The shared instance of the string if it is in the table, otherwise a new string
+     */
+    String get(byte[] data, int offset, int length, boolean add) {
+        if (length > MAX_SYMBOL_LENGTH) {
+            return new String(data, offset, length, CHARSET);
+        }
+
+        int hash = hash(data, offset, length);
+        int slot = findSlot(data, offset, length, hash);
+        if (symbols[slot] != null) {
+            return symbols[slot];
+        }
+
+        String value = new String(data, offset, length, CHARSET);
+        if (add && symbolCount < MAX_SYMBOLS) {
+            byte[] bytes = new byte[length];
+            System.arraycopy(data, offset, bytes, 0, length);
+            addSymbol(slot, value, bytes, hash);
+        }
+        return value;
+    }
+
+    private void addSymbol(int slot, String symbol, byte[] bytes, int hash) {
+        symbols[slot] = symbol;
+        encodedSymbols[slot] = bytes;
+        hashes[slot] = hash;
+        symbolCount++;
+    }
+
+    /**
+     * Returns the slot that contains the given string or the empty slot where it can be added.
+     * The table is never filled to more than a quarter, so an empty slot is always found.
+     */
+    private int findSlot(byte[] data, int offset, int length, int hash) {
+        int mask = CAPACITY - 1;
+        int slot = hash & mask;
+        while (symbols[slot] != null) {
+            if (hashes[slot] == hash && equals(encodedSymbols[slot], data, offset, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static boolean equals(byte[] symbol, byte[] data, int offset, int length) {
+        if (symbol.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (symbol[i] != data[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] data, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + data[offset + i];
+        }
+        // Spread the higher bits so that the lower bits can be used as slot index
+        return hash ^ (hash >>> 16);
+    }
+}
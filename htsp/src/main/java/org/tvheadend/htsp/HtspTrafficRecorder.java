@@ -0,0 +1,210 @@
+package org.tvheadend.htsp;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Writes the raw data that is received from and sent to the server into a compact
+ * binary log. The data is recorded exactly as it passes the socket, so the log
+ * contains the length prefixed HTSP messages together with the time they arrived.
+ * A log can be fed back into a connection with the {@link HtspTrafficReplayer}.
+ * <p>
+ * The log starts with a header that consists of the magic bytes, the format version
+ * and the wall clock time in milliseconds when the recording was started. Every read
+ * or write of the socket is stored as a record with the direction, the time in
+ * microseconds since the previous record and the length of the data as variable
+ * length integers, followed by the data itself.
+ * <p>
+ * If writing the log fails, the recording is stopped without affecting the
+ * connection and the error is available from {@link #getError()}.
+ */
+public final class HtspTrafficRecorder implements Closeable {
+
+    static final byte[] MAGIC = {'H', 'T', 'S', 'P', 'L', 'O', 'G'};
+    static final int VERSION = 1;
+
+    static final int DIRECTION_RECEIVED = 0;
+    static final int DIRECTION_SENT = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final long startTime;
+    private final byte[] copyBuffer = new byte[8192];
+    private long lastRecordTime;
+    private long recordedBytes;
+    private boolean closed;
+    private IOException error;
+
+    /**
+     * Creates a recorder that writes the log to the given stream. The header
+     * is written immediately. The stream is closed together with the recorder.
+     *
+     * @param out The stream the log shall be written to
+     * @throws IOException If the header could not be written
+     */
+    public HtspTrafficRecorder(@NonNull OutputStream out) throws IOException {
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+        this.startTime = System.nanoTime();
+        this.lastRecordTime = startTime;
+
+        this.out.write(MAGIC);
+        this.out.write(VERSION);
+        long now = System.currentTimeMillis();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            this.out.write((int) (now >>> shift));
+        }
+    }
+
+    /**
+     * Creates a recorder that writes the log to the given file. An existing file is replaced.
+     */
+    public HtspTrafficRecorder(@NonNull File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    /**
+     * Returns the number of bytes of socket data that were recorded so far
+     */
+    public synchronized long getRecordedBytes() {
+        return recordedBytes;
+    }
+
+    /**
+     * Returns the error that stopped the recording or null if no error occurred
+     */
+    @Nullable
+    public synchronized IOException getError() {
+        return error;
+    }
+
+    /**
+     * Adds a record with the given part of the buffer. The position
+     * and the limit of the buffer are not changed.
+     */
+    synchronized void record(int direction, ByteBuffer buffer, int position, int length) {
+        if (closed || error != null || length <= 0) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            out.write(direction);
+            writeVarint((now - lastRecordTime) / 1000);
+            writeVarint(length);
+            lastRecordTime = now;
+
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + position, length);
+            } else {
+                // Direct buffers need to be copied into the heap first
+                ByteBuffer data = buffer.duplicate();
+                data.limit(position + length);
+                data.position(position);
+                while (data.hasRemaining()) {
+                    int count = Math.min(data.remaining(), copyBuffer.length);
+                    data.get(copyBuffer, 0, count);
+                    out.write(copyBuffer, 0, count);
+                }
+            }
+            recordedBytes += length;
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Writes the remaining buffered records to the log and closes it
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        out.close();
+    }
+
+    /**
+     * Returns a channel that passes all reads and writes to the given socket
+     * channel and records the data that was transferred
+     */
+    RecordingChannel wrap(SocketChannel channel) {
+        return new RecordingChannel(channel);
+    }
+
+    final class RecordingChannel implements ReadableByteChannel, GatheringByteChannel {
+        private final SocketChannel channel;
+
+        RecordingChannel(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int position = dst.position();
+            int len = channel.read(dst);
+            if (len > 0) {
+                record(DIRECTION_RECEIVED, dst, position, len);
+            }
+            return len;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int position = src.position();
+            int len = channel.write(src);
+            if (len > 0) {
+                record(DIRECTION_SENT, src, position, len);
+            }
+            return len;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            int[] positions = new int[length];
+            for (int i = 0; i < length; i++) {
+                positions[i] = srcs[offset + i].position();
+            }
+            long len = channel.write(srcs, offset, length);
+            for (int i = 0; i < length && len > 0; i++) {
+                ByteBuffer src = srcs[offset + i];
+                record(DIRECTION_SENT, src, positions[i], src.position() - positions[i]);
+            }
+            return len;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.tvheadend.htsp;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Feeds a log that was written by the {@link HtspTrafficRecorder} back into a
+ * connection or a listener. The received data is split into messages by the same
+ * reader that handles the socket data, so the messages are decoded exactly like
+ * they were during the recording. The data that was sent to the server is skipped.
+ * <p>
+ * The log can be replayed either at the original speed, which keeps the delays
+ * between the reads of the socket, or as fast as the listener handles the messages.
+ * The latter is useful to reproduce and profile the handling of large amounts
+ * of data like the initial sync, and as input of throughput benchmarks.
+ */
+public final class HtspTrafficReplayer implements Closeable {
+
+    // Records larger than this are considered as a corrupt log
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 2048 * 2048;
+
+    private final InputStream in;
+    private final long startTime;
+    private byte[] data = new byte[64 * 1024];
+
+    /**
+     * Creates a replayer that reads the log from the given stream
+     * and checks the header. The stream is closed together with the replayer.
+     *
+     * @param in The stream that provides the log
+     * @throws IOException If the stream does not contain a supported log
+     */
+    public HtspTrafficReplayer(@NonNull InputStream in) throws IOException {
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+
+        byte[] header = new byte[HtspTrafficRecorder.MAGIC.length + 9];
+        readFully(header, header.length);
+        for (int i = 0; i < HtspTrafficRecorder.MAGIC.length; i++) {
+            if (header[i] != HtspTrafficRecorder.MAGIC[i]) {
+                throw new IOException("Not a HTSP traffic log");
+            }
+        }
+        int version = header[HtspTrafficRecorder.MAGIC.length] & 0xFF;
+        if (version != HtspTrafficRecorder.VERSION) {
+            throw new IOException("Unsupported HTSP traffic log version " + version);
+        }
+        long time = 0;
+        for (int i = HtspTrafficRecorder.MAGIC.length + 1; i < header.length; i++) {
+            time = (time << 8) | (header[i] & 0xFF);
+        }
+        this.startTime = time;
+    }
+
+    public HtspTrafficReplayer(@NonNull File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    /**
+     * Returns the wall clock time in milliseconds when the recording was started
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Passes the received messages of the log to the connection as if they were
+     * read from the socket. Responses are given to the listeners of pending requests
+     * and all other messages are dispatched to the registered message listeners.
+     *
+     * @see #replay(HtspMessageListener, boolean)
+     */
+    public int replay(@NonNull HtspConnection connection, boolean originalSpeed) throws IOException {
+        return replay(connection::handleMessage, originalSpeed);
+    }
+
+    /**
+     * Passes the received messages of the remaining log to the listener. The listener
+     * is called on the current thread, which returns when the end of the log was reached.
+     *
+     * @param listener      The listener that handles the messages
+     * @param originalSpeed True to keep the delays of the recording, false to
+     *                      replay the messages as fast as possible
+     * @return The number of messages that were passed to the listener
+     * @throws IOException If the log could not be read or a message could not be decoded
+     */
+    public int replay(@NonNull HtspMessageListener listener, boolean originalSpeed) throws IOException {
+        HtspFrameReader frameReader = new HtspFrameReader(READ_BUFFER_SIZE);
+        RecordChannel channel = new RecordChannel();
+        int[] messageCount = new int[1];
+        HtspMessageListener countingListener = message -> {
+            messageCount[0]++;
+            listener.onMessage(message);
+        };
+
+        long replayStart = System.nanoTime();
+        long recordTime = 0;
+        int direction;
+        while ((direction = in.read()) >= 0) {
+            recordTime += readVarint() * 1000;
+            long length = readVarint();
+            if (length > MAX_RECORD_SIZE) {
+                throw new IOException("Record is too long, length " + length);
+            }
+            if (data.length < length) {
+                data = new byte[(int) length];
+            }
+            readFully(data, (int) length);
+
+            if (direction != HtspTrafficRecorder.DIRECTION_RECEIVED) {
+                continue;
+            }
+            if (originalSpeed) {
+                sleepUntil(replayStart + recordTime);
+            }
+
+            channel.reset((int) length);
+            while (frameReader.read(channel, countingListener) > 0) {
+                // Continue until all data of the record was handled
+            }
+        }
+        return messageCount[0];
+    }
+
+    private static void sleepUntil(long time) throws InterruptedIOException {
+        long delay = time - System.nanoTime();
+        if (delay <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Replay was interrupted");
+        }
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Record is truncated");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int count = in.read(buffer, offset, length - offset);
+            if (count < 0) {
+                throw new EOFException("Log is truncated");
+            }
+            offset += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Provides the data of the current record to the frame reader
+     */
+    private final class RecordChannel implements ReadableByteChannel {
+        private int position;
+        private int length;
+
+        void reset(int length) {
+            this.position = 0;
+            this.length = length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (position == length) {
+                return -1;
+            }
+            int count = Math.min(dst.remaining(), length - position);
+            dst.put(data, position, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
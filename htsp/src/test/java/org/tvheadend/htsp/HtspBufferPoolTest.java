@@ -0,0 +1,90 @@
+package org.tvheadend.htsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class HtspBufferPoolTest {
+
+    @Test
+    public void handsOutArraysOfTheSizeClass() {
+        HtspBufferPool pool = new HtspBufferPool(64 * 1024, 2);
+
+        assertEquals(1024, pool.acquire(1).length);
+        assertEquals(1024, pool.acquire(1024).length);
+        assertEquals(2048, pool.acquire(1025).length);
+        assertEquals(64 * 1024, pool.acquire(60000).length);
+    }
+
+    @Test
+    public void reusesReleasedArrays() {
+        HtspBufferPool pool = new HtspBufferPool(64 * 1024, 2);
+        byte[] first = pool.acquire(3000);
+        byte[] second = pool.acquire(4000);
+        pool.release(first);
+        pool.release(second);
+
+        // Released arrays are handed out again, the last released one first
+        assertSame(second, pool.acquire(4096));
+        assertSame(first, pool.acquire(2049));
+        assertNotSame(first, pool.acquire(3000));
+        assertEquals(5, pool.getAcquiredCount());
+        assertEquals(3, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void keepsLimitedNumberOfArraysPerSizeClass() {
+        HtspBufferPool pool = new HtspBufferPool(4096, 1);
+        byte[] first = pool.acquire(4096);
+        byte[] second = pool.acquire(4096);
+        pool.release(first);
+        pool.release(second);
+
+        assertSame(first, pool.acquire(4096));
+        assertNotSame(second, pool.acquire(4096));
+    }
+
+    @Test
+    public void doesNotPoolArraysLargerThanTheLargestSizeClass() {
+        HtspBufferPool pool = new HtspBufferPool(4096, 2);
+        byte[] large = pool.acquire(5000);
+        assertEquals(5000, large.length);
+        pool.release(large);
+
+        assertNotSame(large, pool.acquire(5000));
+        assertEquals(2, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void ignoresArraysThatDoNotMatchASizeClass() {
+        HtspBufferPool pool = new HtspBufferPool(4096, 2);
+        pool.release(new byte[3000]);
+        pool.release(new byte[100]);
+
+        assertEquals(4096, pool.acquire(3000).length);
+        assertEquals(1024, pool.acquire(100).length);
+        assertEquals(2, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void releasesPayloadOnlyOnce() {
+        HtspBufferPool pool = new HtspBufferPool(4096, 2);
+        byte[] array = pool.acquire(1000);
+        array[0] = 1;
+        array[1] = 2;
+        HtspPayload payload = new HtspPayload(pool, array, 2);
+
+        assertArrayEquals(new byte[]{1, 2}, payload.toByteArray());
+        payload.release();
+        payload.release();
+        assertEquals(0, payload.getLength());
+        assertEquals(0, payload.getData().length);
+
+        // The array was put back only once
+        assertSame(array, pool.acquire(1000));
+        assertNotSame(array, pool.acquire(1000));
+    }
+}
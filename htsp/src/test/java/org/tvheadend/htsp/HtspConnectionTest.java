@@ -0,0 +1,97 @@
+package org.tvheadend.htsp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class HtspConnectionTest {
+
+    private static final HtspConnectionStateListener STATE_LISTENER = new HtspConnectionStateListener() {
+        @Override
+        public void onAuthenticationStateChange(HtspConnection.AuthenticationState state) {
+        }
+
+        @Override
+        public void onConnectionStateChange(HtspConnection.ConnectionState state) {
+        }
+    };
+
+    private final List<HtspMessage> messages = Collections.synchronizedList(new ArrayList<>());
+    private final HtspConnection connection = new HtspConnection("", "", "htsp://localhost:9982",
+            5000, STATE_LISTENER, messages::add);
+
+    private void awaitMessages(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (messages.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        // Give messages that should not be delivered a chance to arrive
+        Thread.sleep(50);
+        assertEquals(count, messages.size());
+    }
+
+    private static HtspMessage fileReadResponse(int seq, HtspPayload data) {
+        HtspMessage response = new HtspMessage();
+        response.put("seq", seq);
+        response.put("data", data);
+        return response;
+    }
+
+    @Test
+    public void passesResponseToTheListenerOfTheRequest() throws InterruptedException {
+        List<HtspMessage> responses = new ArrayList<>();
+        int seq = connection.getResponseTable().register(responses::add, 1000);
+        HtspMessage response = fileReadResponse(seq, new HtspPayload(null, new byte[10], 10));
+
+        connection.handleMessage(response);
+
+        assertEquals(1, responses.size());
+        assertSame(response, responses.get(0));
+        awaitMessages(0);
+    }
+
+    @Test
+    public void dropsResponseOfCancelledRequestAndReleasesItsData() throws InterruptedException {
+        HtspBufferPool pool = new HtspBufferPool(64 * 1024, 2);
+        byte[] array = pool.acquire(64 * 1024);
+        int seq = connection.getResponseTable().register(response -> {
+        }, 1000);
+        connection.getResponseTable().cancel(seq);
+
+        connection.handleMessage(fileReadResponse(seq, new HtspPayload(pool, array, 1000)));
+
+        awaitMessages(0);
+        assertSame(array, pool.acquire(64 * 1024));
+        assertEquals(1, connection.getResponseTable().getOrphanedResponseCount());
+    }
+
+    @Test
+    public void dropsResponseOfExpiredRequest() throws InterruptedException {
+        HtspResponseTable responseTable = connection.getResponseTable();
+        int seq = responseTable.register(response -> {
+        }, 1000);
+        assertEquals(1, responseTable.removeExpired(System.currentTimeMillis() + 2000).size());
+
+        connection.handleMessage(fileReadResponse(seq, new HtspPayload(null, new byte[10], 10)));
+
+        awaitMessages(0);
+        assertEquals(1, responseTable.getOrphanedResponseCount());
+    }
+
+    @Test
+    public void passesServerPushMessagesToTheListeners() throws InterruptedException {
+        HtspMessage message = new HtspMessage();
+        message.setMethod("channelAdd");
+        message.put("channelId", 1);
+
+        connection.handleMessage(message);
+
+        awaitMessages(1);
+        assertSame(message, messages.get(0));
+    }
+}
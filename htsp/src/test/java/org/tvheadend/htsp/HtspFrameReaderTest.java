@@ -0,0 +1,148 @@
+package org.tvheadend.htsp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class HtspFrameReaderTest {
+
+    /**
+     * A channel that returns the data that has arrived so far, at most the given number of bytes per read
+     */
+    private static final class ChunkedChannel implements ReadableByteChannel {
+        private final Deque<ByteBuffer> chunks = new ArrayDeque<>();
+        private final int maxBytesPerRead;
+        private boolean endOfStream;
+
+        ChunkedChannel(int maxBytesPerRead) {
+            this.maxBytesPerRead = maxBytesPerRead;
+        }
+
+        void arrive(byte[] data, int offset, int length) {
+            chunks.addLast(ByteBuffer.wrap(data, offset, length).slice());
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            ByteBuffer chunk = chunks.peekFirst();
+            if (chunk == null) {
+                return endOfStream ? -1 : 0;
+            }
+            int count = Math.min(Math.min(chunk.remaining(), dst.remaining()), maxBytesPerRead);
+            ByteBuffer piece = chunk.duplicate();
+            piece.limit(piece.position() + count);
+            dst.put(piece);
+            chunk.position(chunk.position() + count);
+            if (!chunk.hasRemaining()) {
+                chunks.pollFirst();
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !endOfStream;
+        }
+
+        @Override
+        public void close() {
+            endOfStream = true;
+        }
+    }
+
+    private static byte[] encode(int count, int dataSize) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(count * (dataSize + 64));
+        for (int i = 0; i < count; i++) {
+            HtspMessage message = new HtspMessage();
+            message.setMethod("muxpkt");
+            message.put("seq", i);
+            message.put("payload", new byte[dataSize]);
+            message.writeTo(buf);
+        }
+        byte[] data = new byte[buf.position()];
+        buf.flip();
+        buf.get(data);
+        return data;
+    }
+
+    @Test
+    public void passesMessagesOnlyOnceTheyAreComplete() throws IOException {
+        byte[] data = encode(2, 100);
+        int firstFrameLength = data.length / 2;
+        ChunkedChannel channel = new ChunkedChannel(Integer.MAX_VALUE);
+        HtspFrameReader reader = new HtspFrameReader(4096);
+        List<HtspMessage> messages = new ArrayList<>();
+
+        // The first frame without its last byte
+        channel.arrive(data, 0, firstFrameLength - 1);
+        assertEquals(firstFrameLength - 1, reader.read(channel, messages::add));
+        assertEquals(0, messages.size());
+
+        // The rest of the first frame and the beginning of the second one
+        channel.arrive(data, firstFrameLength - 1, 10);
+        reader.read(channel, messages::add);
+        assertEquals(1, messages.size());
+        assertEquals(0, messages.get(0).getInteger("seq"));
+
+        channel.arrive(data, firstFrameLength + 9, data.length - firstFrameLength - 9);
+        reader.read(channel, messages::add);
+        assertEquals(2, messages.size());
+        assertEquals(1, messages.get(1).getInteger("seq"));
+    }
+
+    @Test
+    public void decodesMessagesThatWrapAroundTheBuffer() throws IOException {
+        byte[] data = encode(50, 90);
+        ChunkedChannel channel = new ChunkedChannel(37);
+        HtspFrameReader reader = new HtspFrameReader(512);
+        List<HtspMessage> messages = new ArrayList<>();
+
+        channel.arrive(data, 0, data.length);
+        int total = 0;
+        while (total < data.length) {
+            total += reader.read(channel, messages::add);
+        }
+
+        assertEquals(50, messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(i, messages.get(i).getInteger("seq"));
+            assertEquals(90, messages.get(i).getByteArray("payload").length);
+        }
+    }
+
+    @Test
+    public void decodesMessagesThatAreLargerThanTheBuffer() throws IOException {
+        byte[] data = encode(3, 2000);
+        ChunkedChannel channel = new ChunkedChannel(300);
+        HtspFrameReader reader = new HtspFrameReader(1024);
+        List<HtspMessage> messages = new ArrayList<>();
+
+        channel.arrive(data, 0, data.length);
+        int total = 0;
+        while (total < data.length) {
+            total += reader.read(channel, messages::add);
+        }
+
+        assertEquals(3, messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(i, messages.get(i).getInteger("seq"));
+            assertEquals(2000, messages.get(i).getByteArray("payload").length);
+        }
+    }
+
+    @Test
+    public void returnsEndOfStream() throws IOException {
+        ChunkedChannel channel = new ChunkedChannel(Integer.MAX_VALUE);
+        channel.close();
+        assertEquals(-1, new HtspFrameReader(1024).read(channel, message -> {
+        }));
+    }
+}
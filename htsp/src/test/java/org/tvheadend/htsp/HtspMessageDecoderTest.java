@@ -0,0 +1,184 @@
+package org.tvheadend.htsp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HtspMessageDecoderTest {
+
+    private static ByteBuffer encode(HtspMessage message) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        message.writeTo(buf);
+        buf.flip();
+        return buf;
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    @Test
+    public void decodesAllFieldTypes() throws IOException {
+        HtspMessage message = new HtspMessage();
+        message.setMethod("eventAdd");
+        message.put("eventId", 4711);
+        message.put("start", 1577836800L);
+        message.put("title", "Tagesschau");
+        message.put("description", "Nachrichten über München");
+        message.put("data", bytes(300));
+
+        HtspMessage decoded = new HtspMessageDecoder().decode(encode(message));
+
+        assertNotNull(decoded);
+        assertEquals("eventAdd", decoded.getMethod());
+        assertEquals(4711, decoded.getInteger("eventId"));
+        assertEquals(1577836800L, decoded.getLong("start"));
+        assertEquals("Tagesschau", decoded.getString("title"));
+        assertEquals("Nachrichten über München", decoded.getString("description"));
+        assertArrayEquals(bytes(300), decoded.getByteArray("data"));
+    }
+
+    @Test
+    public void decodesNestedMapsAndLists() throws IOException {
+        HtspMessage service = new HtspMessage();
+        service.put("name", "Das Erste HD");
+        service.put("type", "HDTV");
+
+        List<Object> innerList = new ArrayList<>();
+        innerList.add(1L);
+        innerList.add(-2L);
+        List<Object> outerList = new ArrayList<>();
+        outerList.add(innerList);
+        outerList.add(new ArrayList<>());
+        outerList.add(service);
+
+        HtspMessage message = new HtspMessage();
+        message.setMethod("channelAdd");
+        message.put("services", outerList);
+        message.put("tags", Arrays.asList(1, 2, 3));
+
+        HtspMessage decoded = new HtspMessageDecoder().decode(encode(message));
+
+        assertNotNull(decoded);
+        assertEquals(Arrays.asList(1, 2, 3), decoded.getIntegerList("tags"));
+        List<?> services = decoded.getList("services");
+        assertEquals(3, services.size());
+        assertEquals(Arrays.asList(1L, -2L), services.get(0));
+        assertEquals(new ArrayList<>(), services.get(1));
+        HtspMessage decodedService = (HtspMessage) services.get(2);
+        assertEquals("Das Erste HD", decodedService.getString("name"));
+        assertEquals("HDTV", decodedService.getString("type"));
+    }
+
+    @Test
+    public void decodesConsecutiveFramesOfOneBuffer() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        for (int i = 0; i < 3; i++) {
+            HtspMessage message = new HtspMessage();
+            message.put("seq", i);
+            message.writeTo(buf);
+        }
+        buf.flip();
+
+        HtspMessageDecoder decoder = new HtspMessageDecoder();
+        for (int i = 0; i < 3; i++) {
+            HtspMessage decoded = decoder.decode(buf);
+            assertNotNull(decoded);
+            assertEquals(i, decoded.getInteger("seq"));
+        }
+        assertNull(decoder.decode(buf));
+        assertEquals(0, buf.remaining());
+    }
+
+    @Test
+    public void leavesIncompleteFrameInBuffer() throws IOException {
+        HtspMessage message = new HtspMessage();
+        message.setMethod("hello");
+        message.put("clientname", "TVHClient");
+        ByteBuffer buf = encode(message);
+        int length = buf.limit();
+        HtspMessageDecoder decoder = new HtspMessageDecoder();
+
+        // Not even the length prefix is complete
+        buf.limit(3);
+        assertNull(decoder.decode(buf));
+        assertEquals(0, buf.position());
+
+        buf.limit(length - 1);
+        assertNull(decoder.decode(buf));
+        assertEquals(0, buf.position());
+
+        buf.limit(length);
+        HtspMessage decoded = decoder.decode(buf);
+        assertNotNull(decoded);
+        assertEquals("TVHClient", decoded.getString("clientname"));
+        assertEquals(length, decoded.wireSize);
+    }
+
+    @Test
+    public void collectsFrameThatIsLargerThanTheReadBuffer() throws IOException {
+        HtspMessage message = new HtspMessage();
+        message.put("data", bytes(10000));
+        ByteBuffer source = encode(message);
+        int length = source.limit();
+
+        // The data arrives in pieces in a buffer that is smaller than the frame
+        ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+        readBuffer.limit(0);
+        HtspMessageDecoder decoder = new HtspMessageDecoder();
+        HtspMessage decoded = null;
+        while (decoded == null && (source.hasRemaining() || readBuffer.hasRemaining())) {
+            readBuffer.compact();
+            int count = Math.min(source.remaining(), Math.min(readBuffer.remaining(), 700));
+            ByteBuffer piece = source.slice();
+            piece.limit(count);
+            readBuffer.put(piece);
+            source.position(source.position() + count);
+            readBuffer.flip();
+            decoded = decoder.decode(readBuffer);
+        }
+
+        assertNotNull(decoded);
+        assertArrayEquals(bytes(10000), decoded.getByteArray("data"));
+        assertEquals(length, decoded.wireSize);
+        assertEquals(0, source.remaining());
+    }
+
+    @Test
+    public void decodesPayloadIntoPooledArray() throws IOException {
+        HtspBufferPool pool = new HtspBufferPool(64 * 1024, 4);
+        HtspMessage message = new HtspMessage();
+        message.setMethod("muxpkt");
+        message.put("payload", bytes(3000));
+
+        HtspMessageDecoder decoder = new HtspMessageDecoder();
+        decoder.setPayloadPool(pool);
+        HtspPayload payload = decoder.decode(encode(message)).getPayload("payload");
+
+        assertNotNull(payload);
+        assertEquals(3000, payload.getLength());
+        assertTrue(payload.getData().length >= 3000);
+        assertArrayEquals(bytes(3000), payload.toByteArray());
+
+        byte[] array = payload.getData();
+        payload.release();
+        assertEquals(0, payload.getLength());
+        HtspPayload next = decoder.decode(encode(message)).getPayload("payload");
+        assertSame(array, next.getData());
+    }
+}
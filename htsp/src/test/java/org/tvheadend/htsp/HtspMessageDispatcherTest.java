@@ -0,0 +1,286 @@
+package org.tvheadend.htsp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HtspMessageDispatcherTest {
+
+    // Messages that were not decoded from a frame are accounted with this size
+    private static final int MESSAGE_SIZE = 64;
+
+    /**
+     * Collects the sequence numbers of the received messages
+     */
+    private static class RecordingListener implements HtspMessageListener {
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void onMessage(HtspMessage message) {
+            received.add(message.getInteger("seq"));
+        }
+
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (received.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(count, received.size());
+        }
+    }
+
+    /**
+     * Blocks in the first message until it is released
+     */
+    private static class BlockingListener extends RecordingListener {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void onMessage(HtspMessage message) {
+            entered.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.onMessage(message);
+        }
+    }
+
+    private static HtspMessage message(int seq, String method, Integer subscriptionId) {
+        HtspMessage message = new HtspMessage();
+        message.setMethod(method);
+        message.put("seq", seq);
+        if (subscriptionId != null) {
+            message.put("subscriptionId", subscriptionId);
+        }
+        return message;
+    }
+
+    @Test
+    public void routesMessagesByMethodAndSubscription() throws InterruptedException {
+        HtspMessageDispatcher dispatcher = new HtspMessageDispatcher();
+        RecordingListener all = new RecordingListener();
+        RecordingListener channels = new RecordingListener();
+        RecordingListener subscription = new RecordingListener();
+        dispatcher.addListener(all);
+        dispatcher.addListener(channels, "channelAdd", "channelUpdate");
+        dispatcher.addSubscriptionListener(7, subscription);
+
+        dispatcher.dispatch(message(0, "channelAdd", null));
+        dispatcher.dispatch(message(1, "muxpkt", 7));
+        dispatcher.dispatch(message(2, "muxpkt", 8));
+        dispatcher.dispatch(message(3, "channelUpdate", null));
+        dispatcher.dispatch(message(4, "subscriptionStatus", 7));
+
+        all.await(5);
+        channels.await(2);
+        subscription.await(2);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), all.received);
+        assertEquals(Arrays.asList(0, 3), channels.received);
+        assertEquals(Arrays.asList(1, 4), subscription.received);
+    }
+
+    @Test
+    public void deliversMessageOnlyOnceToEachListener() throws InterruptedException {
+        HtspMessageDispatcher dispatcher = new HtspMessageDispatcher();
+        RecordingListener listener = new RecordingListener();
+        RecordingListener all = new RecordingListener();
+        dispatcher.addListener(listener, "muxpkt");
+        dispatcher.addSubscriptionListener(7, listener);
+        dispatcher.addListener(all, "muxpkt");
+        dispatcher.addListener(all);
+
+        dispatcher.dispatch(message(0, "muxpkt", 7));
+        dispatcher.dispatch(message(1, "subscriptionStart", 7));
+
+        listener.await(2);
+        all.await(2);
+        Thread.sleep(50);
+        assertEquals(Arrays.asList(0, 1), listener.received);
+        assertEquals(Arrays.asList(0, 1), all.received);
+    }
+
+    @Test
+    public void stopsDeliveringToRemovedListener() throws InterruptedException {
+        HtspMessageDispatcher dispatcher = new HtspMessageDispatcher();
+        RecordingListener listener = new RecordingListener();
+        RecordingListener other = new RecordingListener();
+        dispatcher.addListener(listener, "channelAdd");
+        dispatcher.addSubscriptionListener(7, listener);
+        dispatcher.addListener(other);
+
+        dispatcher.dispatch(message(0, "channelAdd", null));
+        listener.await(1);
+        dispatcher.removeListener(listener);
+        assertNull(dispatcher.getStatistics(listener));
+
+        dispatcher.dispatch(message(1, "channelAdd", null));
+        dispatcher.dispatch(message(2, "muxpkt", 7));
+        other.await(3);
+        Thread.sleep(50);
+        assertEquals(Collections.singletonList(0), listener.received);
+    }
+
+    @Test
+    public void neverDropsMessagesOfControlListeners() throws InterruptedException {
+        HtspMessageDispatcher dispatcher = new HtspMessageDispatcher(2 * MESSAGE_SIZE);
+        CountDownLatch resumed = new CountDownLatch(1);
+        dispatcher.setCongestionListener(resumed::countDown);
+        BlockingListener listener = new BlockingListener();
+        RecordingListener methodListener = new RecordingListener();
+        dispatcher.addListener(listener);
+        dispatcher.addListener(methodListener, "initialSyncCompleted");
+        // Only applies to listeners of subscriptions
+        dispatcher.setOverflowPolicy(listener, HtspMessageDispatcher.OverflowPolicy.DROP_OLDEST);
+
+        // The first message is being delivered, the others exceed the limit of the queue
+        dispatcher.dispatch(message(0, "channelAdd", null));
+        assertTrue(listener.entered.await(10, TimeUnit.SECONDS));
+        assertFalse(dispatcher.isCongested());
+        for (int i = 1; i <= 4; i++) {
+            dispatcher.dispatch(message(i, "eventAdd", null));
+        }
+        dispatcher.dispatch(message(5, "initialSyncCompleted", null));
+
+        HtspMessageDispatcher.Statistics statistics = dispatcher.getStatistics(listener);
+        assertTrue(dispatcher.isCongested());
+        assertEquals(5, statistics.getQueuedMessages());
+        assertEquals(0, statistics.getDroppedMessages());
+        assertFalse(statistics.isLagging());
+
+        listener.release.countDown();
+        listener.await(6);
+        methodListener.await(1);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), listener.received);
+        assertTrue(resumed.await(10, TimeUnit.SECONDS));
+        assertFalse(dispatcher.isCongested());
+    }
+
+    @Test
+    public void endsCongestionWhenCongestedListenerIsRemoved() throws InterruptedException {
+        HtspMessageDispatcher dispatcher = new HtspMessageDispatcher(MESSAGE_SIZE);
+        BlockingListener listener = new BlockingListener();
+        dispatcher.addListener(listener, "eventAdd");
+
+        dispatcher.dispatch(message(0, "eventAdd", null));
+        assertTrue(listener.entered.await(10, TimeUnit.SECONDS));
+        dispatcher.dispatch(message(1, "eventAdd", null));
+        dispatcher.dispatch(message(2, "eventAdd", null));
+        assertTrue(dispatcher.isCongested());
+
+        dispatcher.removeListener(listener);
+        assertFalse(dispatcher.isCongested());
+        listener.release.countDown();
+    }
+
+    @Test
+    public void dropsNewestMessagesOfSubscriptionWhenConfigured() throws InterruptedException {
+        HtspMessageDispatcher dispatcher = new HtspMessageDispatcher(3 * MESSAGE_SIZE);
+        BlockingListener listener = new BlockingListener();
+        dispatcher.addSubscriptionListener(7, listener);
+        dispatcher.setOverflowPolicy(listener, HtspMessageDispatcher.OverflowPolicy.DROP_NEWEST);
+
+        // The first message is being delivered, the next three fill the queue
+        dispatcher.dispatch(message(0, "muxpkt", 7));
+        assertTrue(listener.entered.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i <= 4; i++) {
+            dispatcher.dispatch(message(i, "muxpkt", 7));
+        }
+
+        HtspMessageDispatcher.Statistics statistics = dispatcher.getStatistics(listener);
+        assertEquals(3, statistics.getQueuedMessages());
+        assertEquals(3 * MESSAGE_SIZE, statistics.getQueuedBytes());
+        assertEquals(1, statistics.getDroppedMessages());
+        assertTrue(statistics.isLagging());
+        assertFalse(dispatcher.isCongested());
+
+        listener.release.countDown();
+        listener.await(4);
+        assertEquals(Arrays.asList(0, 1, 2, 3), listener.received);
+        assertEquals(3, statistics.getMaxQueuedMessages());
+    }
+
+    @Test
+    public void dropsOldestMessagesOfSubscriptionWhenTheQueueIsFull() throws InterruptedException {
+        HtspMessageDispatcher dispatcher = new HtspMessageDispatcher(3 * MESSAGE_SIZE);
+        BlockingListener listener = new BlockingListener();
+        dispatcher.addSubscriptionListener(7, listener);
+
+        dispatcher.dispatch(message(0, "muxpkt", 7));
+        assertTrue(listener.entered.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i <= 5; i++) {
+            dispatcher.dispatch(message(i, "muxpkt", 7));
+        }
+
+        HtspMessageDispatcher.Statistics statistics = dispatcher.getStatistics(listener);
+        assertEquals(2, statistics.getDroppedMessages());
+
+        listener.release.countDown();
+        listener.await(4);
+        assertEquals(Arrays.asList(0, 3, 4, 5), listener.received);
+    }
+
+    @Test
+    public void deliversMessageOnTheCallingThread() {
+        HtspMessageDispatcher dispatcher = new HtspMessageDispatcher();
+        RecordingListener all = new RecordingListener();
+        RecordingListener status = new RecordingListener();
+        RecordingListener channels = new RecordingListener();
+        dispatcher.addListener(all);
+        dispatcher.addListener(status, "serverStatus");
+        dispatcher.addListener(channels, "channelAdd");
+
+        dispatcher.deliver(message(0, "serverStatus", null));
+
+        // The listeners have processed the message when the call returns
+        assertEquals(Collections.singletonList(0), all.received);
+        assertEquals(Collections.singletonList(0), status.received);
+        assertEquals(0, channels.received.size());
+    }
+
+    @Test
+    public void deliversMessageAfterTheListenerProcessedTheCurrentMessage() throws InterruptedException {
+        HtspMessageDispatcher dispatcher = new HtspMessageDispatcher();
+        BlockingListener listener = new BlockingListener();
+        dispatcher.addListener(listener);
+        dispatcher.dispatch(message(0, "channelAdd", null));
+        assertTrue(listener.entered.await(10, TimeUnit.SECONDS));
+
+        Thread thread = new Thread(() -> dispatcher.deliver(message(1, "serverStatus", null)));
+        thread.start();
+        thread.join(100);
+        assertTrue(thread.isAlive());
+
+        listener.release.countDown();
+        thread.join(10000);
+        assertEquals(Arrays.asList(0, 1), listener.received);
+    }
+
+    @Test
+    public void isNotLaggingWhenAllMessagesWereDelivered() throws InterruptedException {
+        HtspMessageDispatcher dispatcher = new HtspMessageDispatcher(2 * MESSAGE_SIZE);
+        RecordingListener listener = new RecordingListener();
+        dispatcher.addListener(listener);
+
+        for (int i = 0; i < 100; i++) {
+            dispatcher.dispatch(message(i, "channelAdd", null));
+            listener.await(i + 1);
+        }
+
+        HtspMessageDispatcher.Statistics statistics = dispatcher.getStatistics(listener);
+        assertFalse(statistics.isLagging());
+        assertEquals(100, listener.received.size());
+    }
+}
@@ -0,0 +1,106 @@
+package org.tvheadend.htsp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HtspResponseFutureTest {
+
+    @Test
+    public void passesResponseToListenersAndWaitingThread() throws Exception {
+        HtspResponseFuture future = new HtspResponseFuture();
+        List<HtspMessage> received = new ArrayList<>();
+        future.addListener(received::add);
+        HtspMessage response = new HtspMessage();
+
+        Thread responder = new Thread(() -> future.handleResponse(response));
+        responder.start();
+        assertSame(response, future.get(10, TimeUnit.SECONDS));
+        responder.join();
+
+        assertTrue(future.isDone());
+        assertFalse(future.isCancelled());
+        assertEquals(1, received.size());
+        assertSame(response, received.get(0));
+
+        // Listeners that are added later are called immediately
+        future.addListener(received::add);
+        assertEquals(2, received.size());
+    }
+
+    @Test
+    public void keepsTheFirstResponse() throws Exception {
+        HtspResponseFuture future = new HtspResponseFuture();
+        HtspMessage response = new HtspMessage();
+        future.handleResponse(response);
+        future.handleResponse(new HtspMessage());
+
+        assertSame(response, future.get());
+        assertFalse(future.cancel(true));
+    }
+
+    @Test
+    public void callsCancelActionAndCancelListeners() throws Exception {
+        HtspResponseFuture future = new HtspResponseFuture();
+        AtomicInteger cancelActions = new AtomicInteger();
+        AtomicInteger cancelListeners = new AtomicInteger();
+        List<HtspMessage> received = new ArrayList<>();
+        future.setCancelAction(cancelActions::incrementAndGet);
+        future.addCancelListener(cancelListeners::incrementAndGet);
+        future.addListener(received::add);
+
+        assertTrue(future.cancel(false));
+        assertFalse(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertEquals(1, cancelActions.get());
+        assertEquals(1, cancelListeners.get());
+
+        // Cancel listeners that are added later are called immediately
+        future.addCancelListener(cancelListeners::incrementAndGet);
+        assertEquals(2, cancelListeners.get());
+
+        // A late response is ignored
+        future.handleResponse(new HtspMessage());
+        assertEquals(0, received.size());
+        try {
+            future.get();
+            fail("Expected a CancellationException");
+        } catch (CancellationException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void doesNotCallCancelListenersAfterResponse() {
+        HtspResponseFuture future = new HtspResponseFuture();
+        AtomicInteger cancelListeners = new AtomicInteger();
+        future.addCancelListener(cancelListeners::incrementAndGet);
+        future.handleResponse(new HtspMessage());
+        future.addCancelListener(cancelListeners::incrementAndGet);
+
+        assertFalse(future.cancel(true));
+        assertEquals(0, cancelListeners.get());
+    }
+
+    @Test
+    public void timesOutWithoutResponse() throws InterruptedException {
+        HtspResponseFuture future = new HtspResponseFuture();
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            fail("Expected a TimeoutException");
+        } catch (TimeoutException e) {
+            assertFalse(future.isDone());
+        }
+    }
+}
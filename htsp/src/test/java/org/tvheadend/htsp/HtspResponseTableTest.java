@@ -0,0 +1,125 @@
+package org.tvheadend.htsp;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HtspResponseTableTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private static final HtspResponseListener LISTENER = response -> {
+    };
+
+    @Test
+    public void returnsTheListenerOfTheSequenceNumberOnce() {
+        HtspResponseTable table = new HtspResponseTable();
+        HtspResponseListener other = response -> {
+        };
+        int seq = table.register(LISTENER, 1000);
+        int otherSeq = table.register(other, 1000);
+
+        assertTrue(otherSeq != seq);
+        assertEquals(2, table.getPendingRequestCount());
+        assertSame(other, table.remove(otherSeq));
+        assertSame(LISTENER, table.remove(seq));
+        assertNull(table.remove(seq));
+        assertEquals(0, table.getPendingRequestCount());
+        assertEquals(2, table.getResponseCount());
+    }
+
+    @Test
+    public void doesNotRegisterMissingListener() {
+        HtspResponseTable table = new HtspResponseTable();
+        int seq = table.register(null, 1000);
+
+        assertEquals(0, table.getPendingRequestCount());
+        assertNull(table.remove(seq));
+    }
+
+    @Test
+    public void removesCancelledRequest() {
+        HtspResponseTable table = new HtspResponseTable();
+        int seq = table.register(LISTENER, 1000);
+        table.cancel(seq);
+
+        assertNull(table.remove(seq));
+        assertEquals(0, table.getPendingRequestCount());
+    }
+
+    @Test
+    public void removesRequestsOnceTheirDeadlinePassed() {
+        HtspResponseTable table = new HtspResponseTable();
+        long now = System.currentTimeMillis();
+        int shortSeq = table.register(LISTENER, 1000);
+        table.register(LISTENER, DAY);
+
+        assertEquals(0, table.removeExpired(now).size());
+        List<HtspResponseTable.PendingResponse> expired = table.removeExpired(now + 2000);
+
+        assertEquals(1, expired.size());
+        assertEquals(shortSeq, expired.get(0).seq);
+        assertEquals(1, table.getPendingRequestCount());
+        assertEquals(1, table.getTimeoutCount());
+        assertNull(table.remove(shortSeq));
+    }
+
+    @Test
+    public void wakesUpForTheEarliestDeadline() {
+        HtspResponseTable table = new HtspResponseTable();
+        table.register(LISTENER, DAY);
+        table.register(LISTENER, 1000);
+
+        long now = System.currentTimeMillis();
+        assertTrue(table.getTimeUntilNextDeadline(now) <= 1000);
+
+        // A check that expires nothing keeps the earliest deadline
+        table.removeExpired(now + 500);
+        assertEquals(2, table.getPendingRequestCount());
+        assertTrue(table.getTimeUntilNextDeadline(now) <= 1000);
+    }
+
+    @Test
+    public void keepsDeadlineOfRequestsRegisteredDuringCheck() throws InterruptedException {
+        for (int round = 0; round < 50; round++) {
+            HtspResponseTable table = new HtspResponseTable();
+            for (int i = 0; i < 200; i++) {
+                table.register(LISTENER, 2 * DAY);
+            }
+
+            long start = System.currentTimeMillis();
+            CountDownLatch started = new CountDownLatch(1);
+            Thread checker = new Thread(() -> {
+                started.countDown();
+                // Every call checks all requests, because the check interval has passed
+                for (int i = 1; i <= 500; i++) {
+                    table.removeExpired(start + i * 5001L);
+                }
+            });
+            checker.start();
+            started.await();
+            table.register(LISTENER, DAY);
+            checker.join();
+
+            long end = System.currentTimeMillis();
+            assertTrue("Deadline of the request was lost in round " + round,
+                    table.getTimeUntilNextDeadline(end) <= DAY);
+        }
+    }
+
+    @Test
+    public void removesAllRequests() {
+        HtspResponseTable table = new HtspResponseTable();
+        table.register(LISTENER, 1000);
+        table.register(LISTENER, 2000);
+
+        assertEquals(2, table.removeAll().size());
+        assertEquals(0, table.getPendingRequestCount());
+    }
+}
@@ -0,0 +1,86 @@
+package org.tvheadend.htsp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class HtspS64Test {
+
+    private static final long[] VALUES = {
+            0, 1, 127, 128, 255, 256, 65535, 65536,
+            Integer.MAX_VALUE, 1L << 32, 1577836800000L, Long.MAX_VALUE,
+            -1, -2, -128, -129, -256, Integer.MIN_VALUE, -1577836800000L, Long.MIN_VALUE
+    };
+
+    private static ByteBuffer encode(Object value) throws IOException {
+        HtspMessage message = new HtspMessage();
+        message.put("v", value);
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        message.writeTo(buf);
+        buf.flip();
+        return buf;
+    }
+
+    private static long decode(ByteBuffer buf) throws IOException {
+        return new HtspMessageDecoder().decode(buf).getLong("v");
+    }
+
+    /**
+     * Returns the data length of the only field of the encoded message
+     */
+    private static int getDataLength(ByteBuffer buf) {
+        // Frame length, type and name length precede the data length
+        return buf.getInt(4 + 1 + 1);
+    }
+
+    @Test
+    public void roundTripsLongValues() throws IOException {
+        for (long value : VALUES) {
+            assertEquals("Value " + value, value, decode(encode(value)));
+        }
+    }
+
+    @Test
+    public void roundTripsIntegerAndBigIntegerValues() throws IOException {
+        assertEquals(-42, decode(encode(-42)));
+        assertEquals(Integer.MIN_VALUE, decode(encode(Integer.MIN_VALUE)));
+        assertEquals(-42, decode(encode(BigInteger.valueOf(-42))));
+        assertEquals(Long.MAX_VALUE, decode(encode(BigInteger.valueOf(Long.MAX_VALUE))));
+    }
+
+    @Test
+    public void encodesWithTheMinimalNumberOfBytes() throws IOException {
+        assertEquals(0, getDataLength(encode(0L)));
+        assertEquals(1, getDataLength(encode(255L)));
+        assertEquals(2, getDataLength(encode(256L)));
+        assertEquals(4, getDataLength(encode((long) Integer.MAX_VALUE)));
+        assertEquals(8, getDataLength(encode(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void encodesNegativeValuesWithAllBytes() throws IOException {
+        assertEquals(8, getDataLength(encode(-1L)));
+        assertEquals(8, getDataLength(encode(-1)));
+        assertEquals(8, getDataLength(encode(Long.MIN_VALUE)));
+    }
+
+    @Test
+    public void decodesNegativeValuesFromTheServer() throws IOException {
+        // -2 as sent by the server in little endian order with all eight bytes
+        ByteBuffer buf = encode(1L);
+        int dataPosition = buf.limit() - 1;
+        ByteBuffer frame = ByteBuffer.allocate(buf.limit() + 7);
+        frame.put(buf.array(), 0, dataPosition);
+        frame.put(new byte[]{(byte) 0xFE, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+        frame.putInt(0, frame.position() - 4);
+        frame.putInt(4 + 1 + 1, 8);
+        frame.flip();
+
+        assertEquals(-2, decode(frame));
+    }
+}